@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.config.ImmutableInstrumentationConfig;
+import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig.CaptureKind;
+
+// measures the class-level advice matching that is performed by the weaver for every class that is
+// loaded, over a large synthetic class path where (as in real applications) only a small fraction
+// of the classes match any advice
+//
+// indexed is the matching done by the weaver now (see AdviceIndex)
+// unindexed is the matching done prior to that (every advice matched against every class)
+//
+// this benchmarks package-private weaving classes, so it needs to be run with
+// glowroot-agent-core-unshaded (and its dependencies) on the class path instead of -javaagent
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class AdviceMatcherBenchmark {
+
+    // the bundled plugins contribute a few hundred advisors
+    @Param({"100", "500"})
+    private int advisorCount;
+
+    private List<Advice> advisors;
+
+    private List<SyntheticClass> classes;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        List<InstrumentationConfig> configs = Lists.newArrayList();
+        for (int i = 0; i < advisorCount; i++) {
+            String className;
+            String superTypeRestriction = "";
+            switch (i % 10) {
+                case 0:
+                    // e.g. "org.apache.catalina.*"
+                    className = "org.lib" + i + ".*";
+                    break;
+                case 1:
+                    // e.g. "javax.servlet.Servlet|javax.servlet.Filter"
+                    className = "org.lib" + i + ".Api|org.lib" + i + ".OtherApi";
+                    superTypeRestriction = "org.lib" + i + ".Base";
+                    break;
+                case 2:
+                    // full regex, which cannot be indexed
+                    className = "/org\\.lib" + i + "\\..*Impl/";
+                    break;
+                default:
+                    className = "org.lib" + i + ".Api";
+                    break;
+            }
+            configs.add(ImmutableInstrumentationConfig.builder()
+                    .className(className)
+                    .superTypeRestriction(superTypeRestriction)
+                    .methodName("execute")
+                    .captureKind(CaptureKind.OTHER)
+                    .build());
+        }
+        advisors = ImmutableList.copyOf(
+                AdviceGenerator.createAdvisors(configs, null, false, false).keySet());
+        classes = Lists.newArrayList();
+        for (int i = 0; i < 10000; i++) {
+            String className;
+            if (random.nextInt(100) == 0) {
+                className = "org.lib" + random.nextInt(advisorCount) + ".Api";
+            } else {
+                className = "com.example.app" + random.nextInt(100) + ".Class" + i;
+            }
+            Set<String> superClassNames = ImmutableSet.of(className, "java.lang.Object",
+                    "com.example.framework.Base" + random.nextInt(20));
+            classes.add(new SyntheticClass(className, superClassNames));
+        }
+    }
+
+    @Benchmark
+    public int indexed() {
+        int count = 0;
+        for (SyntheticClass clazz : classes) {
+            count += AdviceMatcher.getAdviceMatchers(clazz.name, ImmutableList.<String>of(),
+                    clazz.superClassNames, advisors).size();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int unindexed() {
+        int count = 0;
+        for (SyntheticClass clazz : classes) {
+            for (Advice advice : advisors) {
+                if (AdviceMatcher.isClassMatch(clazz.name, ImmutableList.<String>of(),
+                        clazz.superClassNames, advice)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static class SyntheticClass {
+
+        private final String name;
+        private final Set<String> superClassNames;
+
+        private SyntheticClass(String name, Set<String> superClassNames) {
+            this.name = name;
+            this.superClassNames = superClassNames;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// measures the histogram operations that are performed for every transaction name in every
+// aggregate interval
+//
+// merge is the merge done by LazyHistogram now (adding the encoded counts directly into the
+// merged histogram)
+// mergeByDecoding is the merge done prior to that (decoding into an intermediate histogram)
+//
+// run with -prof gc to see the allocation rate difference between the two, and with
+// -Dglowroot.histogram.significantDigits=N (via -jvmArgsAppend) to see the effect of precision
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LazyHistogramBenchmark {
+
+    // below 1024 values LazyHistogram only stores raw values
+    @Param({"100", "10000"})
+    private int values;
+
+    private long[] durationNanos;
+
+    private Aggregate.Histogram encodedHistogram;
+    private LazyHistogram histogram;
+
+    // rollups merge many intervals into the same histogram
+    private LazyHistogram mergedHistogram;
+    private Histogram mergedByDecodingHistogram;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        durationNanos = new long[values];
+        for (int i = 0; i < values; i++) {
+            // log-normal-ish distribution of durations between roughly 100 microseconds and
+            // 10 seconds
+            durationNanos[i] = (long) Math.exp(11.5 + 2 * Math.abs(random.nextGaussian()));
+        }
+        histogram = new LazyHistogram();
+        for (long value : durationNanos) {
+            histogram.add(value);
+        }
+        encodedHistogram = histogram.toProto(new ScratchBuffer());
+        mergedHistogram = new LazyHistogram();
+        // pre-size so that only the merges are measured
+        mergedHistogram.merge(histogram);
+        mergedByDecodingHistogram = new Histogram(1000, 2000, 5);
+        mergedByDecodingHistogram.setAutoResize(true);
+        for (long value : durationNanos) {
+            mergedByDecodingHistogram.recordValue(value);
+        }
+    }
+
+    @Benchmark
+    public LazyHistogram add() {
+        LazyHistogram histogram = new LazyHistogram();
+        for (long value : durationNanos) {
+            histogram.add(value);
+        }
+        return histogram;
+    }
+
+    @Benchmark
+    public LazyHistogram merge() {
+        mergedHistogram.merge(encodedHistogram);
+        return mergedHistogram;
+    }
+
+    @Benchmark
+    public Histogram mergeByDecoding() {
+        ByteString encodedBytes = encodedHistogram.getEncodedBytes();
+        if (encodedBytes.isEmpty()) {
+            for (long rawValue : encodedHistogram.getOrderedRawValueList()) {
+                mergedByDecodingHistogram.recordValue(rawValue);
+            }
+        } else {
+            mergedByDecodingHistogram.add(
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+        }
+        return mergedByDecodingHistogram;
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getValueAtPercentile(50) + histogram.getValueAtPercentile(95)
+                + histogram.getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// measures the profile merging that is performed by central rollups, which merge the serialized
+// profiles of every child row into a single profile
+//
+// mergeSerialized is the merge done by central rollups now (merging directly from the serialized
+// bytes)
+// mergeParsed is the merge done prior to that (parsing into a Profile first)
+//
+// run with -prof gc to see the allocation rate difference between the two
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    // number of stack trace samples in each profile being merged, e.g. a 1 minute aggregate of a
+    // busy transaction name with the default profiling interval (1 second) spread over multiple
+    // threads is in the hundreds to thousands of samples
+    @Param({"100", "1000"})
+    private int samples;
+
+    // number of profiles being merged, e.g. a rollup to rollup level 2 (30 minutes) from rollup
+    // level 1 (5 minutes) merges 6 profiles, and a rollup from child agents merges one profile per
+    // child agent
+    @Param({"6", "48"})
+    private int profiles;
+
+    private List<ByteBuffer> serializedProfiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        serializedProfiles = Lists.newArrayList();
+        for (int i = 0; i < profiles; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < samples; j++) {
+                profile.merge(createStackTrace(random), Thread.State.RUNNABLE);
+            }
+            serializedProfiles.add(ByteBuffer.wrap(profile.toProto().toByteArray()));
+        }
+    }
+
+    @Benchmark
+    public Profile mergeSerialized() throws IOException {
+        MutableProfile profile = new MutableProfile();
+        for (ByteBuffer serializedProfile : serializedProfiles) {
+            profile.merge(serializedProfile);
+        }
+        return profile.toProto();
+    }
+
+    @Benchmark
+    public Profile mergeParsed() throws IOException {
+        MutableProfile profile = new MutableProfile();
+        for (ByteBuffer serializedProfile : serializedProfiles) {
+            profile.merge(Profile.parseFrom(serializedProfile.duplicate()));
+        }
+        return profile.toProto();
+    }
+
+    // stack traces share a common base (e.g. thread run method, servlet container, framework) and
+    // then branch out randomly into a limited number of application methods at each level
+    private static List<StackTraceElement> createStackTrace(Random random) {
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        int depth = 30 + random.nextInt(20);
+        for (int i = 0; i < depth; i++) {
+            String className;
+            String methodName;
+            int lineNumber;
+            if (i < 30) {
+                className = "org.example.framework.Layer" + i;
+                methodName = "invoke";
+                lineNumber = 100 + i;
+            } else {
+                int n = random.nextInt(4);
+                className = "org.example.app.Service" + n;
+                methodName = "method" + n;
+                lineNumber = 10 * n + random.nextInt(2);
+            }
+            stackTrace.add(new StackTraceElement(className, methodName,
+                    className.substring(className.lastIndexOf('.') + 1) + ".java", lineNumber));
+        }
+        // MutableProfile.merge() expects the leaf frame first
+        return Lists.reverse(stackTrace);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.glowroot.agent.model.ThreadStatsComponent;
+import org.glowroot.agent.util.ThreadAllocatedBytes;
+
+// measures the cost of capturing thread stats once (this happens twice per transaction, once at
+// start and once at completion, so twice the difference between the two is the latency that is
+// saved on every transaction, which is most noticeable on sub-millisecond transactions)
+//
+// byThreadId is the capture done prior to using current thread counters
+// currentThread is the capture done by ThreadStatsComponent now
+// currentThreadSkipBlockedAndWaited is the capture done under
+// -Dglowroot.transaction.threadStats.skipBlockedAndWaited=true
+// threadStatsComponent is a full transaction's worth of captures (start and completion) done by
+// ThreadStatsComponent, including allocated bytes
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    // the JVM looks up threads by id with a linear scan over all live threads
+    @Param({"10", "1000"})
+    private int otherThreads;
+
+    private long threadId;
+    private ThreadAllocatedBytes threadAllocatedBytes;
+
+    private CountDownLatch latch;
+    private List<Thread> threads;
+
+    @Setup
+    public void setup() {
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+        threadId = Thread.currentThread().getId();
+        threadAllocatedBytes = ThreadAllocatedBytes.create().getService();
+        latch = new CountDownLatch(1);
+        threads = Lists.newArrayList();
+        for (int i = 0; i < otherThreads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        latch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    public void byThreadId(Blackhole blackhole) {
+        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+        blackhole.consume(threadMXBean.getThreadCpuTime(threadId));
+        blackhole.consume(threadInfo.getBlockedTime());
+        blackhole.consume(threadInfo.getWaitedTime());
+    }
+
+    @Benchmark
+    public void currentThread(Blackhole blackhole) {
+        blackhole.consume(threadMXBean.getCurrentThreadCpuTime());
+        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+        blackhole.consume(threadInfo.getBlockedTime());
+        blackhole.consume(threadInfo.getWaitedTime());
+    }
+
+    @Benchmark
+    public void currentThreadSkipBlockedAndWaited(Blackhole blackhole) {
+        blackhole.consume(threadMXBean.getCurrentThreadCpuTime());
+    }
+
+    @Benchmark
+    public void threadStatsComponent(Blackhole blackhole) {
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(threadAllocatedBytes);
+        threadStatsComponent.onComplete();
+        blackhole.consume(threadStatsComponent.getThreadStats());
+    }
+}
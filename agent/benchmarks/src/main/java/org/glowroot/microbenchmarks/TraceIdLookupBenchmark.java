@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.impl.BytecodeServiceImpl;
+import org.glowroot.agent.impl.PreloadSomeSuperTypesCache;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TraceCollector;
+import org.glowroot.agent.impl.Transaction;
+import org.glowroot.agent.impl.TransactionProcessor;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.impl.TransactionService;
+import org.glowroot.agent.live.LiveTraceRepositoryImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.common.util.Clock;
+import org.glowroot.microbenchmarks.support.TransactionWorthyAspect.TransactionWorthyAdvice;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage.Environment;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEvent;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// measures looking up a live trace by trace id through LiveTraceRepositoryImpl, both for active
+// transactions and for completed transactions that are still pending storage, with a growing number
+// of active transactions (the lookup should not depend on the number of active transactions)
+//
+// this creates its own agent components (TransactionRegistry, TraceCollector, etc.), so it needs to
+// be run without -javaagent and with glowroot-agent-core-unshaded on the classpath
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TraceIdLookupBenchmark {
+
+    // this fits in the error trace lane of TraceCollector
+    private static final int PENDING_TRANSACTIONS = 50;
+
+    @Param({"100", "10000"})
+    private int activeTransactions;
+
+    private File tmpDir;
+    private CountDownLatch storageLatch;
+    private TraceCollector traceCollector;
+    private TransactionProcessor transactionProcessor;
+    private LiveTraceRepositoryImpl liveTraceRepository;
+    private List<String> activeTraceIds;
+    private List<String> pendingTraceIds;
+    private int nextActive;
+    private int nextPending;
+
+    @Setup
+    public void setup() throws Exception {
+        tmpDir = Files.createTempDir();
+        storageLatch = new CountDownLatch(1);
+        Clock clock = Clock.systemClock();
+        Ticker ticker = Ticker.systemTicker();
+        Collector collector = new BlockingCollector(storageLatch);
+        ConfigService configService = ConfigService.create(ImmutableList.of(tmpDir), false,
+                Collections.<PluginDescriptor>emptyList());
+        TransactionRegistry transactionRegistry = new TransactionRegistry();
+        TransactionService transactionService = TransactionService.create(transactionRegistry,
+                configService, new TimerNameCache(), ticker, clock);
+        traceCollector = new TraceCollector(configService, collector, clock, ticker);
+        transactionProcessor =
+                new TransactionProcessor(collector, traceCollector, configService, 60000, clock);
+        transactionService.setTransactionProcessor(transactionProcessor);
+        BytecodeServiceImpl bytecodeService = new BytecodeServiceImpl(transactionRegistry,
+                transactionService,
+                new PreloadSomeSuperTypesCache(new File(tmpDir, "preload-cache"), 100, clock));
+        liveTraceRepository =
+                new LiveTraceRepositoryImpl(transactionRegistry, traceCollector, clock, ticker);
+        TimerName timerName = new TimerNameCache().getTimerName(TransactionWorthyAdvice.class);
+        ThreadContextThreadLocal.Holder threadContextHolder =
+                transactionRegistry.getCurrentThreadContextHolder();
+
+        // completed transactions with errors are moved to the error trace lane, where they stay
+        // pending since the collector is blocked
+        pendingTraceIds = Lists.newArrayList();
+        for (int i = 0; i < PENDING_TRANSACTIONS; i++) {
+            TraceEntry traceEntry = bytecodeService
+                    .createOptionalThreadContext(threadContextHolder, 0, 0)
+                    .startTransaction("Microbenchmark", "pending", MessageSupplier.create("x"),
+                            timerName);
+            // the pending transactions are started one at a time, so this is the only active one
+            Transaction transaction =
+                    Iterables.getOnlyElement(transactionRegistry.getTransactions());
+            pendingTraceIds.add(transaction.getTraceId());
+            traceEntry.endWithError("pending");
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            while (transaction.isActive() && stopwatch.elapsed(SECONDS) < 10) {
+                Thread.sleep(1);
+            }
+            threadContextHolder.set(null);
+        }
+        // active transactions are started and never ended, the thread context holder is reset
+        // after each one so that the next one starts a new transaction instead of a nested trace
+        // entry
+        activeTraceIds = Lists.newArrayList();
+        for (int i = 0; i < activeTransactions; i++) {
+            bytecodeService.createOptionalThreadContext(threadContextHolder, 0, 0)
+                    .startTransaction("Microbenchmark", "active", MessageSupplier.create("x"),
+                            timerName);
+            threadContextHolder.set(null);
+        }
+        for (Transaction transaction : transactionRegistry.getTransactions()) {
+            activeTraceIds.add(transaction.getTraceId());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storageLatch.countDown();
+        transactionProcessor.close();
+        traceCollector.close();
+        deleteRecursively(tmpDir);
+    }
+
+    @Benchmark
+    public Profile active() {
+        return liveTraceRepository.getMainThreadProfile("", nextActiveTraceId());
+    }
+
+    @Benchmark
+    public Profile pending() {
+        return liveTraceRepository.getMainThreadProfile("", nextPendingTraceId());
+    }
+
+    private String nextActiveTraceId() {
+        if (nextActive == activeTraceIds.size()) {
+            nextActive = 0;
+        }
+        return activeTraceIds.get(nextActive++);
+    }
+
+    private String nextPendingTraceId() {
+        if (nextPending == pendingTraceIds.size()) {
+            nextPending = 0;
+        }
+        return pendingTraceIds.get(nextPending++);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class BlockingCollector implements Collector {
+
+        private final CountDownLatch storageLatch;
+
+        private BlockingCollector(CountDownLatch storageLatch) {
+            this.storageLatch = storageLatch;
+        }
+
+        @Override
+        public void init(List<File> confDirs, Environment environment, AgentConfig agentConfig,
+                AgentConfigUpdater agentConfigUpdater) {}
+
+        @Override
+        public void collectAggregates(AggregateReader aggregateReader) {}
+
+        @Override
+        public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
+
+        @Override
+        public void collectTrace(TraceReader traceReader) throws Exception {
+            storageLatch.await();
+        }
+
+        @Override
+        public void log(LogEvent logEvent) {}
+    }
+}
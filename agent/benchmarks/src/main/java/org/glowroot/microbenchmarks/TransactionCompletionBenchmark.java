@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures throughput of concurrent transaction completion (which is dominated by the hand off to
+// the aggregate processing thread) at increasing numbers of threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class TransactionCompletionBenchmark {
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+}
@@ -75,8 +75,8 @@ class AggregateCollector {
     private @MonotonicNonNull MutableProfile auxThreadProfile;
 
     // lock is primarily for visibility (there is almost no contention since written via a single
-    // thread and flushed afterwards via a different thread, with potential concurrent access by the
-    // UI for "live" data when running the embedded collector)
+    // TransactionProcessor lane and flushed afterwards via a different thread, with potential
+    // concurrent access by the UI for "live" data when running the embedded collector)
     private final Object lock = new Object();
 
     AggregateCollector(@Nullable String transactionName, int maxQueryAggregates,
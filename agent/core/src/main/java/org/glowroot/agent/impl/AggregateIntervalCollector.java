@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -56,6 +57,10 @@ public class AggregateIntervalCollector {
     private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
             Maps.newConcurrentMap();
 
+    // transactions that have been assigned to this interval but not yet added
+    private final AtomicInteger pendingAdds = new AtomicInteger();
+    private final Object pendingAddsLock = new Object();
+
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
             Clock clock) {
@@ -73,10 +78,14 @@ public class AggregateIntervalCollector {
     public void add(Transaction transaction) {
         IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
         if (typeCollector == null) {
-            // don't need to worry about race condition here because add() is only called from a
-            // single thread (TransactionProcessorLoop)
+            // add() is called concurrently from the TransactionProcessor lanes, which are
+            // partitioned by transaction name, so multiple lanes can race on the same type
             typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transaction.getTransactionType(), typeCollector);
+            IntervalTypeCollector existing =
+                    typeCollectors.putIfAbsent(transaction.getTransactionType(), typeCollector);
+            if (existing != null) {
+                typeCollector = existing;
+            }
         }
         typeCollector.add(transaction);
     }
@@ -211,6 +220,28 @@ public class AggregateIntervalCollector {
         return typeCollectors.keySet();
     }
 
+    void beginAdd() {
+        pendingAdds.incrementAndGet();
+    }
+
+    void endAdd() {
+        if (pendingAdds.decrementAndGet() == 0) {
+            synchronized (pendingAddsLock) {
+                pendingAddsLock.notifyAll();
+            }
+        }
+    }
+
+    // this is only called once per interval (prior to flush), after which no more adds can be
+    // assigned to this interval
+    void awaitPendingAdds() throws InterruptedException {
+        synchronized (pendingAddsLock) {
+            while (pendingAdds.get() > 0) {
+                pendingAddsLock.wait();
+            }
+        }
+    }
+
     void flush(Collector collector) throws Exception {
         collector.collectAggregates(new AggregateReaderImpl(captureTime));
     }
@@ -249,23 +280,33 @@ public class AggregateIntervalCollector {
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                // don't need to worry about race condition here because add() is only called from a
-                // single thread (TransactionProcessorLoop)
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
-                    transactionAggregateCollector =
-                            createTransactionAggregateCollector(transaction.getTransactionName());
-                } else {
-                    transactionAggregateCollector =
-                            transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
-                    if (transactionAggregateCollector == null) {
-                        transactionAggregateCollector =
-                                createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
-                    }
-                }
+                transactionAggregateCollector =
+                        getOrCreateTransactionAggregateCollector(transaction.getTransactionName());
             }
             merge(transaction, transactionAggregateCollector);
         }
 
+        // synchronized since lanes processing different transaction names of the same transaction
+        // type can race here, and the limit check needs to be consistent with the creation
+        private synchronized AggregateCollector getOrCreateTransactionAggregateCollector(
+                String transactionName) {
+            AggregateCollector transactionAggregateCollector =
+                    transactionAggregateCollectors.get(transactionName);
+            if (transactionAggregateCollector != null) {
+                return transactionAggregateCollector;
+            }
+            if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
+                return createTransactionAggregateCollector(transactionName);
+            }
+            transactionAggregateCollector =
+                    transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
+            if (transactionAggregateCollector == null) {
+                transactionAggregateCollector =
+                        createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
+            }
+            return transactionAggregateCollector;
+        }
+
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
                     transactionName, maxQueryAggregates, maxServiceCallAggregates);
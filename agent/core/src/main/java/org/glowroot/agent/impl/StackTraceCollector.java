@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,8 @@ import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -37,18 +39,39 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // this limits the number of frames captured from the top of each stack trace (and so the
+    // length of the safepoint needed to capture very deep stack traces), at the expense of profile
+    // trees of deeper stack traces being rooted at the deepest captured frame instead of at the
+    // thread entry point
+    private static final int MAX_STACK_DEPTH =
+            Integer.getInteger("glowroot.profiling.frame.limit", Integer.MAX_VALUE);
+
+    // when there are more active threads than this, stack traces are captured in batches that are
+    // spread out across the profiling interval, which bounds the length of each safepoint
+    private static final int BATCH_SIZE = Integer.getInteger("glowroot.profiling.batch.size", 1000);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
+    private final Ticker ticker;
+
+    // these are only written by the single processing thread
+    private volatile long totalCaptureTimeNanos;
+    private volatile long totalStackTracesCaptured;
+    private volatile long totalFramesCaptured;
+    private volatile long lastCaptureTimeNanos;
+    private volatile int lastStackTracesCaptured;
+    private volatile long lastFramesCaptured;
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     public StackTraceCollector(TransactionRegistry transactionRegistry,
-            final ConfigService configService, Random random) {
+            final ConfigService configService, Random random, Ticker ticker) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        this.ticker = ticker;
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -78,7 +101,83 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
-    static void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+    long getTotalCaptureTimeNanos() {
+        return totalCaptureTimeNanos;
+    }
+
+    long getTotalStackTracesCaptured() {
+        return totalStackTracesCaptured;
+    }
+
+    long getTotalFramesCaptured() {
+        return totalFramesCaptured;
+    }
+
+    long getLastCaptureTimeNanos() {
+        return lastCaptureTimeNanos;
+    }
+
+    int getLastStackTracesCaptured() {
+        return lastStackTracesCaptured;
+    }
+
+    long getLastFramesCaptured() {
+        return lastFramesCaptured;
+    }
+
+    // returns the number of milliseconds spent sleeping between batches
+    @VisibleForTesting
+    long runInternal(long remainingMillisInInterval, int batchSize) throws InterruptedException {
+        List<ThreadContextImpl> activeThreadContexts = getActiveThreadContexts();
+        if (activeThreadContexts.isEmpty()) {
+            // reset so that the last cycle stats don't keep reporting an older cycle
+            lastCaptureTimeNanos = 0;
+            lastStackTracesCaptured = 0;
+            lastFramesCaptured = 0;
+            return 0;
+        }
+        List<List<ThreadContextImpl>> batches = Lists.partition(activeThreadContexts, batchSize);
+        long pauseMillisBetweenBatches = remainingMillisInInterval / batches.size();
+        long captureTimeNanos = 0;
+        CaptureCounts captureCounts = new CaptureCounts();
+        for (int i = 0; i < batches.size(); i++) {
+            List<ThreadContextImpl> batch = batches.get(i);
+            if (i > 0) {
+                MILLISECONDS.sleep(pauseMillisBetweenBatches);
+                // thread contexts may have completed during the pause
+                batch = getStillActive(batch);
+            }
+            long startTick = ticker.read();
+            captureStackTraces(batch, captureCounts);
+            captureTimeNanos += ticker.read() - startTick;
+        }
+        totalCaptureTimeNanos += captureTimeNanos;
+        totalStackTracesCaptured += captureCounts.stackTraces;
+        totalFramesCaptured += captureCounts.frames;
+        lastCaptureTimeNanos = captureTimeNanos;
+        lastStackTracesCaptured = captureCounts.stackTraces;
+        lastFramesCaptured = captureCounts.frames;
+        return pauseMillisBetweenBatches * (batches.size() - 1);
+    }
+
+    private List<ThreadContextImpl> getActiveThreadContexts() {
+        List<Transaction> transactions =
+                ImmutableList.copyOf(transactionRegistry.getTransactions());
+        List<ThreadContextImpl> activeThreadContexts =
+                Lists.newArrayListWithCapacity(2 * transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+            if (mainThreadContext.isActive()) {
+                activeThreadContexts.add(mainThreadContext);
+            }
+            activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+        }
+        return activeThreadContexts;
+    }
+
+    private static void captureStackTraces(List<ThreadContextImpl> threadContexts,
+            CaptureCounts captureCounts) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
@@ -90,14 +189,33 @@ public class StackTraceCollector {
         }
         @Nullable
         ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, MAX_STACK_DEPTH);
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
+            // thread info is null if the thread has terminated in the meantime
             if (threadInfo != null) {
                 threadContext.captureStackTrace(threadInfo);
+                captureCounts.stackTraces++;
+                captureCounts.frames += threadInfo.getStackTrace().length;
+            }
+        }
+    }
+
+    private static List<ThreadContextImpl> getStillActive(List<ThreadContextImpl> threadContexts) {
+        List<ThreadContextImpl> stillActive =
+                Lists.newArrayListWithCapacity(threadContexts.size());
+        for (ThreadContextImpl threadContext : threadContexts) {
+            if (threadContext.isActive()) {
+                stillActive.add(threadContext);
             }
         }
+        return stillActive;
+    }
+
+    private static class CaptureCounts {
+        private int stackTraces;
+        private long frames;
     }
 
     private class InternalRunnable implements Runnable {
@@ -136,30 +254,17 @@ public class StackTraceCollector {
                 }
                 remainingMillisInInterval = currIntervalMillis - randomDelayMillisFromIntervalStart;
                 try {
-                    runInternal();
+                    remainingMillisInInterval -=
+                            runInternal(remainingMillisInInterval, BATCH_SIZE);
+                } catch (InterruptedException e) {
+                    // probably interrupt from config listener (see above)
+                    logger.debug(e.getMessage(), e);
+                    // re-start loop
+                    remainingMillisInInterval = 0;
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 }
             }
         }
-
-        private void runInternal() {
-            List<Transaction> transactions =
-                    ImmutableList.copyOf(transactionRegistry.getTransactions());
-            if (transactions.isEmpty()) {
-                return;
-            }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
-            for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
-                ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
-                if (mainThreadContext.isActive()) {
-                    activeThreadContexts.add(mainThreadContext);
-                }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
-            }
-            captureStackTraces(activeThreadContexts);
-        }
     }
 }
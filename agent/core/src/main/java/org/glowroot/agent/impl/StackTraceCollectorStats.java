@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public class StackTraceCollectorStats implements StackTraceCollectorStatsMXBean {
+
+    private final StackTraceCollector stackTraceCollector;
+
+    public StackTraceCollectorStats(StackTraceCollector stackTraceCollector) {
+        this.stackTraceCollector = stackTraceCollector;
+    }
+
+    @Override
+    public long getTotalCaptureTimeNanos() {
+        return stackTraceCollector.getTotalCaptureTimeNanos();
+    }
+
+    @Override
+    public long getTotalStackTracesCaptured() {
+        return stackTraceCollector.getTotalStackTracesCaptured();
+    }
+
+    @Override
+    public long getTotalFramesCaptured() {
+        return stackTraceCollector.getTotalFramesCaptured();
+    }
+
+    @Override
+    public long getLastCaptureTimeNanos() {
+        return stackTraceCollector.getLastCaptureTimeNanos();
+    }
+
+    @Override
+    public int getLastStackTracesCaptured() {
+        return stackTraceCollector.getLastStackTracesCaptured();
+    }
+
+    @Override
+    public long getLastFramesCaptured() {
+        return stackTraceCollector.getLastFramesCaptured();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -59,6 +59,10 @@ public class TimerImpl implements Timer, TransactionTimer {
 
     private static final Ticker ticker = Tickers.getTicker();
 
+    // most timers have only a handful of distinct nested timers (often just one), which are found
+    // faster by scanning the child linked list than by allocating and probing a NestedTimerMap
+    private static final int MAX_CHILDREN_WITHOUT_MAP = 4;
+
     private final ThreadContextImpl threadContext;
     private final @Nullable TimerImpl parent;
     private final TimerNameImpl timerName;
@@ -73,8 +77,10 @@ public class TimerImpl implements Timer, TransactionTimer {
     // nestedTimers is only accessed by the transaction thread so no need for volatile or
     // synchronized access during timer capture which is important
     //
-    // lazy initialize to save memory in common case where this is a leaf timer
+    // lazy initialize to save memory in common case where this is a leaf timer, or has only a few
+    // nested timers (see MAX_CHILDREN_WITHOUT_MAP)
     private @MonotonicNonNull NestedTimerMap nestedTimers;
+    private int childCount;
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
@@ -257,19 +263,40 @@ public class TimerImpl implements Timer, TransactionTimer {
     }
 
     private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
-        if (nestedTimers == null) {
-            nestedTimers = new NestedTimerMap();
-        }
         TimerNameImpl timerNameImpl = (TimerNameImpl) timerName;
-        TimerImpl nestedTimer = nestedTimers.get(timerNameImpl);
+        TimerImpl nestedTimer = getNestedTimer(timerNameImpl);
         if (nestedTimer != null) {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
         nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
         nestedTimer.start(nestedTimerStartTick);
-        nestedTimers.put(timerNameImpl, nestedTimer);
         headChild = nestedTimer;
+        if (nestedTimers != null) {
+            nestedTimers.put(timerNameImpl, nestedTimer);
+        } else if (++childCount > MAX_CHILDREN_WITHOUT_MAP) {
+            nestedTimers = new NestedTimerMap();
+            TimerImpl curr = headChild;
+            while (curr != null) {
+                nestedTimers.put(curr.timerName, curr);
+                curr = curr.nextSibling;
+            }
+        }
         return nestedTimer;
     }
+
+    private @Nullable TimerImpl getNestedTimer(TimerNameImpl timerName) {
+        if (nestedTimers != null) {
+            return nestedTimers.get(timerName);
+        }
+        TimerImpl curr = headChild;
+        while (curr != null) {
+            // timer names are guaranteed one instance per name so pointer equality can be used
+            if (curr.timerName == timerName) {
+                return curr;
+            }
+            curr = curr.nextSibling;
+        }
+        return null;
+    }
 }
@@ -22,13 +22,17 @@ import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.Striped;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
@@ -45,6 +49,7 @@ import org.glowroot.common.config.TransactionConfig.SlowThresholdOverride;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -52,19 +57,44 @@ public class TraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(TraceCollector.class);
 
-    // back pressure on writing captured data to disk/network
+    // number of threads storing traces, so that one slow write (e.g. a huge trace or a storage
+    // hiccup) does not hold up all of the other pending traces
+    private static final int STORAGE_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.trace.collector.threads", 2));
+
+    // back pressure on writing captured data to disk/network (applies to each lane separately)
     private static final int PENDING_LIMIT = 50;
 
-    private final ExecutorService dedicatedExecutor;
+    private final ExecutorService storageExecutor;
     private final Collector collector;
     private final Clock clock;
     private final Ticker ticker;
-    // covers normal complete, partial complete and partial incomplete separately
-    private final BlockingQueue<PendingTrace> pendingTraces =
-            Queues.newLinkedBlockingQueue(PENDING_LIMIT * 3);
-    private final AtomicInteger normalCompletePendingCount = new AtomicInteger();
-    private final AtomicInteger partialCompletePendingCount = new AtomicInteger();
-    private final AtomicInteger partialIncompletePendingCount = new AtomicInteger();
+
+    // lanes are drained in this priority order, so that error traces are not starved by a backlog
+    // of (typically much larger) slow and partial traces
+    private final PendingTraceLane errorLane = new PendingTraceLane("error", PENDING_LIMIT);
+    // completed traces for transactions that already have a partial trace stored are never dropped,
+    // since otherwise the stored partial trace would be left behind as the final word on the
+    // transaction (these are naturally bounded by the number of partial traces stored, which is
+    // itself bounded by the partial lane)
+    private final PendingTraceLane completionLane =
+            new PendingTraceLane("completion", Integer.MAX_VALUE);
+    private final PendingTraceLane slowLane = new PendingTraceLane("slow", PENDING_LIMIT);
+    private final PendingTraceLane partialLane = new PendingTraceLane("partial", PENDING_LIMIT);
+    private final PendingTraceLane[] lanes =
+            new PendingTraceLane[] {errorLane, completionLane, slowLane, partialLane};
+    // one permit per pending trace across all lanes
+    private final Semaphore pendingTraceCount = new Semaphore(0);
+    // index of the transactions in the lanes (and in the middle of being stored), so that checking
+    // whether a single transaction is pending (see LiveTraceRepositoryImpl) does not need to scan
+    // all of the lanes, this is a multiset since the same transaction can be pending both as a
+    // partial trace and as a completed trace
+    private final ConcurrentHashMultiset<Transaction> pendingTransactionIndex =
+            ConcurrentHashMultiset.create();
+
+    // storing a partial trace and storing the completed trace for the same transaction are
+    // serialized, so that a partial trace can never overwrite the completed trace
+    private final Striped<Lock> transactionLocks = Striped.lock(STORAGE_THREADS * 4);
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TraceCollector.class);
@@ -81,9 +111,11 @@ public class TraceCollector {
         this.collector = collector;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
-        dedicatedExecutor.execute(new TraceCollectorLoop());
+        storageExecutor = Executors.newFixedThreadPool(STORAGE_THREADS,
+                ThreadFactories.create("Glowroot-Trace-Collector-%d"));
+        for (int i = 0; i < STORAGE_THREADS; i++) {
+            storageExecutor.execute(new TraceCollectorLoop());
+        }
         configService.addConfigListener(new UpdateLocalConfig(configService));
     }
 
@@ -142,38 +174,60 @@ public class TraceCollector {
 
     public Collection<Transaction> getPendingTransactions() {
         List<Transaction> pendingTransactions = Lists.newArrayList();
-        for (PendingTrace pendingTrace : pendingTraces) {
-            pendingTransactions.add(pendingTrace.transaction());
+        for (PendingTraceLane lane : lanes) {
+            for (PendingTrace pendingTrace : lane.pendingTraces) {
+                pendingTransactions.add(pendingTrace.transaction());
+            }
         }
         return pendingTransactions;
     }
 
+    public boolean isPending(Transaction transaction) {
+        return pendingTransactionIndex.contains(transaction);
+    }
+
+    int getErrorQueueDepth() {
+        return errorLane.pendingTraces.size();
+    }
+
+    int getCompletionQueueDepth() {
+        return completionLane.pendingTraces.size();
+    }
+
+    int getSlowQueueDepth() {
+        return slowLane.pendingTraces.size();
+    }
+
+    int getPartialQueueDepth() {
+        return partialLane.pendingTraces.size();
+    }
+
+    long getTotalErrorTracesDropped() {
+        return errorLane.droppedCount.get();
+    }
+
+    long getTotalSlowTracesDropped() {
+        return slowLane.droppedCount.get();
+    }
+
+    long getTotalPartialTracesDropped() {
+        return partialLane.droppedCount.get();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
-        // shutdownNow() is needed here to send interrupt to collector thread
-        dedicatedExecutor.shutdownNow();
-        if (!dedicatedExecutor.awaitTermination(10, SECONDS)) {
+        // shutdownNow() is needed here to send interrupt to collector threads
+        storageExecutor.shutdownNow();
+        if (!storageExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
     void collectTrace(Transaction transaction) {
         boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
-            return;
-        }
-        // don't need to worry about race condition since only ever called from a single thread
-        if (transaction.isPartiallyStored()
-                && partialCompletePendingCount.get() >= PENDING_LIMIT) {
-            backPressureLogger.warn("not storing a completed (and once partial) trace because of an"
-                    + " excessive backlog of {} completed (and once partial) traces already waiting"
-                    + " to be stored", PENDING_LIMIT);
-            return;
-        } else if (!transaction.isPartiallyStored()
-                && normalCompletePendingCount.get() >= PENDING_LIMIT) {
-            backPressureLogger.warn("not storing a completed trace because of an excessive backlog"
-                    + " of {} completed traces already waiting to be stored", PENDING_LIMIT);
+        boolean error = shouldStoreError(transaction);
+        if (!slow && !error) {
             return;
         }
         PendingTrace pendingTransaction = ImmutablePendingTrace.builder()
@@ -181,30 +235,32 @@ public class TraceCollector {
                 .slow(slow)
                 .partial(false)
                 .build();
-        if (!pendingTraces.offer(pendingTransaction)) {
-            // this should never happen
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT * 3);
+        if (transaction.isPartiallyStored()) {
+            completionLane.offer(pendingTransaction);
+        } else if (error) {
+            errorLane.offer(pendingTransaction);
+        } else {
+            slowLane.offer(pendingTransaction);
         }
     }
 
     public void storePartialTrace(Transaction transaction) {
-        // don't need to worry about race condition since only ever called from a single thread
-        if (partialIncompletePendingCount.get() >= PENDING_LIMIT) {
-            backPressureLogger.warn("not storing a partial trace because of an excessive backlog of"
-                    + " {} partial traces already waiting to be stored", PENDING_LIMIT);
-            return;
-        }
         PendingTrace pendingTransaction = ImmutablePendingTrace.builder()
                 .transaction(transaction)
                 .slow(false)
                 .partial(true)
                 .build();
-        if (!pendingTraces.offer(pendingTransaction)) {
-            // this should never happen
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT * 3);
+        partialLane.offer(pendingTransaction);
+    }
+
+    private @Nullable PendingTrace pollByPriority() {
+        for (PendingTraceLane lane : lanes) {
+            PendingTrace pendingTrace = lane.pendingTraces.poll();
+            if (pendingTrace != null) {
+                return pendingTrace;
+            }
         }
+        return null;
     }
 
     private static @Nullable Long getSlowThreshold(
@@ -283,17 +339,56 @@ public class TraceCollector {
         }
     }
 
+    private class PendingTraceLane {
+
+        private final String name;
+        private final int limit;
+        private final BlockingQueue<PendingTrace> pendingTraces;
+        private final AtomicLong droppedCount = new AtomicLong();
+
+        private PendingTraceLane(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+            pendingTraces = Queues.newLinkedBlockingQueue(limit);
+        }
+
+        private void offer(PendingTrace pendingTrace) {
+            // added to the index first so that the transaction is never briefly missing from both
+            // the active transactions and the pending transactions
+            pendingTransactionIndex.add(pendingTrace.transaction());
+            if (pendingTraces.offer(pendingTrace)) {
+                pendingTraceCount.release();
+            } else {
+                pendingTransactionIndex.remove(pendingTrace.transaction());
+                droppedCount.incrementAndGet();
+                backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
+                        + " {} traces already waiting to be stored", limit, name);
+            }
+        }
+    }
+
     private class TraceCollectorLoop implements Runnable {
 
         @Override
         public void run() {
             while (!closed) {
                 try {
-                    PendingTrace pendingTrace = pendingTraces.take();
-                    if (pendingTrace.partial()) {
-                        collectPartial(pendingTrace.transaction());
-                    } else {
-                        collectCompleted(pendingTrace.transaction(), pendingTrace.slow());
+                    pendingTraceCount.acquire();
+                    // each permit corresponds to a trace that has already been added to one of the
+                    // lanes, so this is never null
+                    PendingTrace pendingTrace = checkNotNull(pollByPriority());
+                    Transaction transaction = pendingTrace.transaction();
+                    Lock lock = transactionLocks.get(transaction);
+                    lock.lock();
+                    try {
+                        if (pendingTrace.partial()) {
+                            collectPartial(transaction);
+                        } else {
+                            collectCompleted(transaction, pendingTrace.slow());
+                        }
+                    } finally {
+                        lock.unlock();
+                        pendingTransactionIndex.remove(transaction);
                     }
                 } catch (InterruptedException e) {
                     // probably shutdown requested (see close method above)
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public class TraceCollectorStats implements TraceCollectorStatsMXBean {
+
+    private final TraceCollector traceCollector;
+
+    public TraceCollectorStats(TraceCollector traceCollector) {
+        this.traceCollector = traceCollector;
+    }
+
+    @Override
+    public int getErrorQueueDepth() {
+        return traceCollector.getErrorQueueDepth();
+    }
+
+    @Override
+    public int getCompletionQueueDepth() {
+        return traceCollector.getCompletionQueueDepth();
+    }
+
+    @Override
+    public int getSlowQueueDepth() {
+        return traceCollector.getSlowQueueDepth();
+    }
+
+    @Override
+    public int getPartialQueueDepth() {
+        return traceCollector.getPartialQueueDepth();
+    }
+
+    @Override
+    public long getTotalErrorTracesDropped() {
+        return traceCollector.getTotalErrorTracesDropped();
+    }
+
+    @Override
+    public long getTotalSlowTracesDropped() {
+        return traceCollector.getTotalSlowTracesDropped();
+    }
+
+    @Override
+    public long getTotalPartialTracesDropped() {
+        return traceCollector.getTotalPartialTracesDropped();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public interface TraceCollectorStatsMXBean {
+
+    // number of traces waiting to be stored in each lane
+    int getErrorQueueDepth();
+    int getCompletionQueueDepth();
+    int getSlowQueueDepth();
+    int getPartialQueueDepth();
+
+    // number of traces not stored because the lane was full (the completion lane is never full)
+    long getTotalErrorTracesDropped();
+    long getTotalSlowTracesDropped();
+    long getTotalPartialTracesDropped();
+}
@@ -252,7 +252,9 @@ public class Transaction {
             // object to lock on
             synchronized (this) {
                 if (traceId == null) {
-                    traceId = buildTraceId(startTime);
+                    String newTraceId = buildTraceId(startTime);
+                    transactionRegistry.indexTraceId(newTraceId, this);
+                    traceId = newTraceId;
                 }
             }
         }
@@ -689,6 +691,13 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    public boolean isActive() {
+        SelfRemovableEntry transactionEntry = this.transactionEntry;
+        // transaction entry can be null (or not yet visible) for a brief moment right after the
+        // transaction is added to the transaction registry
+        return transactionEntry == null || !transactionEntry.isRemoved();
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
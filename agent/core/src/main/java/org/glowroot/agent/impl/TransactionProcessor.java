@@ -20,8 +20,8 @@ import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -48,6 +48,12 @@ public class TransactionProcessor {
 
     // back pressure on transaction collection
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
+    // number of threads that collect traces and merge completed transactions into the aggregates
+    // (capture times and aggregate intervals are still assigned by a single ordering thread, and
+    // each transaction name is always processed by the same lane)
+    private static final int PROCESSING_LANES =
+            Math.max(1, Integer.getInteger("glowroot.transaction.processing.threads",
+                    Math.min(4, Runtime.getRuntime().availableProcessors())));
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
@@ -59,6 +65,7 @@ public class TransactionProcessor {
             Queues.newLinkedBlockingQueue(AGGREGATE_PENDING_LIMIT);
 
     private final ExecutorService processingExecutor;
+    private final ExecutorService laneExecutor;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
     private final TraceCollector traceCollector;
@@ -67,14 +74,21 @@ public class TransactionProcessor {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    @GuardedBy("queueLock")
-    private PendingTransaction tail = head;
-    @GuardedBy("queueLock")
-    private int queueLength;
-    private final Object queueLock = new Object();
+    // the transaction queue is a lock free multi-producer single-consumer linked list
+    //
+    // producers atomically swap themselves in as the new tail and then link the previous tail to
+    // themselves, so there can be a brief window where tail has moved but the link from the
+    // previous tail is not yet visible to the consumer
+    //
+    // head is only accessed by the single processing thread
+    private PendingTransaction head = new PendingTransaction(null);
+    private final AtomicReference<PendingTransaction> tail =
+            new AtomicReference<PendingTransaction>(head);
+    // this counts transactions from the time they enter the queue until they are merged into the
+    // aggregates by one of the lanes
+    private final AtomicInteger queueLength = new AtomicInteger();
+
+    private final ProcessingLane[] lanes;
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
@@ -90,6 +104,8 @@ public class TransactionProcessor {
         this.aggregateIntervalMillis = aggregateIntervalMillis;
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        laneExecutor = Executors.newFixedThreadPool(PROCESSING_LANES,
+                ThreadFactories.create("Glowroot-Aggregate-Processing-Lane-%d"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
         activeIntervalCollector =
@@ -97,6 +113,11 @@ public class TransactionProcessor {
                         configService.getAdvancedConfig().maxTransactionAggregates(),
                         configService.getAdvancedConfig().maxQueryAggregates(),
                         configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        lanes = new ProcessingLane[PROCESSING_LANES];
+        for (int i = 0; i < PROCESSING_LANES; i++) {
+            lanes[i] = new ProcessingLane();
+            laneExecutor.execute(lanes[i]);
+        }
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
@@ -131,27 +152,22 @@ public class TransactionProcessor {
     }
 
     void processOnCompletion(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        boolean exceededLimit = false;
-        synchronized (queueLock) {
-            if (queueLength < TRANSACTION_PENDING_LIMIT) {
-                newTail.captureTime = clock.currentTimeMillis();
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            } else {
-                exceededLimit = true;
-            }
-        }
-        if (exceededLimit) {
+        if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            queueLength.decrementAndGet();
             backPressureLogger.warn("not capturing a transaction because of an excessive backlog of"
                     + " {} transactions already waiting to be captured", TRANSACTION_PENDING_LIMIT);
             transaction.setCaptureTime(clock.currentTimeMillis());
             transaction.removeFromActiveTransactions();
+            return;
         }
+        PendingTransaction newTail = new PendingTransaction(transaction);
+        PendingTransaction prevTail = tail.getAndSet(newTail);
+        // captureTime is read only after swapping in the new tail, which is what allows the queue
+        // reader to assume that once the queue is observed empty (head == tail) at time T, no new
+        // transactions can come in with captureTime prior to T (see maybeEndOfInterval() below)
+        newTail.captureTime = clock.currentTimeMillis();
+        // this publishes newTail (including captureTime) to the queue reader
+        prevTail.next = newTail;
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -177,6 +193,11 @@ public class TransactionProcessor {
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        // shutdownNow() is needed here to send interrupt to lane threads
+        laneExecutor.shutdownNow();
+        if (!laneExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -186,6 +207,10 @@ public class TransactionProcessor {
 
     private class TransactionProcessorLoop implements Runnable {
 
+        // concurrent producers can read the clock in a slightly different order than they are
+        // placed in the queue, so the queue reader enforces non-decreasing captureTime itself
+        private long lastCaptureTime;
+
         @Override
         public void run() {
             while (!closed) {
@@ -209,52 +234,52 @@ public class TransactionProcessor {
                 }
                 return;
             }
-            // remove transaction from list of active transactions
-            // used to do this at the very end of Transaction.end(), but moved to here to remove the
-            // (minor) cost from the transaction main path
+            // remove head (the previous head is no longer reachable by producers, since tail can
+            // only ever point to pendingTransaction or later)
+            head = pendingTransaction;
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.setCaptureTime(pendingTransaction.captureTime);
-
-            // send to the trace collector before removing from transaction registry so that the
-            // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
-            // between removing the transaction from the registry and storing it
-            traceCollector.collectTrace(transaction);
 
-            transaction.removeFromActiveTransactions();
+            long captureTime = Math.max(pendingTransaction.captureTime, lastCaptureTime);
+            lastCaptureTime = captureTime;
+            transaction.setCaptureTime(captureTime);
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                flushAndResetActiveIntervalCollector(captureTime);
             }
-            activeIntervalCollector.add(transaction);
+            // the interval collector is assigned here (in order) even though the transaction is
+            // merged into it later by one of the lanes, and the interval collector is not flushed
+            // until all of its assigned transactions have been merged into it
+            activeIntervalCollector.beginAdd();
+            pendingTransaction.intervalCollector = activeIntervalCollector;
+            // lanes are partitioned by transaction name, so that an application with a single
+            // transaction type still spreads across all of the lanes, and transactions of a given
+            // name are still merged into their transaction aggregate collector in the same order
+            // as they are assigned here (which matters for which queries and service calls make it
+            // under the limits), the overall aggregate collector for the transaction type is
+            // shared across lanes and is merged into under its own lock
+            String transactionName = transaction.getTransactionName();
+            lanes[(transactionName.hashCode() & Integer.MAX_VALUE) % lanes.length]
+                    .enqueue(pendingTransaction);
         }
 
         private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+            // current time must be read prior to checking that the queue is empty
+            long currentTime = clock.currentTimeMillis();
+            if (currentTime <= activeIntervalCollector.getCaptureTime()) {
+                return;
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushAndResetActiveIntervalCollector(currentTime);
+            if (tail.get() != head) {
+                // something just crept into the queue (or is in the middle of being linked in),
+                // possibly still something from active interval, it will get picked up right away
+                // and if it is in next interval it will force active aggregate to be flushed
+                // anyways
+                return;
             }
+            // safe to flush, no other pending transactions can enter queue with earlier time
+            // (since any producer that has not yet swapped itself in as tail will read its
+            // captureTime after the check above)
+            lastCaptureTime = Math.max(currentTime, lastCaptureTime);
+            flushAndResetActiveIntervalCollector(currentTime);
         }
 
         private void flushAndResetActiveIntervalCollector(long currentTime) {
@@ -282,6 +307,58 @@ public class TransactionProcessor {
         }
     }
 
+    private class ProcessingLane implements Runnable {
+
+        // the total across lanes is bounded by TRANSACTION_PENDING_LIMIT (see queueLength)
+        private final BlockingQueue<PendingTransaction> laneQueue =
+                Queues.newLinkedBlockingQueue();
+
+        private void enqueue(PendingTransaction pendingTransaction) {
+            // this publishes pendingTransaction (including intervalCollector) to the lane
+            laneQueue.add(pendingTransaction);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    processOne(laneQueue.take());
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        private void processOne(PendingTransaction pendingTransaction) {
+            Transaction transaction = checkNotNull(pendingTransaction.transaction);
+            AggregateIntervalCollector intervalCollector =
+                    checkNotNull(pendingTransaction.intervalCollector);
+            pendingTransaction.transaction = null;
+            pendingTransaction.intervalCollector = null;
+            try {
+                // send to the trace collector before removing from transaction registry so that
+                // the trace collector can cover the gap (via
+                // TraceCollector.getPendingTransactions()) between removing the transaction from
+                // the registry and storing it
+                traceCollector.collectTrace(transaction);
+
+                // remove transaction from list of active transactions
+                // used to do this at the very end of Transaction.end(), but moved to here to
+                // remove the (minor) cost from the transaction main path
+                transaction.removeFromActiveTransactions();
+
+                intervalCollector.add(transaction);
+            } finally {
+                intervalCollector.endAdd();
+                queueLength.decrementAndGet();
+            }
+        }
+    }
+
     private class AggregateFlushingLoop implements Runnable {
         @Override
         public void run() {
@@ -295,6 +372,7 @@ public class TransactionProcessor {
                         }
                         intervalCollector = pendingIntervalCollectors.remove();
                     }
+                    intervalCollector.awaitPendingAdds();
                     intervalCollector.flush(collector);
                 } catch (InterruptedException e) {
                     // probably shutdown requested (see close method above)
@@ -309,10 +387,13 @@ public class TransactionProcessor {
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
+        private @Nullable Transaction transaction; // only null for head
         private volatile long captureTime;
         private volatile @Nullable PendingTransaction next;
 
+        // this is written by the ordering thread and published to the lane via the lane queue
+        private @Nullable AggregateIntervalCollector intervalCollector;
+
         private PendingTransaction(@Nullable Transaction transaction) {
             this.transaction = transaction;
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,9 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
@@ -27,6 +30,19 @@ public class TransactionRegistry {
     private final IterableWithSelfRemovableEntries<Transaction> transactions =
             new IterableWithSelfRemovableEntries<Transaction>();
 
+    // index of transactions by trace id, which avoids scanning all active transactions when
+    // looking up a single trace
+    //
+    // transactions are only added to the index when their trace id is first generated (see
+    // Transaction.getTraceId()), which is sufficient since a trace id cannot be looked up before it
+    // has been generated and handed out
+    //
+    // values are weak so that transactions drop out of the index once they are no longer active
+    // or pending and have been garbage collected, so lookups still need to check that the
+    // transaction is active or pending
+    private final ConcurrentMap<String, Transaction> transactionsByTraceId =
+            new MapMaker().weakValues().makeMap();
+
     // active thread context being executed by the current thread
     private final ThreadContextThreadLocal currentThreadContext =
             new ThreadContextThreadLocal();
@@ -51,4 +67,12 @@ public class TransactionRegistry {
     public Iterable<Transaction> getTransactions() {
         return transactions;
     }
+
+    public @Nullable Transaction getTransaction(String traceId) {
+        return transactionsByTraceId.get(traceId);
+    }
+
+    void indexTraceId(String traceId, Transaction transaction) {
+        transactionsByTraceId.put(traceId, transaction);
+    }
 }
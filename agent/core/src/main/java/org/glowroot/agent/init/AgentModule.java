@@ -48,12 +48,15 @@ import org.glowroot.agent.impl.PluginServiceImpl;
 import org.glowroot.agent.impl.PluginServiceImpl.ConfigServiceFactory;
 import org.glowroot.agent.impl.PreloadSomeSuperTypesCache;
 import org.glowroot.agent.impl.StackTraceCollector;
+import org.glowroot.agent.impl.StackTraceCollectorStats;
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.agent.impl.TraceCollector;
+import org.glowroot.agent.impl.TraceCollectorStats;
 import org.glowroot.agent.impl.TransactionProcessor;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.impl.TransactionService;
 import org.glowroot.agent.init.PreCheckLoadedClasses.PreCheckClassFileTransformer;
+import org.glowroot.agent.live.ClasspathPreAnalyzer;
 import org.glowroot.agent.live.LiveAggregateRepositoryImpl;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
@@ -72,6 +75,8 @@ import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
+import org.glowroot.agent.weaving.WeavingStats;
+import org.glowroot.agent.weaving.WovenClassCache;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.ScheduledRunnable;
@@ -88,6 +93,9 @@ public class AgentModule {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final boolean PRE_ANALYZE_CLASSPATH =
+            Boolean.getBoolean("glowroot.weaving.preAnalyzeClasspath");
+
     // 1 minute
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
@@ -100,6 +108,7 @@ public class AgentModule {
     private final AdviceCache adviceCache;
     private final PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable WovenClassCache wovenClassCache;
     private final Weaver weaver;
     private final Random random;
 
@@ -153,11 +162,21 @@ public class AgentModule {
         analyzedWorld =
                 new AnalyzedWorld(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                         adviceCache.getMixinTypes(), preloadSomeSuperTypesCache);
+        if (instrumentation != null && glowrootJarFile != null) {
+            wovenClassCache = WovenClassCache.create(new File(tmpDir, "woven-class-cache"),
+                    100 * 1024 * 1024, getWovenClassCacheFingerprint(glowrootJarFile, pluginCache,
+                            configService),
+                    adviceCache.getAdvisorsSupplier());
+        } else {
+            // instrumentation is null when debugging with LocalContainer, and glowrootJarFile is
+            // null when running from an IDE, neither of which benefit from this cache
+            wovenClassCache = null;
+        }
         TimerNameCache timerNameCache = new TimerNameCache();
 
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                adviceCache.getMixinTypes(), analyzedWorld, wovenClassCache, transactionRegistry,
+                ticker, timerNameCache, configService);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -187,6 +206,14 @@ public class AgentModule {
             jvmRetransformClassesSupported = false;
         } else {
             PreInitializeWeavingClasses.preInitializeClasses();
+            ClasspathPreAnalyzer.Result classpathPreAnalyzerResult = null;
+            if (PRE_ANALYZE_CLASSPATH) {
+                // this needs to happen before the weaving transformer is added so that none of the
+                // pre-analyzed classes have been loaded yet
+                classpathPreAnalyzerResult = ClasspathPreAnalyzer.preAnalyze(analyzedWorld,
+                        ClassLoader.getSystemClassLoader(),
+                        Runtime.getRuntime().availableProcessors());
+            }
             WeavingClassFileTransformer transformer =
                     new WeavingClassFileTransformer(weaver, instrumentation);
             if (instrumentation.isRetransformClassesSupported()) {
@@ -196,6 +223,9 @@ public class AgentModule {
                 instrumentation.addTransformer(transformer);
                 jvmRetransformClassesSupported = false;
             }
+            if (classpathPreAnalyzerResult != null) {
+                ClasspathPreAnalyzer.logResult(classpathPreAnalyzerResult);
+            }
             if (preCheckClassFileTransformer != null) {
                 for (Map.Entry<String, Exception> entry : preCheckClassFileTransformer
                         .getImportantClassLoadingPoints().entrySet()) {
@@ -282,7 +312,14 @@ public class AgentModule {
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, random, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(new StackTraceCollectorStats(stackTraceCollector),
+                "org.glowroot:type=StackTraceCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(new TraceCollectorStats(traceCollector),
+                "org.glowroot:type=TraceCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(new WeavingStats(analyzedWorld),
+                "org.glowroot:type=Weaving");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, traceCollector, configService, ticker);
@@ -300,6 +337,9 @@ public class AgentModule {
                 glowrootJarFile, clock);
 
         preloadSomeSuperTypesCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        if (wovenClassCache != null) {
+            wovenClassCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        }
     }
 
     public ConfigService getConfigService() {
@@ -462,6 +502,27 @@ public class AgentModule {
         }
     }
 
+    // the woven class cache is discarded when anything that affects weaving changes
+    private static String getWovenClassCacheFingerprint(File glowrootJarFile,
+            PluginCache pluginCache, ConfigService configService) {
+        StringBuilder sb = new StringBuilder();
+        appendFingerprint(sb, glowrootJarFile);
+        for (File pluginJar : pluginCache.pluginJars()) {
+            appendFingerprint(sb, pluginJar);
+        }
+        sb.append(configService.getInstrumentationConfigs());
+        return sb.toString();
+    }
+
+    private static void appendFingerprint(StringBuilder sb, File jarFile) {
+        sb.append(jarFile.getAbsolutePath());
+        sb.append(':');
+        sb.append(jarFile.length());
+        sb.append(':');
+        sb.append(jarFile.lastModified());
+        sb.append('\n');
+    }
+
     private static class DeadlockedActiveWeavingRunnable extends ScheduledRunnable {
 
         private final Weaver weaver;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -157,6 +157,15 @@ class ClasspathCache {
         return ImmutableList.copyOf(analyzedMethods);
     }
 
+    // returns the names of the classes found on the application class path (including jar manifest
+    // Class-Path entries), which are also added to the cache
+    synchronized ImmutableList<String> getClasspathClassNames() {
+        Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+        updateCacheWithClasspathClasses(newClassNameLocations);
+        updateClassNameLocations(newClassNameLocations);
+        return ImmutableList.copyOf(newClassNameLocations.keySet());
+    }
+
     // using synchronization over non-concurrent structures in this cache to conserve memory
     synchronized void updateCache() {
         Multimap<String, Location> newClassNameLocations = HashMultimap.create();
@@ -165,6 +174,11 @@ class ClasspathCache {
         }
         updateCacheWithClasspathClasses(newClassNameLocations);
         updateCacheWithBootstrapClasses(newClassNameLocations);
+        updateClassNameLocations(newClassNameLocations);
+    }
+
+    @GuardedBy("this")
+    private void updateClassNameLocations(Multimap<String, Location> newClassNameLocations) {
         if (!newClassNameLocations.isEmpty()) {
             // multimap that sorts keys and de-dups values while maintains value ordering
             SetMultimap<String, Location> newMap =
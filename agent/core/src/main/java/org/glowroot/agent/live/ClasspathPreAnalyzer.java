@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.weaving.AnalyzedWorld;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// pre-analyzes the classes on the application class path in parallel at startup (prior to any of
+// them being loaded), so that when their subclasses are later woven, the analysis of these super
+// classes does not need to be performed serially on the class loading path
+public class ClasspathPreAnalyzer {
+
+    // log startup messages using logger name "org.glowroot"
+    private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
+
+    // pre-analysis is only an optimization, so don't hold up startup indefinitely
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private ClasspathPreAnalyzer() {}
+
+    // nothing can be logged from here since this runs before weaving is enabled, and logging can
+    // use java.util.concurrent executor classes that need to be woven (e.g. when sending log
+    // messages to the central collector), so the result is logged afterwards (see logResult())
+    public static Result preAnalyze(AnalyzedWorld analyzedWorld, ClassLoader loader, int threads) {
+        long startTick = System.nanoTime();
+        List<String> classNames = new ClasspathCache(analyzedWorld, null).getClasspathClassNames();
+        Result result = preAnalyze(analyzedWorld, classNames, loader, threads);
+        // include the time spent reading the class names from the class path
+        return ImmutableResult.copyOf(result).withTotalNanos(System.nanoTime() - startTick);
+    }
+
+    public static void logResult(Result result) {
+        if (!result.completed()) {
+            startupLogger.info("class path pre-analysis did not complete within {} seconds",
+                    TIMEOUT_SECONDS);
+        }
+        // the analysis time summed across threads is reported instead of an estimate of the time
+        // saved, since the time saved on the class loading path depends on how many of the
+        // pre-analyzed classes end up being needed (see WeavingStats.getPreAnalyzedClasses())
+        startupLogger.info("pre-analyzed {} classes from the class path in {} milliseconds using {}"
+                + " threads (analysis time summed across threads: {} milliseconds)",
+                result.analyzedCount(), NANOSECONDS.toMillis(result.totalNanos()),
+                result.threads(), NANOSECONDS.toMillis(result.analysisNanos()));
+    }
+
+    @VisibleForTesting
+    static Result preAnalyze(AnalyzedWorld analyzedWorld, List<String> classNames,
+            ClassLoader loader, int threads) {
+        long startTick = System.nanoTime();
+        AtomicInteger nextIndex = new AtomicInteger();
+        AtomicInteger analyzedCount = new AtomicInteger();
+        AtomicLong analysisNanos = new AtomicLong();
+        // using plain threads instead of an ExecutorService for the same reason as above
+        List<Thread> threadList = Lists.newArrayList();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new PreAnalyzeTask(analyzedWorld, classNames, loader,
+                    nextIndex, analyzedCount, analysisNanos),
+                    "Glowroot-Classpath-Pre-Analysis-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threadList.add(thread);
+        }
+        long deadlineTick = startTick + SECONDS.toNanos(TIMEOUT_SECONDS);
+        try {
+            for (Thread thread : threadList) {
+                long remainingMillis = NANOSECONDS.toMillis(deadlineTick - System.nanoTime());
+                if (remainingMillis > 0) {
+                    thread.join(remainingMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean completed = true;
+        for (Thread thread : threadList) {
+            if (thread.isAlive()) {
+                // the remaining classes are still analyzed as usual if and when needed
+                thread.interrupt();
+                completed = false;
+            }
+        }
+        return ImmutableResult.builder()
+                .analyzedCount(analyzedCount.get())
+                .analysisNanos(analysisNanos.get())
+                .totalNanos(System.nanoTime() - startTick)
+                .threads(threads)
+                .completed(completed)
+                .build();
+    }
+
+    @Value.Immutable
+    public interface Result {
+        int analyzedCount();
+        // summed across threads
+        long analysisNanos();
+        long totalNanos();
+        int threads();
+        boolean completed();
+    }
+
+    // each task pulls the next class name off of the shared list, which balances the work better
+    // than partitioning the list up front since analysis time varies a lot from class to class
+    private static class PreAnalyzeTask implements Runnable {
+
+        private final AnalyzedWorld analyzedWorld;
+        private final List<String> classNames;
+        private final ClassLoader loader;
+        private final AtomicInteger nextIndex;
+        private final AtomicInteger analyzedCount;
+        private final AtomicLong analysisNanos;
+
+        private PreAnalyzeTask(AnalyzedWorld analyzedWorld, List<String> classNames,
+                ClassLoader loader, AtomicInteger nextIndex, AtomicInteger analyzedCount,
+                AtomicLong analysisNanos) {
+            this.analyzedWorld = analyzedWorld;
+            this.classNames = classNames;
+            this.loader = loader;
+            this.nextIndex = nextIndex;
+            this.analyzedCount = analyzedCount;
+            this.analysisNanos = analysisNanos;
+        }
+
+        @Override
+        public void run() {
+            int index;
+            while ((index = nextIndex.getAndIncrement()) < classNames.size()
+                    && !Thread.currentThread().isInterrupted()) {
+                String className = classNames.get(index);
+                if (className.indexOf('-') != -1) {
+                    // e.g. module-info, package-info and META-INF/versions/9/...
+                    continue;
+                }
+                long startTick = System.nanoTime();
+                try {
+                    if (analyzedWorld.preAnalyze(className, loader)) {
+                        analyzedCount.getAndIncrement();
+                    }
+                } catch (Throwable t) {
+                    // not logged (see above), the class is still analyzed as usual if and when
+                    // one of its subclasses is woven
+                }
+                analysisNanos.getAndAdd(System.nanoTime() - startTick);
+            }
+        }
+    }
+}
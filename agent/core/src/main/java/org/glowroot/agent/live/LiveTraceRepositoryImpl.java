@@ -65,98 +65,98 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         this.ticker = ticker;
     }
 
-    // checks active traces first, then pending traces (and finally caller should check stored
-    // traces) to make sure that the trace is not missed if it is in transition between these states
     @Override
     public Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                traceCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return createTraceHeader(transaction);
-            }
+        Transaction transaction = getActiveOrPendingTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return createTraceHeader(transaction);
     }
 
     @Override
     public @Nullable Entries getEntries(String agentId, String traceId) {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                traceCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                CollectingEntryVisitor visitor = new CollectingEntryVisitor();
-                transaction.visitEntries(ticker.read(), visitor);
-                return ImmutableEntries.builder()
-                        .addAllEntries(visitor.entries)
-                        .addAllSharedQueryTexts(
-                                TraceCreator.toProto(transaction.getSharedQueryTexts()))
-                        .build();
-            }
+        Transaction transaction = getActiveOrPendingTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        CollectingEntryVisitor visitor = new CollectingEntryVisitor();
+        transaction.visitEntries(ticker.read(), visitor);
+        return ImmutableEntries.builder()
+                .addAllEntries(visitor.entries)
+                .addAllSharedQueryTexts(TraceCreator.toProto(transaction.getSharedQueryTexts()))
+                .build();
     }
 
     @Override
     public @Nullable Queries getQueries(String agentId, String traceId) {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                traceCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return ImmutableQueries.builder()
-                        .addAllQueries(transaction.getQueries())
-                        .addAllSharedQueryTexts(
-                                TraceCreator.toProto(transaction.getSharedQueryTexts()))
-                        .build();
-            }
+        Transaction transaction = getActiveOrPendingTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return ImmutableQueries.builder()
+                .addAllQueries(transaction.getQueries())
+                .addAllSharedQueryTexts(TraceCreator.toProto(transaction.getSharedQueryTexts()))
+                .build();
     }
 
     @Override
     public @Nullable Profile getMainThreadProfile(String agentId, String traceId) {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                traceCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getMainThreadProfileProtobuf();
-            }
+        Transaction transaction = getActiveOrPendingTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return transaction.getMainThreadProfileProtobuf();
     }
 
     @Override
     public @Nullable Profile getAuxThreadProfile(String agentId, String traceId) {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                traceCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getAuxThreadProfileProtobuf();
-            }
+        Transaction transaction = getActiveOrPendingTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return transaction.getAuxThreadProfileProtobuf();
     }
 
     @Override
     public @Nullable Trace getFullTrace(String agentId, String traceId) throws Exception {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                traceCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
-                TraceReader traceReader = createTraceReader(transaction);
-                traceReader.accept(traceVisitor);
-                Trace.Builder builder = Trace.newBuilder()
-                        .setId(traceId)
-                        .setUpdate(transaction.isPartiallyStored());
-                Profile mainThreadProfile = traceVisitor.mainThreadProfile;
-                if (mainThreadProfile != null) {
-                    builder.setMainThreadProfile(mainThreadProfile);
-                }
-                Profile auxThreadProfile = traceVisitor.auxThreadProfile;
-                if (auxThreadProfile != null) {
-                    builder.setAuxThreadProfile(auxThreadProfile);
-                }
-                return builder.setHeader(checkNotNull(traceVisitor.header))
-                        .addAllEntry(traceVisitor.entries)
-                        .addAllQuery(traceVisitor.queries)
-                        .addAllSharedQueryText(TraceCreator.toProto(traceVisitor.sharedQueryTexts))
-                        .build();
-            }
+        Transaction transaction = getActiveOrPendingTransaction(traceId);
+        if (transaction == null) {
+            return null;
+        }
+        CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
+        TraceReader traceReader = createTraceReader(transaction);
+        traceReader.accept(traceVisitor);
+        Trace.Builder builder = Trace.newBuilder()
+                .setId(traceId)
+                .setUpdate(transaction.isPartiallyStored());
+        Profile mainThreadProfile = traceVisitor.mainThreadProfile;
+        if (mainThreadProfile != null) {
+            builder.setMainThreadProfile(mainThreadProfile);
+        }
+        Profile auxThreadProfile = traceVisitor.auxThreadProfile;
+        if (auxThreadProfile != null) {
+            builder.setAuxThreadProfile(auxThreadProfile);
+        }
+        return builder.setHeader(checkNotNull(traceVisitor.header))
+                .addAllEntry(traceVisitor.entries)
+                .addAllQuery(traceVisitor.queries)
+                .addAllSharedQueryText(TraceCreator.toProto(traceVisitor.sharedQueryTexts))
+                .build();
+    }
+
+    // checks active traces first, then pending traces (and finally caller should check stored
+    // traces) to make sure that the trace is not missed if it is in transition between these states
+    //
+    // this relies on transactions being added to the trace collector's pending list before being
+    // removed from the active list (see TransactionProcessor)
+    private @Nullable Transaction getActiveOrPendingTransaction(String traceId) {
+        Transaction transaction = transactionRegistry.getTransaction(traceId);
+        if (transaction == null) {
+            return null;
+        }
+        if (transaction.isActive() || traceCollector.isPending(transaction)) {
+            return transaction;
         }
         return null;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,14 @@
  */
 package org.glowroot.agent.model;
 
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
+import static com.google.common.base.Charsets.UTF_8;
+
 class MutableQuery {
 
     private double totalDurationNanos;
@@ -28,6 +33,9 @@ class MutableQuery {
 
     private boolean active;
 
+    // cached since it is needed for every full query text lookup
+    private @Nullable String fullQueryTextSha1;
+
     double getTotalDurationNanos() {
         return totalDurationNanos;
     }
@@ -48,6 +56,13 @@ class MutableQuery {
         return active;
     }
 
+    String getFullQueryTextSha1(String fullQueryText) {
+        if (fullQueryTextSha1 == null) {
+            fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+        }
+        return fullQueryTextSha1;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,15 +22,12 @@ import java.util.Map;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -38,6 +35,14 @@ public class QueryCollector {
     // first key is query type, second key is query text
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
     private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
+    // key is the sha1 of the full query text, this only contains query texts longer than
+    // AGGREGATE_QUERY_TEXT_TRUNCATE
+    private final Map<String, String> fullQueryTexts = Maps.newHashMap();
+    // long query texts are queued here when first merged, and only indexed (which requires
+    // computing their sha1) when there is a full query text lookup, since most collectors are never
+    // looked up (e.g. collectors that are only used to merge the queries of a single transaction)
+    private final List<Map.Entry<String, MutableQuery>> unindexedFullQueryTexts =
+            Lists.newArrayList();
     private final int limit;
     private final int hardLimitMultiplierWhileBuilding;
 
@@ -104,6 +109,9 @@ public class QueryCollector {
                 aggregateQuery = new MutableQuery();
                 queriesForType.put(queryText, aggregateQuery);
                 queryCount++;
+                if (queryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                    unindexedFullQueryTexts.add(Maps.immutableEntry(queryText, aggregateQuery));
+                }
             } else {
                 aggregateQuery = getOrCreateLimitExceededBucket(queryType);
             }
@@ -139,7 +147,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = entry.getValue().getFullQueryTextSha1(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -160,18 +168,13 @@ public class QueryCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Map.Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
-                if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-                    continue;
-                }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
-                    return fullQueryText;
-                }
-            }
+        for (Map.Entry<String, MutableQuery> entry : unindexedFullQueryTexts) {
+            String fullQueryText = entry.getKey();
+            fullQueryTexts.put(entry.getValue().getFullQueryTextSha1(fullQueryText),
+                    fullQueryText);
         }
-        return null;
+        unindexedFullQueryTexts.clear();
+        return fullQueryTexts.get(fullQueryTextSha1);
     }
 
     private void mergeLimitExceededBucket(String queryType, MutableQuery limitExceededBucket) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// global table of interned stack trace frames, shared by all thread profiles, so that each
+// profile tree node only needs to hold a reference to a frame, and so that the package, class,
+// method and file name of each distinct frame are split out only once
+class StackTraceFrames {
+
+    // bounds the memory retained by the table in case of an unbounded number of distinct frames
+    // (e.g. from dynamically generated classes), beyond which frames are no longer interned
+    private static final int MAX_FRAMES =
+            Integer.getInteger("glowroot.profiling.internedFrame.limit", 100000);
+
+    // StackTraceElement.equals() also compares class loader and module names in Java 9+, so
+    // multiple stack trace elements can map to the same frame
+    private static final ConcurrentMap<StackTraceElement, Frame> frames =
+            Maps.newConcurrentMap();
+
+    private static final ConcurrentMap<Frame, Frame> canonicalFrames = Maps.newConcurrentMap();
+
+    private StackTraceFrames() {}
+
+    static Frame get(StackTraceElement stackTraceElement) {
+        Frame frame = frames.get(stackTraceElement);
+        if (frame != null) {
+            return frame;
+        }
+        frame = new Frame(stackTraceElement);
+        if (frames.size() >= MAX_FRAMES) {
+            return frame;
+        }
+        Frame existingFrame = canonicalFrames.putIfAbsent(frame, frame);
+        if (existingFrame != null) {
+            frame = existingFrame;
+        }
+        frames.put(stackTraceElement, frame);
+        return frame;
+    }
+
+    static class Frame {
+
+        private final String packageName;
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+
+        private Frame(StackTraceElement stackTraceElement) {
+            String fullClassName = stackTraceElement.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            methodName = MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
+                    "<null method name>");
+            fileName = Strings.nullToEmpty(stackTraceElement.getFileName());
+            lineNumber = stackTraceElement.getLineNumber();
+        }
+
+        String getPackageName() {
+            return packageName;
+        }
+
+        String getClassName() {
+            return className;
+        }
+
+        String getMethodName() {
+            return methodName;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        int getLineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Frame)) {
+                return false;
+            }
+            Frame that = (Frame) obj;
+            // checking line number first since most likely to be different
+            return lineNumber == that.lineNumber && fileName.equals(that.fileName)
+                    && methodName.equals(that.methodName) && className.equals(that.className)
+                    && packageName.equals(that.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = packageName.hashCode();
+            result = 31 * result + className.hashCode();
+            result = 31 * result + methodName.hashCode();
+            result = 31 * result + fileName.hashCode();
+            return 31 * result + lineNumber;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,25 +18,48 @@ package org.glowroot.agent.model;
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import com.google.common.collect.Maps;
 
+import org.glowroot.agent.model.StackTraceFrames.Frame;
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.LeafThreadState;
 
+// stack traces are merged into a compact profile tree as they are captured, where the tree nodes
+// are stored in parallel primitive arrays (with child links represented as first child and next
+// sibling node indexes) and each node references an interned frame (see StackTraceFrames)
 public class ThreadProfile {
 
+    private static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final LeafThreadState[] LEAF_THREAD_STATES = LeafThreadState.values();
+
     private final int maxSamples;
     private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private Frame[] frames = new Frame[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private byte[] leafThreadStates = new byte[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int[] sampleCounts = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private int[] firstChilds = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private int nodeCount;
+    @GuardedBy("lock")
+    private int firstRoot = NONE;
+
     @GuardedBy("lock")
     private long sampleCount;
 
@@ -47,23 +70,15 @@ public class ThreadProfile {
 
     public void mergeInto(MutableProfile profile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
+            if (nodeCount > 0) {
+                profile.merge(toProtoInternal());
             }
         }
     }
 
-    public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+    public Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
-            }
-            return profile.toProto();
+            return toProtoInternal();
         }
     }
 
@@ -84,34 +99,131 @@ public class ThreadProfile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo) {
+        addStackTrace(threadInfo.getStackTrace(), threadInfo.getThreadState());
+    }
+
+    @VisibleForTesting
+    void addStackTrace(StackTraceElement[] stackTrace, Thread. /*@Nullable*/ State threadState) {
         synchronized (lock) {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            byte leafThreadState = (byte) MutableProfile.getLeafThreadState(threadState).ordinal();
+            int parent = NONE;
+            boolean lookingForMatch = true;
+            // stack trace is ordered from leaf to root
+            for (int i = stackTrace.length - 1; i >= 0; i--) {
+                Frame frame = StackTraceFrames.get(stackTrace[i]);
+                byte nodeLeafThreadState =
+                        i == 0 ? leafThreadState : (byte) LeafThreadState.NONE.ordinal();
+                int node = NONE;
+                int lastSibling = NONE;
+                if (lookingForMatch) {
+                    int sibling = parent == NONE ? firstRoot : firstChilds[parent];
+                    while (sibling != NONE) {
+                        if (leafThreadStates[sibling] == nodeLeafThreadState
+                                && frame.equals(frames[sibling])) {
+                            node = sibling;
+                            break;
+                        }
+                        lastSibling = sibling;
+                        sibling = nextSiblings[sibling];
+                    }
+                }
+                if (node == NONE) {
+                    // no need to look for matches further down, since this is a new node
+                    lookingForMatch = false;
+                    node = addNode(frame, nodeLeafThreadState);
+                    if (lastSibling != NONE) {
+                        nextSiblings[lastSibling] = node;
+                    } else if (parent == NONE) {
+                        firstRoot = node;
+                    } else {
+                        firstChilds[parent] = node;
+                    }
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                sampleCounts[node]++;
+                parent = node;
             }
         }
     }
 
     @GuardedBy("lock")
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    private int addNode(Frame frame, byte leafThreadState) {
+        if (nodeCount == frames.length) {
+            int newCapacity = nodeCount * 2;
+            frames = Arrays.copyOf(frames, newCapacity);
+            leafThreadStates = Arrays.copyOf(leafThreadStates, newCapacity);
+            sampleCounts = Arrays.copyOf(sampleCounts, newCapacity);
+            firstChilds = Arrays.copyOf(firstChilds, newCapacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+        }
+        int node = nodeCount++;
+        frames[node] = frame;
+        leafThreadStates[node] = leafThreadState;
+        firstChilds[node] = NONE;
+        nextSiblings[node] = NONE;
+        return node;
+    }
+
+    @GuardedBy("lock")
+    private Profile toProtoInternal() {
+        NameIndexes packageNames = new NameIndexes();
+        NameIndexes classNames = new NameIndexes();
+        NameIndexes methodNames = new NameIndexes();
+        NameIndexes fileNames = new NameIndexes();
+        List<Profile.ProfileNode> protoNodes = Lists.newArrayListWithCapacity(nodeCount);
+        // iterative pre-order traversal to avoid StackOverflowError on very deep stack traces
+        int[] path = new int[16];
+        int depth = 0;
+        int node = firstRoot;
+        while (node != NONE) {
+            Frame frame = frames[node];
+            protoNodes.add(Profile.ProfileNode.newBuilder()
+                    .setDepth(depth)
+                    .setPackageNameIndex(packageNames.get(frame.getPackageName()))
+                    .setClassNameIndex(classNames.get(frame.getClassName()))
+                    .setMethodNameIndex(methodNames.get(frame.getMethodName()))
+                    .setFileNameIndex(fileNames.get(frame.getFileName()))
+                    .setLineNumber(frame.getLineNumber())
+                    .setLeafThreadState(LEAF_THREAD_STATES[leafThreadStates[node]])
+                    .setSampleCount(sampleCounts[node])
+                    .build());
+            if (firstChilds[node] != NONE) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                }
+                path[depth++] = node;
+                node = firstChilds[node];
+                continue;
+            }
+            while (nextSiblings[node] == NONE && depth > 0) {
+                node = path[--depth];
+            }
+            node = nextSiblings[node];
+        }
+        return Profile.newBuilder()
+                .addAllPackageName(packageNames.names)
+                .addAllClassName(classNames.names)
+                .addAllMethodName(methodNames.names)
+                .addAllFileName(fileNames.names)
+                .addAllNode(protoNodes)
+                .build();
+    }
+
+    private static class NameIndexes {
+
+        private final Map<String, Integer> indexes = Maps.newHashMap();
+        private final List<String> names = Lists.newArrayList();
+
+        private int get(String name) {
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                indexes.put(name, index);
+            }
+            return index;
         }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -37,6 +37,13 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // blocked and waited times are only available via ThreadMXBean.getThreadInfo(), which is by
+    // far the most expensive part of capturing thread stats (it looks up the thread under a JVM
+    // global lock and allocates a ThreadInfo), so this provides a way to opt out of capturing them
+    // (in which case they are reported as not available)
+    private static final boolean SKIP_BLOCKED_AND_WAITED =
+            Boolean.getBoolean("glowroot.transaction.threadStats.skipBlockedAndWaited");
+
     private final long threadId;
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
@@ -52,15 +59,15 @@ public class ThreadStatsComponent {
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (isCaptureBlockedAndWaited()) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
             startingBlockedMillis = threadInfo.getBlockedTime();
             startingWaitedMillis = threadInfo.getWaitedTime();
         } else {
@@ -68,7 +75,7 @@ public class ThreadStatsComponent {
             startingWaitedMillis = -1;
         }
         if (threadAllocatedBytes != null) {
-            startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+            startingAllocatedBytes = threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely();
         } else {
             startingAllocatedBytes = -1;
         }
@@ -78,7 +85,11 @@ public class ThreadStatsComponent {
     // must be called from transaction thread
     public void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            if (completedThreadStats == null) {
+                // since this is called from the transaction thread, the cheaper current thread
+                // variants can be used
+                completedThreadStats = getThreadStatsInternal(true);
+            }
         }
     }
 
@@ -89,7 +100,7 @@ public class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
@@ -104,7 +115,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getCpuNanosInternal();
+                    return getCpuNanosInternal(false);
                 } else {
                     return -1;
                 }
@@ -114,40 +125,41 @@ public class ThreadStatsComponent {
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        long cpuNanos;
-        if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            cpuNanos = getCpuNanosInternal();
-        } else {
-            cpuNanos = -1;
-        }
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
         long blockedMillis;
         long waitedMillis;
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(0, 0, 0, 0);
-        }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (startingBlockedMillis != -1 || startingWaitedMillis != -1) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(0, 0, 0, 0);
+            }
             waitedMillis = getWaitedMillisInternal(threadInfo);
             blockedMillis = getBlockedMillisInternal(threadInfo);
         } else {
             blockedMillis = -1;
             waitedMillis = -1;
         }
+        long cpuNanos;
+        if (IS_THREAD_CPU_TIME_SUPPORTED) {
+            cpuNanos = getCpuNanosInternal(currentThread);
+        } else {
+            cpuNanos = -1;
+        }
         long allocatedBytes;
         if (threadAllocatedBytes != null) {
-            allocatedBytes = getAllocatedBytesInternal();
+            allocatedBytes = getAllocatedBytesInternal(currentThread);
         } else {
             allocatedBytes = -1;
         }
         return new ThreadStats(cpuNanos, blockedMillis, waitedMillis, allocatedBytes);
     }
 
-    private long getCpuNanosInternal() {
+    private long getCpuNanosInternal(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -178,12 +190,27 @@ public class ThreadStatsComponent {
     }
 
     @RequiresNonNull("threadAllocatedBytes")
-    private long getAllocatedBytesInternal() {
-        long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+    private long getAllocatedBytesInternal(boolean currentThread) {
+        long allocatedBytes =
+                currentThread ? threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely()
+                        : threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
         if (startingAllocatedBytes != -1 && allocatedBytes != -1) {
             return allocatedBytes - startingAllocatedBytes;
         } else {
             return -1;
         }
     }
+
+    private static boolean isCaptureBlockedAndWaited() {
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED || SKIP_BLOCKED_AND_WAITED) {
+            return false;
+        }
+        // getBlockedTime() and getWaitedTime() return -1 anyways if thread contention monitoring
+        // is disabled, so no point in paying for ThreadMXBean.getThreadInfo() in that case
+        //
+        // this is checked on every capture (instead of being cached) so that toggling thread
+        // contention monitoring at runtime takes effect immediately, the check is cheap compared
+        // to ThreadMXBean.getThreadInfo()
+        return threadMXBean.isThreadContentionMonitoringEnabled();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,73 +20,60 @@ import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
+// add and remove are O(1) and do not contend on a global lock, iteration is weakly consistent
+// (and in no particular order)
 public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
 
-    private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
-
-    private final Entry headEntry = new Entry(null, queue);
+    // this is only a sizing hint for the number of concurrently updating threads (it determines
+    // the number of lock stripes in jdk 6 and 7 ConcurrentHashMap)
+    private static final int CONCURRENCY_LEVEL = 64;
 
-    // tail is non-volatile since only accessed under lock
-    private Entry tailEntry = headEntry;
+    private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
 
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    // the map is only used as a set, values are always Boolean.TRUE
+    private final ConcurrentMap<Entry, Boolean> entries =
+            new ConcurrentHashMap<Entry, Boolean>(16, 0.75f, CONCURRENCY_LEVEL);
 
     public SelfRemovableEntry add(E e) {
-        Entry newTailEntry = new Entry(e, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
-        }
-        return newTailEntry;
+        expungeStaleEntries();
+        Entry entry = new Entry(e, queue);
+        entries.put(entry, Boolean.TRUE);
+        return entry;
     }
 
     @Override
     public Iterator<E> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
-        }
-        return new ElementIterator();
+        expungeStaleEntries();
+        return new ElementIterator(entries.keySet().iterator());
     }
 
-    // requires lock
     private void expungeStaleEntries() {
-        Reference<? extends E> ref = queue.poll();
-        if (ref == null) {
-            return;
-        }
-        // drain the queue, since going to loop over and clean up everything anyways
-        while (queue.poll() != null) {
-        }
-        Entry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            if (currEntry.getElement() == null) {
-                currEntry.remove();
-            }
-            currEntry = currEntry.nextEntry;
+        // each entry is its own weak reference, so stale entries can be removed directly without
+        // scanning
+        Reference<? extends E> ref;
+        while ((ref = queue.poll()) != null) {
+            entries.remove(ref);
         }
     }
 
     public interface SelfRemovableEntry {
         void remove();
+        boolean isRemoved();
     }
 
     private class ElementIterator implements Iterator<E> {
 
-        private @Nullable Entry nextEntry;
+        private final Iterator<Entry> entryIterator;
         private @Nullable E nextElement;
 
         @SuppressWarnings("method.invocation.invalid")
-        private ElementIterator() {
-            nextEntry = headEntry;
+        private ElementIterator(Iterator<Entry> entryIterator) {
+            this.entryIterator = entryIterator;
             advance();
         }
 
@@ -111,61 +98,29 @@ public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
         }
 
         private void advance() {
-            advanceOne();
-            while (nextElement == null && nextEntry != null) {
-                advanceOne();
+            nextElement = null;
+            while (nextElement == null && entryIterator.hasNext()) {
+                // element can be null if it has been garbage collected but not yet expunged
+                nextElement = entryIterator.next().get();
             }
         }
-
-        private void advanceOne() {
-            checkNotNull(nextEntry);
-            nextEntry = nextEntry.nextEntry;
-            nextElement = nextEntry == null ? null : nextEntry.getElement();
-        }
     }
 
-    private class Entry implements SelfRemovableEntry {
-
-        private final @Nullable WeakReference<E> ref; // only null for head
-
-        // prev is non-volatile since only accessed under lock
-        private @Nullable Entry prevEntry; // only null for head and removed
-
-        // next is volatile since accessed by iterator outside of lock
-        private volatile @Nullable Entry nextEntry;
+    // identity equals/hashCode are inherited from Object (via WeakReference)
+    private class Entry extends WeakReference<E> implements SelfRemovableEntry {
 
-        private Entry(@Nullable E e, ReferenceQueue<E> queue) {
-            if (e == null) {
-                ref = null;
-            } else {
-                ref = new WeakReference<E>(e, queue);
-            }
+        private Entry(E e, ReferenceQueue<E> queue) {
+            super(e, queue);
         }
 
         @Override
         public void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                Entry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
-            }
+            entries.remove(this);
         }
 
-        private @Nullable E getElement() {
-            if (ref == null) {
-                return null;
-            }
-            return ref.get();
+        @Override
+        public boolean isRemoved() {
+            return !entries.containsKey(this);
         }
     }
 }
@@ -28,7 +28,13 @@ public class ThreadAllocatedBytes {
 
     private static final Logger logger = LoggerFactory.getLogger(ThreadAllocatedBytes.class);
 
+    // ManagementFactory.getThreadMXBean() is synchronized (at least in Java 8), so look it up once
+    // instead of on every call (these are called twice per transaction on the transaction thread)
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
     private final Method getThreadAllocatedBytesMethod;
+    // this is only available in Java 14+, and avoids looking up the thread by id
+    private final @Nullable Method getCurrentThreadAllocatedBytesMethod;
     private volatile boolean disabledDueToError;
 
     public static OptionalService<ThreadAllocatedBytes> create() {
@@ -50,7 +56,6 @@ public class ThreadAllocatedBytes {
             return OptionalService.unavailable("Cannot find class com.sun.management.ThreadMXBean"
                     + " (introduced in Oracle Java SE 6u25)");
         }
-        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
         if (!sunThreadMXBeanClass.isInstance(threadMXBean)) {
             return OptionalService.unavailable(
                     "ThreadMXBean is not an instance of com.sun.management.ThreadMXBean");
@@ -74,11 +79,48 @@ public class ThreadAllocatedBytes {
         }
         Method getThreadAllocatedBytesMethod =
                 sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
-        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod));
+        Method getCurrentThreadAllocatedBytesMethod;
+        try {
+            getCurrentThreadAllocatedBytesMethod =
+                    sunThreadMXBeanClass.getMethod("getCurrentThreadAllocatedBytes");
+        } catch (NoSuchMethodException e) {
+            // log exception at debug level
+            logger.debug(e.getMessage(), e);
+            getCurrentThreadAllocatedBytesMethod = null;
+        }
+        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod,
+                getCurrentThreadAllocatedBytesMethod));
     }
 
-    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod) {
+    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod,
+            @Nullable Method getCurrentThreadAllocatedBytesMethod) {
         this.getThreadAllocatedBytesMethod = getThreadAllocatedBytesMethod;
+        this.getCurrentThreadAllocatedBytesMethod = getCurrentThreadAllocatedBytesMethod;
+    }
+
+    public long getCurrentThreadAllocatedBytesSafely() {
+        if (getCurrentThreadAllocatedBytesMethod == null) {
+            return getThreadAllocatedBytesSafely(Thread.currentThread().getId());
+        }
+        if (disabledDueToError) {
+            // prevent excessive error logging in case there is a problem
+            return -1;
+        }
+        try {
+            Long threadAllocatedBytes = (Long) getCurrentThreadAllocatedBytesMethod
+                    .invoke(threadMXBean);
+            if (threadAllocatedBytes == null) {
+                logger.error("method unexpectedly returned null:"
+                        + " com.sun.management.ThreadMXBean.getCurrentThreadAllocatedBytes()");
+                disabledDueToError = true;
+                return -1;
+            }
+            return threadAllocatedBytes;
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            disabledDueToError = true;
+            return -1;
+        }
     }
 
     public long getThreadAllocatedBytesSafely(long threadId) {
@@ -88,7 +130,7 @@ public class ThreadAllocatedBytes {
         }
         try {
             Long threadAllocatedBytes = (Long) getThreadAllocatedBytesMethod
-                    .invoke(ManagementFactory.getThreadMXBean(), threadId);
+                    .invoke(threadMXBean, threadId);
             if (threadAllocatedBytes == null) {
                 logger.error("method unexpectedly returned null:"
                         + " com.sun.management.ThreadMXBean.getThreadAllocatedBytes()");
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+// index over the class-level criteria of a list of advisors, used to narrow down the advisors
+// that need to be fully matched (see AdviceMatcher) against a given class, so that the (large
+// majority of) classes that cannot match any advice are rejected with a few hash lookups instead
+// of running every advice's class name / super type / annotation pattern against them
+//
+// each advice is indexed by one of its class-level criteria (all of which are required to match):
+// * className, if it is an exact name or a "|" separated list of exact names and simple prefix
+//   wildcards (e.g. "org.example.*")
+// * otherwise superTypeRestriction, if it is an exact name or a "|" separated list of exact names
+// * otherwise classAnnotation, if it is an exact name or a "|" separated list of exact names
+// * otherwise the advice is a candidate for every class (e.g. full regex patterns)
+class AdviceIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    // indexes are keyed by the identity of the list of advisors, since AdviceCache replaces (never
+    // mutates) its list of advisors, and the keys are weak so that replaced lists (e.g. after
+    // reweaving due to instrumentation config change) are not retained
+    //
+    // a single slot is not enough, since classes with @Instrumentation annotations are matched
+    // against their own merged list of advisors (see
+    // AnalyzedWorld.mergeInstrumentationAnnotations()), which would otherwise evict the index of
+    // the main list of advisors each time
+    //
+    // not using guava MapMaker.weakKeys() for the same reason that AnalyzedWorld doesn't use guava
+    // CacheBuilder (see comment there)
+    private static final ConcurrentMap<AdvisorsKey, AdviceIndex> indexes =
+            new ConcurrentHashMap<AdvisorsKey, AdviceIndex>();
+
+    private static final ReferenceQueue<List<Advice>> clearedKeys =
+            new ReferenceQueue<List<Advice>>();
+
+    // an array (instead of the list itself) so that the index does not strongly reference its own
+    // weak key
+    private final Advice[] advisors;
+
+    private final Map<String, int[]> classNames = Maps.newHashMap();
+    private final PrefixNode classNamePrefixes = new PrefixNode();
+    private final Map<String, int[]> superTypeNames = Maps.newHashMap();
+    private final Map<String, int[]> classAnnotations = Maps.newHashMap();
+    private final BitSet unindexed = new BitSet();
+
+    private AdviceIndex(List<Advice> advisors) {
+        this.advisors = advisors.toArray(new Advice[advisors.size()]);
+        for (int i = 0; i < advisors.size(); i++) {
+            Pointcut pointcut = advisors.get(i).pointcut();
+            if (!indexClassName(pointcut.className(), i)
+                    && !indexExactNames(pointcut.superTypeRestriction(), superTypeNames, i)
+                    && !indexExactNames(pointcut.classAnnotation(), classAnnotations, i)) {
+                unindexed.set(i);
+            }
+        }
+    }
+
+    static AdviceIndex get(List<Advice> advisors) {
+        AdvisorsKey key = new AdvisorsKey(advisors, null);
+        AdviceIndex index = indexes.get(key);
+        if (index != null && index.advisors.length == advisors.size()) {
+            return index;
+        }
+        expungeClearedKeys();
+        index = new AdviceIndex(advisors);
+        indexes.put(new AdvisorsKey(advisors, clearedKeys), index);
+        return index;
+    }
+
+    private static void expungeClearedKeys() {
+        Reference<? extends List<Advice>> clearedKey;
+        while ((clearedKey = clearedKeys.poll()) != null) {
+            indexes.remove(clearedKey);
+        }
+    }
+
+    // returns the advisors (in their original order) that may match the class, these still need
+    // to be fully matched against the class
+    List<Advice> getCandidates(String className, List<String> classAnnotationDescs,
+            Collection<String> superClassNames) {
+        @Nullable
+        BitSet candidates = null;
+        if (!unindexed.isEmpty()) {
+            candidates = (BitSet) unindexed.clone();
+        }
+        candidates = add(candidates, classNames.get(className));
+        PrefixNode node = classNamePrefixes;
+        candidates = add(candidates, node.advisorIndexes);
+        for (int i = 0; i < className.length() && node.children != null; i++) {
+            node = node.children.get(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+            candidates = add(candidates, node.advisorIndexes);
+        }
+        if (!superTypeNames.isEmpty()) {
+            for (String superClassName : superClassNames) {
+                candidates = add(candidates, superTypeNames.get(superClassName));
+            }
+        }
+        if (!classAnnotations.isEmpty()) {
+            for (String classAnnotationDesc : classAnnotationDescs) {
+                // same conversion as in AdviceMatcher.isAnnotationMatch()
+                String classAnnotation = classAnnotationDesc.replace('/', '.').substring(1,
+                        classAnnotationDesc.length() - 1);
+                candidates = add(candidates, classAnnotations.get(classAnnotation));
+            }
+        }
+        if (candidates == null) {
+            return ImmutableList.of();
+        }
+        List<Advice> candidateAdvisors = Lists.newArrayListWithCapacity(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            candidateAdvisors.add(advisors[i]);
+        }
+        return candidateAdvisors;
+    }
+
+    // same parsing as MaybePatterns.buildPattern()
+    private boolean indexClassName(String className, int advisorIndex) {
+        if (className.isEmpty() || isFullRegex(className)) {
+            return false;
+        }
+        String[] parts = className.split("\\|");
+        for (String part : parts) {
+            int index = part.indexOf('*');
+            if (index != -1 && index != part.length() - 1) {
+                return false;
+            }
+        }
+        for (String part : parts) {
+            if (part.endsWith("*")) {
+                classNamePrefixes.add(part.substring(0, part.length() - 1), advisorIndex);
+            } else {
+                put(classNames, part, advisorIndex);
+            }
+        }
+        return true;
+    }
+
+    private static boolean indexExactNames(String names, Map<String, int[]> map,
+            int advisorIndex) {
+        if (names.isEmpty() || isFullRegex(names) || names.contains("*")) {
+            return false;
+        }
+        for (String name : names.split("\\|")) {
+            put(map, name, advisorIndex);
+        }
+        return true;
+    }
+
+    private static boolean isFullRegex(String maybePattern) {
+        return maybePattern.startsWith("/") && maybePattern.endsWith("/");
+    }
+
+    private static void put(Map<String, int[]> map, String name, int advisorIndex) {
+        int[] advisorIndexes = map.get(name);
+        map.put(name, append(advisorIndexes == null ? EMPTY : advisorIndexes, advisorIndex));
+    }
+
+    private static int[] append(int[] advisorIndexes, int advisorIndex) {
+        return Ints.concat(advisorIndexes, new int[] {advisorIndex});
+    }
+
+    private static @Nullable BitSet add(@Nullable BitSet candidates,
+            int /*@Nullable*/ [] advisorIndexes) {
+        if (advisorIndexes == null || advisorIndexes.length == 0) {
+            return candidates;
+        }
+        BitSet bitSet = candidates == null ? new BitSet() : candidates;
+        for (int advisorIndex : advisorIndexes) {
+            bitSet.set(advisorIndex);
+        }
+        return bitSet;
+    }
+
+    // compares the list of advisors by identity, and only weakly references it
+    private static class AdvisorsKey extends WeakReference<List<Advice>> {
+
+        private final int hashCode;
+
+        private AdvisorsKey(List<Advice> advisors,
+                @Nullable ReferenceQueue<List<Advice>> queue) {
+            super(advisors, queue);
+            hashCode = System.identityHashCode(advisors);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof AdvisorsKey)) {
+                return false;
+            }
+            List<Advice> advisors = get();
+            // a cleared key is only equal to itself (see above), which is needed for it to be
+            // removed by expungeClearedKeys()
+            return advisors != null && advisors == ((AdvisorsKey) obj).get();
+        }
+    }
+
+    // character trie of the class name prefixes
+    private static class PrefixNode {
+
+        private @Nullable Map<Character, PrefixNode> children;
+        private int[] advisorIndexes = EMPTY;
+
+        private void add(String prefix, int advisorIndex) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (node.children == null) {
+                    node.children = Maps.newHashMap();
+                }
+                Character c = prefix.charAt(i);
+                PrefixNode child = node.children.get(c);
+                if (child == null) {
+                    child = new PrefixNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.advisorIndexes = append(node.advisorIndexes, advisorIndex);
+        }
+    }
+}
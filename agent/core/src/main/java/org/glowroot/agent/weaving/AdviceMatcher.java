@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -41,7 +42,8 @@ abstract class AdviceMatcher {
             List<String> classAnnotations, Collection<String> superClassNames,
             List<Advice> advisors) {
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : AdviceIndex.get(advisors).getCandidates(className, classAnnotations,
+                superClassNames)) {
             if (isClassMatch(className, classAnnotations, superClassNames, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -139,7 +141,8 @@ abstract class AdviceMatcher {
         }
     }
 
-    private static boolean isClassMatch(String className, List<String> classAnnotations,
+    @VisibleForTesting
+    static boolean isClassMatch(String className, List<String> classAnnotations,
             Collection<String> superClassNames, Advice advice) {
         if (!isAnnotationMatch(classAnnotations, advice.pointcutClassAnnotationPattern(),
                 advice.pointcut().classAnnotation())) {
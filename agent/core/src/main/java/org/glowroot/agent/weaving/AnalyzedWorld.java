@@ -17,6 +17,8 @@ package org.glowroot.agent.weaving;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
@@ -27,6 +29,7 @@ import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
@@ -86,6 +89,27 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // pre-analyzed classes (see preAnalyze()) are kept separate from the analyzed world until they
+    // are actually needed, and are only softly referenced until then, since most of them may never
+    // be loaded (these are weak keyed for the same reasons as above)
+    private final Map<ClassLoader, ConcurrentMap<String, PreAnalyzedClassRef>> preAnalyzedWorld =
+            Collections.synchronizedMap(
+                    new WeakHashMap<ClassLoader, ConcurrentMap<String, PreAnalyzedClassRef>>());
+
+    private final ConcurrentMap<String, PreAnalyzedClassRef> bootstrapLoaderPreAnalyzedWorld =
+            new ConcurrentHashMap<String, PreAnalyzedClassRef>();
+
+    private final ReferenceQueue<AnalyzedClass> clearedPreAnalyzedClassRefs =
+            new ReferenceQueue<AnalyzedClass>();
+
+    private final NameInterner nameInterner = new NameInterner();
+
+    private final AtomicLong notRetainedFinalClassCount = new AtomicLong();
+
+    // super types encountered during pre-analysis are not recorded in preloadSomeSuperTypesCache
+    // since most of the pre-analyzed classes may never be loaded
+    private final ThreadLocal<Boolean> preAnalyzing = new ThreadLocal<Boolean>();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -120,6 +144,14 @@ public class AnalyzedWorld {
         for (Class<?> clazz : classes) {
             bootstrapLoaderWorld.remove(clazz.getName());
         }
+        for (Map<String, PreAnalyzedClassRef> map : getPreAnalyzedWorldValues()) {
+            for (Class<?> clazz : classes) {
+                map.remove(clazz.getName());
+            }
+        }
+        for (Class<?> clazz : classes) {
+            bootstrapLoaderPreAnalyzedWorld.remove(clazz.getName());
+        }
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
@@ -128,7 +160,79 @@ public class AnalyzedWorld {
         }
     }
 
+    // analyzes a class that has not been loaded yet (see ClasspathPreAnalyzer), so that its
+    // analysis is not performed on the class loading path when one of its subclasses is later
+    // woven
+    //
+    // the pre-analyzed class is only moved into the analyzed world once it is looked up as a super
+    // type, and is dropped once the class itself is loaded (since it is then analyzed as part of
+    // weaving), or if the memory is needed before then
+    //
+    // returns false if the class was already analyzed or could not be analyzed
+    public boolean preAnalyze(String className, ClassLoader loader) {
+        purgeClearedPreAnalyzedClassRefs();
+        if (getAnalyzedClasses(loader).containsKey(className)) {
+            return false;
+        }
+        PreAnalyzedClassRef existingRef = getPreAnalyzedClasses(loader).get(className);
+        if (existingRef != null && existingRef.get() != null) {
+            return false;
+        }
+        AnalyzedClass analyzedClass;
+        preAnalyzing.set(true);
+        try {
+            analyzedClass = createAnalyzedClass(className, loader);
+        } catch (IOException e) {
+            // not logged since this runs before weaving is enabled (see ClasspathPreAnalyzer)
+            return false;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } finally {
+            preAnalyzing.remove();
+        }
+        if (Modifier.isFinal(analyzedClass.modifiers()) || analyzedClass.hasReweavableAdvice()) {
+            // final classes are never looked up as super classes, and classes with reweavable
+            // advice would be loaded by getClassesWithReweavableAdvice() during reweaving
+            return false;
+        }
+        putPreAnalyzedClass(analyzedClass, loader);
+        return true;
+    }
+
+    NameInterner getNameInterner() {
+        return nameInterner;
+    }
+
+    // the maps may share AnalyzedClass instances (see tryToReuseFromParentLoader())
+    List<Map<String, AnalyzedClass>> getAnalyzedClassMaps() {
+        List<Map<String, AnalyzedClass>> maps = Lists.newArrayList();
+        maps.addAll(getWorldValues());
+        maps.add(bootstrapLoaderWorld);
+        return maps;
+    }
+
+    long getNotRetainedFinalClassCount() {
+        return notRetainedFinalClassCount.get();
+    }
+
+    int getPreAnalyzedClassCount() {
+        purgeClearedPreAnalyzedClassRefs();
+        int count = bootstrapLoaderPreAnalyzedWorld.size();
+        for (Map<String, PreAnalyzedClassRef> map : getPreAnalyzedWorldValues()) {
+            count += map.size();
+        }
+        return count;
+    }
+
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
+        // the class has been loaded, so its pre-analysis (if any) will not be needed
+        removePreAnalyzedClass(analyzedClass.name(), loader);
+        if (Modifier.isFinal(analyzedClass.modifiers()) && !analyzedClass.hasReweavableAdvice()) {
+            // final classes are never looked up as super classes, so there is no need to retain
+            // them unless they are needed later on for reweaving
+            notRetainedFinalClassCount.getAndIncrement();
+            return;
+        }
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
     }
@@ -221,15 +325,12 @@ public class AnalyzedWorld {
     private AnalyzedClassAndLoader getOrCreateAnalyzedClass(String className,
             @Nullable ClassLoader loader, String subClassName)
             throws ClassNotFoundException, IOException {
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses =
-                getAnalyzedClasses(loader);
-        AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
+        AnalyzedClass analyzedClass = getAnalyzedClass(className, loader);
         if (analyzedClass != null) {
             return ImmutableAnalyzedClassAndLoader.of(analyzedClass, loader);
         }
         ClassLoader analyzedClassLoader = getAnalyzedLoader(className, loader, subClassName);
-        loaderAnalyzedClasses = getAnalyzedClasses(analyzedClassLoader);
-        analyzedClass = loaderAnalyzedClasses.get(className);
+        analyzedClass = getAnalyzedClass(className, analyzedClassLoader);
         if (analyzedClass == null) {
             if (analyzedClassLoader != null) {
                 // if it was loaded into bootstrap, probably was loaded prior to weaving started
@@ -238,7 +339,13 @@ public class AnalyzedWorld {
                         analyzedClassLoader.hashCode());
             }
             analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            if (preAnalyzing.get() == null) {
+                analyzedClass =
+                        putAnalyzedClass(getAnalyzedClasses(analyzedClassLoader), analyzedClass);
+            } else {
+                // super types of pre-analyzed classes are pre-analyzed classes themselves
+                putPreAnalyzedClass(analyzedClass, analyzedClassLoader);
+            }
         }
         return ImmutableAnalyzedClassAndLoader.of(analyzedClass, analyzedClassLoader);
     }
@@ -282,6 +389,11 @@ public class AnalyzedWorld {
             }
         }
         if (url == null) {
+            if (preAnalyzing.get() != null) {
+                // plan B loads the class, which must not happen during pre-analysis since the class
+                // would then bypass weaving
+                throw new ClassNotFoundException(className);
+            }
             // what follows is just a best attempt in the sort-of-rare case when a custom class
             // loader does not expose .class file contents via getResource(), e.g.
             // org.codehaus.groovy.runtime.callsite.CallSiteClassLoader
@@ -317,8 +429,7 @@ public class AnalyzedWorld {
                 // reuse parent loader's AnalyzedClass if available
                 // this saves time here, and reduces memory footprint of AnalyzedWorld
                 // which can be very noticeable when lots of ClassLoaders, e.g. groovy
-                AnalyzedClass parentLoaderAnalyzedClass =
-                        getAnalyzedClasses(parentLoader).get(className);
+                AnalyzedClass parentLoaderAnalyzedClass = getAnalyzedClass(className, parentLoader);
                 if (parentLoaderAnalyzedClass != null) {
                     return parentLoaderAnalyzedClass;
                 }
@@ -334,7 +445,7 @@ public class AnalyzedWorld {
     private AnalyzedClass createAnalyzedClassPlanB(String className, @Nullable ClassLoader loader)
             throws ClassNotFoundException {
         Class<?> clazz = Class.forName(className, false, loader);
-        AnalyzedClass analyzedClass = getAnalyzedClasses(clazz.getClassLoader()).get(className);
+        AnalyzedClass analyzedClass = getAnalyzedClass(className, clazz.getClassLoader());
         if (analyzedClass != null) {
             return analyzedClass;
         }
@@ -381,6 +492,90 @@ public class AnalyzedWorld {
         }
     }
 
+    // returns the class from the analyzed world, or else from the pre-analyzed classes, in which
+    // case it is moved into the analyzed world now that it is needed (unless it is only needed as
+    // part of another pre-analysis)
+    private @Nullable AnalyzedClass getAnalyzedClass(String className,
+            @Nullable ClassLoader loader) {
+        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
+        AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
+        if (analyzedClass != null) {
+            return analyzedClass;
+        }
+        ConcurrentMap<String, PreAnalyzedClassRef> loaderPreAnalyzedClasses =
+                getPreAnalyzedClasses(loader);
+        PreAnalyzedClassRef ref;
+        if (preAnalyzing.get() == null) {
+            ref = loaderPreAnalyzedClasses.remove(className);
+        } else {
+            ref = loaderPreAnalyzedClasses.get(className);
+        }
+        if (ref == null) {
+            return null;
+        }
+        analyzedClass = ref.get();
+        if (analyzedClass == null || preAnalyzing.get() != null) {
+            return analyzedClass;
+        }
+        return putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+    }
+
+    private void putPreAnalyzedClass(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
+        ConcurrentMap<String, PreAnalyzedClassRef> loaderPreAnalyzedClasses =
+                getPreAnalyzedClasses(loader);
+        PreAnalyzedClassRef ref = new PreAnalyzedClassRef(analyzedClass,
+                loaderPreAnalyzedClasses, clearedPreAnalyzedClassRefs);
+        PreAnalyzedClassRef existingRef =
+                loaderPreAnalyzedClasses.putIfAbsent(analyzedClass.name(), ref);
+        if (existingRef != null && existingRef.get() == null) {
+            // the existing pre-analyzed class was reclaimed by the garbage collector
+            loaderPreAnalyzedClasses.replace(analyzedClass.name(), existingRef, ref);
+        }
+    }
+
+    private void removePreAnalyzedClass(String className, @Nullable ClassLoader loader) {
+        if (loader == null) {
+            bootstrapLoaderPreAnalyzedWorld.remove(className);
+            return;
+        }
+        // not using getPreAnalyzedClasses() in order to avoid creating a map for every class loader
+        ConcurrentMap<String, PreAnalyzedClassRef> loaderPreAnalyzedClasses =
+                preAnalyzedWorld.get(loader);
+        if (loaderPreAnalyzedClasses != null) {
+            loaderPreAnalyzedClasses.remove(className);
+        }
+    }
+
+    private ConcurrentMap<String, PreAnalyzedClassRef> getPreAnalyzedClasses(
+            @Nullable ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapLoaderPreAnalyzedWorld;
+        }
+        // this synchronization is for atomicity of get/put
+        synchronized (preAnalyzedWorld) {
+            ConcurrentMap<String, PreAnalyzedClassRef> map = preAnalyzedWorld.get(loader);
+            if (map == null) {
+                map = new ConcurrentHashMap<String, PreAnalyzedClassRef>();
+                preAnalyzedWorld.put(loader, map);
+            }
+            return map;
+        }
+    }
+
+    private ImmutableList<ConcurrentMap<String, PreAnalyzedClassRef>> getPreAnalyzedWorldValues() {
+        synchronized (preAnalyzedWorld) {
+            return ImmutableList.copyOf(preAnalyzedWorld.values());
+        }
+    }
+
+    // removes the map entries of pre-analyzed classes that were reclaimed by the garbage collector
+    private void purgeClearedPreAnalyzedClassRefs() {
+        PreAnalyzedClassRef ref;
+        while ((ref = (PreAnalyzedClassRef) clearedPreAnalyzedClassRefs.poll()) != null) {
+            ref.loaderPreAnalyzedClasses.remove(ref.className, ref);
+        }
+    }
+
     private static AnalyzedClass putAnalyzedClass(
             ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
             AnalyzedClass analyzedClass) {
@@ -410,7 +605,7 @@ public class AnalyzedWorld {
         if (clazz == null) {
             logger.debug("super class {} of {} not found in loader {}@{}", className, subClassName,
                     loader.getClass().getName(), loader.hashCode());
-            if (preloadSomeSuperTypesCache != null) {
+            if (preloadSomeSuperTypesCache != null && preAnalyzing.get() == null) {
                 preloadSomeSuperTypesCache.put(subClassName, className);
             }
             return loader;
@@ -575,6 +770,20 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private static class PreAnalyzedClassRef extends SoftReference<AnalyzedClass> {
+
+        private final String className;
+        private final ConcurrentMap<String, PreAnalyzedClassRef> loaderPreAnalyzedClasses;
+
+        private PreAnalyzedClassRef(AnalyzedClass analyzedClass,
+                ConcurrentMap<String, PreAnalyzedClassRef> loaderPreAnalyzedClasses,
+                ReferenceQueue<AnalyzedClass> queue) {
+            super(analyzedClass, queue);
+            this.className = analyzedClass.name();
+            this.loaderPreAnalyzedClasses = loaderPreAnalyzedClasses;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
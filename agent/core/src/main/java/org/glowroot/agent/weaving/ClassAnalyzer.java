@@ -70,6 +70,7 @@ class ClassAnalyzer {
     private final String className;
     private final boolean intf;
     private final @Nullable ClassLoader loader;
+    private final NameInterner nameInterner;
 
     private final ImmutableAnalyzedClass.Builder analyzedClassBuilder;
     private final ImmutableList<AdviceMatcher> adviceMatchers;
@@ -99,10 +100,14 @@ class ClassAnalyzer {
             @Nullable Class<?> classBeingRedefined, boolean noLongerNeedToWeaveMainMethods) {
         this.thinClass = thinClass;
         this.loader = loader;
-        ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(thinClass.interfaces());
-        className = ClassNames.fromInternalName(thinClass.name());
+        // names are interned since the analyzed class is retained in the analyzed world
+        nameInterner = analyzedWorld.getNameInterner();
+        ImmutableList<String> interfaceNames =
+                intern(ClassNames.fromInternalNames(thinClass.interfaces()), nameInterner);
+        className = nameInterner.intern(ClassNames.fromInternalName(thinClass.name()));
         intf = Modifier.isInterface(thinClass.access());
-        String superClassName = ClassNames.fromInternalName(thinClass.superName());
+        String superClassName =
+                nameInterner.internNullable(ClassNames.fromInternalName(thinClass.superName()));
         analyzedClassBuilder = ImmutableAnalyzedClass.builder()
                 .modifiers(thinClass.access())
                 .name(className)
@@ -285,11 +290,11 @@ class ClassAnalyzer {
     private List<Advice> analyzeMethod(ThinMethod thinMethod) {
         if (Modifier.isFinal(thinMethod.access()) && Modifier.isPublic(thinMethod.access())) {
             ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
-                    .name(thinMethod.name());
+                    .name(nameInterner.intern(thinMethod.name()));
             List<Type> parameterTypes =
                     Arrays.asList(Type.getArgumentTypes(thinMethod.descriptor()));
             for (Type parameterType : parameterTypes) {
-                builder.addParameterTypes(parameterType.getClassName());
+                builder.addParameterTypes(nameInterner.intern(parameterType.getClassName()));
             }
             analyzedClassBuilder.addPublicFinalMethods(builder.build());
         }
@@ -306,15 +311,15 @@ class ClassAnalyzer {
             return ImmutableList.of();
         }
         ImmutableAnalyzedMethod.Builder builder = ImmutableAnalyzedMethod.builder();
-        builder.name(thinMethod.name());
+        builder.name(nameInterner.intern(thinMethod.name()));
         for (Type parameterType : parameterTypes) {
-            builder.addParameterTypes(parameterType.getClassName());
+            builder.addParameterTypes(nameInterner.intern(parameterType.getClassName()));
         }
-        builder.returnType(returnType.getClassName())
+        builder.returnType(nameInterner.intern(returnType.getClassName()))
                 .modifiers(thinMethod.access())
-                .signature(thinMethod.signature());
+                .signature(nameInterner.internNullable(thinMethod.signature()));
         for (String exception : thinMethod.exceptions()) {
-            builder.addExceptions(ClassNames.fromInternalName(exception));
+            builder.addExceptions(nameInterner.intern(ClassNames.fromInternalName(exception)));
         }
         List<Advice> subTypeRestrictedAdvisors = Lists.newArrayList();
         for (Iterator<Advice> i = matchingAdvisors.iterator(); i.hasNext();) {
@@ -330,6 +335,18 @@ class ClassAnalyzer {
         return matchingAdvisors;
     }
 
+    private static ImmutableList<String> intern(ImmutableList<String> names,
+            NameInterner nameInterner) {
+        if (names.isEmpty()) {
+            return names;
+        }
+        List<String> internedNames = Lists.newArrayListWithCapacity(names.size());
+        for (String name : names) {
+            internedNames.add(nameInterner.intern(name));
+        }
+        return ImmutableList.copyOf(internedNames);
+    }
+
     // returns mutable list if non-empty so items can be removed
     @RequiresNonNull("bridgeTargetAdvisors")
     private List<Advice> getMatchingAdvisors(ThinMethod thinMethod, List<String> methodAnnotations,
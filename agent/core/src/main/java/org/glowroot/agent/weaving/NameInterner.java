@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// interns the class, method and type names that are retained in AnalyzedWorld, since otherwise
+// every analyzed class and method holds its own copy of (e.g.) "java.lang.String"
+//
+// weak so that names are not retained after the analyzed classes referencing them are gone (e.g.
+// after a webapp is undeployed), and not using String.intern() since that fills up the perm gen
+// prior to Java 7
+//
+// not using the much more convenient guava Interners.newWeakInterner() for the same reason that
+// AnalyzedWorld doesn't use guava CacheBuilder (see comment there)
+//
+// the names are split across lock stripes since this is called on the class loading path (and
+// from the class path pre-analysis threads), where a single lock would serialize parallel class
+// loading
+class NameInterner {
+
+    // power of 2
+    private static final int STRIPES = 32;
+
+    private final Stripe[] stripes;
+
+    NameInterner() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    String intern(String name) {
+        return getStripe(name).intern(name);
+    }
+
+    @Nullable String internNullable(@Nullable String name) {
+        return name == null ? null : intern(name);
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe getStripe(String name) {
+        int hash = name.hashCode();
+        // spread the higher bits, same as ConcurrentHashMap
+        hash ^= (hash >>> 16);
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    private static class Stripe {
+
+        private final Map<String, WeakReference<String>> names =
+                new WeakHashMap<String, WeakReference<String>>();
+
+        private synchronized String intern(String name) {
+            WeakReference<String> ref = names.get(name);
+            if (ref != null) {
+                String interned = ref.get();
+                if (interned != null) {
+                    return interned;
+                }
+            }
+            names.put(name, new WeakReference<String>(name));
+            return name;
+        }
+
+        private synchronized int size() {
+            return names.size();
+        }
+    }
+}
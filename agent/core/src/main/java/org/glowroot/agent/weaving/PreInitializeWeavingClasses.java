@@ -312,12 +312,16 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceAdapter");
         types.add("org.glowroot.agent.weaving.AdviceBuilder");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
+        types.add("org.glowroot.agent.weaving.AdviceIndex");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$AdvisorsKey");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$PrefixNode");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$AnalyzedClassAndLoader");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$PreAnalyzedClassRef");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
@@ -383,6 +387,8 @@ public class PreInitializeWeavingClasses {
                 + "$TransactionAnnotationVisitor");
         types.add("org.glowroot.agent.weaving.JSRInlinerClassVisitor");
         types.add("org.glowroot.agent.weaving.MixinType");
+        types.add("org.glowroot.agent.weaving.NameInterner");
+        types.add("org.glowroot.agent.weaving.NameInterner$Stripe");
         types.add("org.glowroot.agent.weaving.PluginClassRenamer");
         types.add("org.glowroot.agent.weaving.PluginClassRenamer$PluginClassRemapper");
         types.add("org.glowroot.agent.weaving.PluginDetail$PointcutClass");
@@ -416,6 +422,11 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
+        types.add("org.glowroot.agent.weaving.WovenClassCache");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$CachedWeaving");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$CorruptFileException");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$IndexEntry");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$PendingEntry");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$Builder");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$InitShim");
@@ -544,9 +555,11 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.util.Tickers$1");
         types.add("org.glowroot.agent.weaving.Advice$1");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$1");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$1");
         types.add("org.glowroot.agent.weaving.AnalyzedClass$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethodKey$1");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$1");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$1");
         types.add("org.glowroot.agent.weaving.ClassAnalyzer$1");
         types.add("org.glowroot.agent.weaving.ClassAnalyzer$BridgeMethodClassVisitor$1");
@@ -565,6 +578,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ImmutableThinMethod$1");
         types.add("org.glowroot.agent.weaving.InstrumentationSeekerClassVisitor$1");
         types.add("org.glowroot.agent.weaving.MethodMetaGroup$1");
+        types.add("org.glowroot.agent.weaving.NameInterner$1");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$1");
         types.add("org.glowroot.agent.weaving.PluginClassRenamer$1");
         types.add("org.glowroot.agent.weaving.PluginDetailBuilder$1");
@@ -574,6 +588,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor$1");
         types.add("org.glowroot.agent.weaving.Weaver$EclipseOsgiHackClassVisitor$1");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$1");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$1");
         // this is referenced and picked up via org.glowroot.agent.weaving.Weaver$1
         types.add("org.glowroot.agent.plugin.api.config.ConfigListener");
         // this is a special class generated by javac (but not by the eclipse compiler) to handle
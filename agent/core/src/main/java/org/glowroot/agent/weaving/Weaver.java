@@ -22,6 +22,7 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Modifier;
 import java.security.CodeSource;
 import java.util.Collections;
 import java.util.List;
@@ -56,9 +57,13 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+import org.glowroot.agent.weaving.WovenClassCache.CachedWeaving;
 import org.glowroot.common.util.ScheduledRunnable.TerminateSubsequentExecutionsException;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.objectweb.asm.Opcodes.ASM7;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
@@ -84,6 +89,8 @@ public class Weaver {
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
+    // only null for tests
+    private final @Nullable WovenClassCache wovenClassCache;
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
@@ -99,12 +106,13 @@ public class Weaver {
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
-            TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            @Nullable WovenClassCache wovenClassCache, TransactionRegistry transactionRegistry,
+            Ticker ticker, TimerNameCache timerNameCache, final ConfigService configService) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
+        this.wovenClassCache = wovenClassCache;
         this.transactionRegistry = transactionRegistry;
         this.ticker = ticker;
         configService.addConfigListener(new ConfigListener() {
@@ -182,6 +190,21 @@ public class Weaver {
                 classBytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        byte[] cacheKey = null;
+        if (wovenClassCache != null && classBeingRedefined == null
+                && !className.equals(DEBUG_CLASS_NAME)) {
+            // getKey() returns null when advisors have been merged with @Instrumentation
+            // annotations above, or have changed since the cache was created
+            cacheKey = wovenClassCache.getKey(classBytes,
+                    getSuperAnalyzedClasses(accv.getThinClass(), loader, codeSource), advisors,
+                    loader == null, noLongerNeedToWeaveMainMethods);
+            if (cacheKey != null) {
+                CachedWeaving cachedWeaving = wovenClassCache.get(cacheKey, loader);
+                if (cachedWeaving != null) {
+                    return cachedWeaving.getWovenBytes();
+                }
+            }
+        }
         boolean frames = accv.getMajorVersion() >= V1_6;
         int parsingOptions = frames ? ClassReader.EXPAND_FRAMES : ClassReader.SKIP_FRAMES;
         byte[] maybeProcessedBytes = null;
@@ -224,6 +247,10 @@ public class Weaver {
         }
         if (!classAnalyzer.isWeavingRequired()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (cacheKey != null) {
+                checkNotNull(wovenClassCache).put(cacheKey, maybeProcessedBytes,
+                        ImmutableList.<Advice>of());
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -309,9 +336,31 @@ public class Weaver {
                 return null;
             }
         }
+        if (cacheKey != null && !cv.hasMetaHolder()) {
+            checkNotNull(wovenClassCache).put(cacheKey, transformedBytes, cv.getUsedAdvisors());
+        }
         return transformedBytes;
     }
 
+    // the super types are retained in the analyzed world, so on a cache miss they are not analyzed
+    // a second time by ClassAnalyzer
+    private List<AnalyzedClass> getSuperAnalyzedClasses(ThinClass thinClass,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        String className = ClassNames.fromInternalName(thinClass.name());
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : ClassNames.fromInternalNames(thinClass.interfaces())) {
+            superAnalyzedClasses.addAll(analyzedWorld.getAnalyzedHierarchy(interfaceName, loader,
+                    className, parseContext));
+        }
+        if (!Modifier.isInterface(thinClass.access())) {
+            superAnalyzedClasses.addAll(analyzedWorld.getAnalyzedHierarchy(
+                    ClassNames.fromInternalName(thinClass.superName()), loader, className,
+                    parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
     private void checkForDeadlockedActiveWeaving(List<Long> activeWeavingThreadIds) {
         ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         long[] deadlockedThreadIds = threadBean.findDeadlockedThreads();
@@ -263,6 +263,12 @@ class WeavingClassVisitor extends ClassVisitor {
         return usedAdvisors;
     }
 
+    // the meta holder class is generated and defined as a side effect of weaving, and its name is
+    // unique only to this JVM
+    boolean hasMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     private boolean isMixinProxy(String name, String descriptor) {
         for (ClassNode cn : mixinClassNodes) {
             List<MethodNode> methodNodes = cn.methods;
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class WeavingStats implements WeavingStatsMXBean {
+
+    // estimates assume 64-bit jvm with compressed oops (12 byte object header, 4 byte references,
+    // objects aligned to 8 bytes)
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    // ConcurrentHashMap node plus its slot in the table
+    private static final int MAP_ENTRY_BYTES = 36;
+
+    private final AnalyzedWorld analyzedWorld;
+
+    public WeavingStats(AnalyzedWorld analyzedWorld) {
+        this.analyzedWorld = analyzedWorld;
+    }
+
+    @Override
+    public int getAnalyzedClassLoaders() {
+        return analyzedWorld.getAnalyzedClassMaps().size();
+    }
+
+    @Override
+    public int getAnalyzedClasses() {
+        return getDistinctAnalyzedClasses().size();
+    }
+
+    @Override
+    public int getAnalyzedMethods() {
+        int count = 0;
+        for (AnalyzedClass analyzedClass : getDistinctAnalyzedClasses()) {
+            count += analyzedClass.analyzedMethods().size();
+        }
+        return count;
+    }
+
+    @Override
+    public long getNotRetainedFinalClasses() {
+        return analyzedWorld.getNotRetainedFinalClassCount();
+    }
+
+    @Override
+    public int getPreAnalyzedClasses() {
+        return analyzedWorld.getPreAnalyzedClassCount();
+    }
+
+    @Override
+    public int getInternedNames() {
+        return analyzedWorld.getNameInterner().size();
+    }
+
+    @Override
+    public long getEstimatedAnalyzedWorldBytes() {
+        long bytes = 0;
+        for (Map<String, AnalyzedClass> map : analyzedWorld.getAnalyzedClassMaps()) {
+            bytes += (long) map.size() * MAP_ENTRY_BYTES;
+        }
+        // strings are only counted once, since interned names are shared across analyzed classes
+        Set<String> strings = Sets.newIdentityHashSet();
+        for (AnalyzedClass analyzedClass : getDistinctAnalyzedClasses()) {
+            bytes += objectBytes(8, 5);
+            bytes += stringBytes(analyzedClass.name(), strings);
+            bytes += stringBytes(analyzedClass.superName(), strings);
+            bytes += stringListBytes(analyzedClass.interfaceNames(), strings);
+            bytes += listBytes(analyzedClass.shimTypes());
+            bytes += listBytes(analyzedClass.mixinTypes());
+            bytes += listBytes(analyzedClass.nonReweavableMixinTypes());
+            bytes += listBytes(analyzedClass.analyzedMethods());
+            for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+                bytes += objectBytes(7, 4);
+                bytes += stringBytes(analyzedMethod.name(), strings);
+                bytes += stringListBytes(analyzedMethod.parameterTypes(), strings);
+                bytes += stringBytes(analyzedMethod.returnType(), strings);
+                bytes += stringBytes(analyzedMethod.signature(), strings);
+                bytes += stringListBytes(analyzedMethod.exceptions(), strings);
+                bytes += listBytes(analyzedMethod.advisors());
+                bytes += listBytes(analyzedMethod.subTypeRestrictedAdvisors());
+            }
+            bytes += listBytes(analyzedClass.publicFinalMethods());
+            for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+                bytes += objectBytes(2, 0);
+                bytes += stringBytes(publicFinalMethod.name(), strings);
+                bytes += stringListBytes(publicFinalMethod.parameterTypes(), strings);
+            }
+        }
+        return bytes;
+    }
+
+    private Set<AnalyzedClass> getDistinctAnalyzedClasses() {
+        Set<AnalyzedClass> analyzedClasses = Sets.newIdentityHashSet();
+        for (Map<String, AnalyzedClass> map : analyzedWorld.getAnalyzedClassMaps()) {
+            analyzedClasses.addAll(map.values());
+        }
+        return analyzedClasses;
+    }
+
+    private static long stringListBytes(List<String> list, Set<String> strings) {
+        long bytes = listBytes(list);
+        for (String string : list) {
+            bytes += stringBytes(string, strings);
+        }
+        return bytes;
+    }
+
+    private static long stringBytes(@Nullable String string, Set<String> strings) {
+        if (string == null || !strings.add(string)) {
+            return 0;
+        }
+        // hash field plus reference to char array
+        return objectBytes(1, 4) + align(ARRAY_HEADER_BYTES + 2 * string.length());
+    }
+
+    private static long listBytes(List<?> list) {
+        if (list.isEmpty()) {
+            // empty immutable lists are a shared singleton
+            return 0;
+        }
+        if (list.size() == 1) {
+            return objectBytes(1, 0);
+        }
+        return objectBytes(1, 0) + align(ARRAY_HEADER_BYTES + REFERENCE_BYTES * list.size());
+    }
+
+    private static long objectBytes(int references, int primitiveBytes) {
+        return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES * references + primitiveBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+public interface WeavingStatsMXBean {
+
+    // number of class loaders (including the bootstrap class loader) with analyzed classes
+    int getAnalyzedClassLoaders();
+    int getAnalyzedClasses();
+    int getAnalyzedMethods();
+    // final classes are not retained in the analyzed world (unless they have reweavable advice)
+    long getNotRetainedFinalClasses();
+    // pre-analyzed classes (see ClasspathPreAnalyzer) that have not been needed yet, these are not
+    // included in the counts and estimate above, and are only softly referenced
+    int getPreAnalyzedClasses();
+    int getInternedNames();
+
+    // estimated (on each call) by walking the analyzed world, this does not include the advice,
+    // shim types and mixin types that are referenced from the analyzed world (since these are
+    // retained anyways)
+    long getEstimatedAnalyzedWorldBytes();
+}
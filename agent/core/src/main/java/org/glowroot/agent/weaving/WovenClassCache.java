@@ -0,0 +1,588 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
+import org.objectweb.asm.Type;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.ScheduledRunnable;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// persists the result of weaving each class across JVM restarts, so that on subsequent JVM starts,
+// classes whose bytes have not changed can skip class analysis and bytecode rewriting
+//
+// entries are keyed by the sha1 of the original class bytes together with the analyzed super types,
+// and the entire file is discarded when the fingerprint (glowroot jar, plugin jars and
+// instrumentation config) changes
+//
+// classes that are served from this cache are not added to AnalyzedWorld, which is ok since
+// AnalyzedWorld creates analyzed classes on demand (from the class bytes) when they are needed as
+// part of analyzing a subclass, but for this reason, classes with reweavable advice are never
+// cached, since reweaving relies on AnalyzedWorld to find classes with reweavable advice
+//
+// this cache can be disabled with -Dglowroot.weaving.cache.disabled=true
+public class WovenClassCache extends ScheduledRunnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WovenClassCache.class);
+
+    private static final boolean DISABLED = Boolean.getBoolean("glowroot.weaving.cache.disabled");
+
+    private static final int FORMAT_VERSION = 2;
+    private static final int DIGEST_LENGTH = 20;
+    // format version and fingerprint digest
+    private static final int HEADER_LENGTH = 4 + DIGEST_LENGTH;
+    // key and value length
+    private static final int ENTRY_HEADER_LENGTH = DIGEST_LENGTH + 4;
+
+    // limits the amount of memory retained by woven classes waiting to be written to the file
+    private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    private final long maxFileSize;
+    private final List<Advice> advisors;
+    private final Map<String, LazyDefinedClass> nonBootstrapLoaderAdviceClasses;
+
+    // cloned for each use, which avoids security provider lookup inside of
+    // ClassFileTransformer.transform()
+    private final MessageDigest messageDigest;
+
+    // lookups and reads are lock-free since they are performed on the class loading path, entries
+    // are only added to the index after they have been written to the file
+    private final ConcurrentMap<Long, IndexEntry> index = new ConcurrentHashMap<Long, IndexEntry>();
+    // null after an unexpected error, which disables the cache
+    private volatile @Nullable FileChannel fileChannel;
+    // guarded by this
+    private long fileLength;
+
+    private final ConcurrentLinkedQueue<PendingEntry> pendingEntries =
+            new ConcurrentLinkedQueue<PendingEntry>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    public static @Nullable WovenClassCache create(File file, long maxFileSize, String fingerprint,
+            Supplier<List<Advice>> advisors) {
+        if (DISABLED) {
+            return null;
+        }
+        try {
+            return new WovenClassCache(file, maxFileSize, fingerprint, advisors.get());
+        } catch (Exception e) {
+            logger.error("unable to open {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    WovenClassCache(File file, long maxFileSize, String fingerprint, List<Advice> advisors)
+            throws IOException, NoSuchAlgorithmException {
+        this.maxFileSize = maxFileSize;
+        this.advisors = advisors;
+        nonBootstrapLoaderAdviceClasses = new HashMap<String, LazyDefinedClass>();
+        for (Advice advice : advisors) {
+            LazyDefinedClass nonBootstrapLoaderAdviceClass = advice.nonBootstrapLoaderAdviceClass();
+            if (nonBootstrapLoaderAdviceClass != null) {
+                nonBootstrapLoaderAdviceClasses.put(advice.adviceType().getInternalName(),
+                        nonBootstrapLoaderAdviceClass);
+            }
+        }
+        messageDigest = MessageDigest.getInstance("SHA-1");
+        byte[] fingerprintDigest = messageDigest.digest(fingerprint.getBytes(UTF_8));
+        long validLength = loadIndex(file, fingerprintDigest, maxFileSize, index);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        if (validLength == 0) {
+            index.clear();
+            randomAccessFile.setLength(0);
+            randomAccessFile.writeInt(FORMAT_VERSION);
+            randomAccessFile.write(fingerprintDigest);
+            fileLength = HEADER_LENGTH;
+        } else {
+            // truncate any partially written or corrupt entries (e.g. from the JVM being killed
+            // while writing)
+            randomAccessFile.setLength(validLength);
+            fileLength = validLength;
+        }
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    // the woven bytes of a class also depend on its super types (e.g. advice on a super type
+    // method, or a matching shim or mixin), so the analyzed super types are part of the key, this
+    // way stale bytes are not returned when only a super type (e.g. from a different jar) has
+    // changed
+    //
+    // returns null if the advisors have changed since this cache was created (e.g. reweaving after
+    // instrumentation config change), since the cached entries are only valid for the original
+    // advisors
+    byte /*@Nullable*/ [] getKey(byte[] classBytes, List<AnalyzedClass> superAnalyzedClasses,
+            List<Advice> advisors, boolean bootstrapLoader,
+            boolean noLongerNeedToWeaveMainMethods) {
+        if (advisors != this.advisors) {
+            return null;
+        }
+        MessageDigest messageDigest;
+        try {
+            messageDigest = (MessageDigest) this.messageDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        messageDigest.update(classBytes);
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            updateDigest(messageDigest, superAnalyzedClass);
+        }
+        // these affect the woven bytes
+        messageDigest.update((byte) (bootstrapLoader ? 1 : 0));
+        messageDigest.update((byte) (noLongerNeedToWeaveMainMethods ? 1 : 0));
+        return messageDigest.digest();
+    }
+
+    // returns null if not found in the cache
+    @Nullable
+    CachedWeaving get(byte[] key, @Nullable ClassLoader loader) {
+        CachedWeaving cachedWeaving;
+        try {
+            cachedWeaving = read(key);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            disable();
+            return null;
+        }
+        if (cachedWeaving == null) {
+            return null;
+        }
+        if (loader != null) {
+            for (String adviceTypeInternalName : cachedWeaving.usedAdviceTypes) {
+                LazyDefinedClass nonBootstrapLoaderAdviceClass =
+                        nonBootstrapLoaderAdviceClasses.get(adviceTypeInternalName);
+                if (nonBootstrapLoaderAdviceClass == null) {
+                    // advice no longer exists (this shouldn't happen since fingerprint should have
+                    // changed)
+                    return null;
+                }
+                try {
+                    ClassLoaders.defineClassIfNotExists(nonBootstrapLoaderAdviceClass, loader);
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                    return null;
+                }
+            }
+        }
+        return cachedWeaving;
+    }
+
+    void put(byte[] key, byte /*@Nullable*/ [] wovenBytes, Collection<Advice> usedAdvisors) {
+        List<String> usedAdviceTypes = ImmutableList.of();
+        if (!usedAdvisors.isEmpty()) {
+            ImmutableList.Builder<String> builder = ImmutableList.builder();
+            for (Advice advice : usedAdvisors) {
+                if (advice.reweavable()) {
+                    // see comment at top of class
+                    return;
+                }
+                if (advice.nonBootstrapLoaderAdviceClass() != null) {
+                    builder.add(advice.adviceType().getInternalName());
+                }
+            }
+            usedAdviceTypes = builder.build();
+        }
+        long bytes = wovenBytes == null ? 0 : wovenBytes.length;
+        if (pendingBytes.addAndGet(bytes) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-bytes);
+            return;
+        }
+        pendingEntries.add(new PendingEntry(key, wovenBytes, usedAdviceTypes));
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        writePendingEntries();
+    }
+
+    @VisibleForTesting
+    void writePendingEntries() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        List<PendingEntry> entries = Lists.newArrayList();
+        PendingEntry pendingEntry;
+        while ((pendingEntry = pendingEntries.poll()) != null) {
+            entries.add(pendingEntry);
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        int[] entryOffsets = new int[entries.size() + 1];
+        for (int i = 0; i < entries.size(); i++) {
+            entryOffsets[i] = out.size();
+            writeEntry(out, entries.get(i));
+        }
+        out.flush();
+        entryOffsets[entries.size()] = out.size();
+        try {
+            synchronized (this) {
+                FileChannel fileChannel = this.fileChannel;
+                if (fileChannel == null) {
+                    return;
+                }
+                long offset = fileLength;
+                if (offset + baos.size() > maxFileSize) {
+                    // the file is reset on next JVM start (see loadIndex)
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer, offset + buffer.position());
+                }
+                fileLength = offset + baos.size();
+                for (int i = 0; i < entries.size(); i++) {
+                    index.put(getIndexKey(entries.get(i).key),
+                            new IndexEntry(offset + entryOffsets[i],
+                                    entryOffsets[i + 1] - entryOffsets[i]));
+                }
+            }
+        } finally {
+            for (PendingEntry entry : entries) {
+                pendingBytes.addAndGet(entry.wovenBytes == null ? 0 : -entry.wovenBytes.length);
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    synchronized void close() throws IOException {
+        FileChannel fileChannel = this.fileChannel;
+        if (fileChannel != null) {
+            fileChannel.close();
+            this.fileChannel = null;
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return index.size();
+    }
+
+    private @Nullable CachedWeaving read(byte[] key) throws IOException {
+        FileChannel fileChannel = this.fileChannel;
+        if (fileChannel == null) {
+            return null;
+        }
+        IndexEntry indexEntry = index.get(getIndexKey(key));
+        if (indexEntry == null) {
+            return null;
+        }
+        byte[] entry = new byte[indexEntry.length];
+        readFully(fileChannel, ByteBuffer.wrap(entry), indexEntry.offset);
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (entry[i] != key[i]) {
+                // index key collision
+                return null;
+            }
+        }
+        return readEntryValue(entry, ENTRY_HEADER_LENGTH, entry.length - ENTRY_HEADER_LENGTH);
+    }
+
+    private synchronized void disable() {
+        FileChannel fileChannel = this.fileChannel;
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+            this.fileChannel = null;
+        }
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long offset)
+            throws IOException {
+        // this is called from inside ClassFileTransformer.transform() on application threads, and
+        // FileChannel closes itself if the reading thread is interrupted, so the interrupt status
+        // is cleared during the read and then restored
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, offset + buffer.position()) == -1) {
+                    throw new EOFException();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, PendingEntry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream valueOut = new DataOutputStream(baos);
+        valueOut.writeShort(entry.usedAdviceTypes.size());
+        for (String usedAdviceType : entry.usedAdviceTypes) {
+            valueOut.writeUTF(usedAdviceType);
+        }
+        byte[] wovenBytes = entry.wovenBytes;
+        if (wovenBytes == null) {
+            valueOut.writeInt(-1);
+        } else {
+            valueOut.writeInt(wovenBytes.length);
+            valueOut.write(wovenBytes);
+        }
+        valueOut.flush();
+        out.write(entry.key);
+        out.writeInt(baos.size());
+        baos.writeTo(out);
+    }
+
+    // all lengths are validated against the length of the value, so that a corrupt file cannot
+    // lead to huge allocations
+    private static CachedWeaving readEntryValue(byte[] bytes, int offset, int length)
+            throws IOException {
+        DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        try {
+            int usedAdviceTypeCount = in.readUnsignedShort();
+            // each string is prefixed by its (two byte) length
+            if (usedAdviceTypeCount * 2 > in.available()) {
+                throw new CorruptFileException();
+            }
+            String[] usedAdviceTypes = new String[usedAdviceTypeCount];
+            for (int i = 0; i < usedAdviceTypeCount; i++) {
+                usedAdviceTypes[i] = in.readUTF();
+            }
+            int wovenBytesLength = in.readInt();
+            byte[] wovenBytes;
+            if (wovenBytesLength == -1) {
+                wovenBytes = null;
+            } else if (wovenBytesLength < 0 || wovenBytesLength != in.available()) {
+                throw new CorruptFileException();
+            } else {
+                wovenBytes = new byte[wovenBytesLength];
+                in.readFully(wovenBytes);
+            }
+            return new CachedWeaving(wovenBytes, usedAdviceTypes);
+        } catch (EOFException e) {
+            throw new CorruptFileException();
+        } catch (UTFDataFormatException e) {
+            throw new CorruptFileException();
+        }
+    }
+
+    // returns the length of the valid portion of the file, or zero if the file needs to be reset
+    //
+    // the file is truncated to the valid portion, which drops any entries following a partially
+    // written (e.g. from the JVM being killed while writing) or otherwise corrupt entry
+    private static long loadIndex(File file, byte[] fingerprintDigest, long maxFileSize,
+            Map<Long, IndexEntry> index) throws IOException {
+        long fileLength = file.length();
+        if (!file.exists() || fileLength >= maxFileSize) {
+            // when the file is full, it is reset and then re-filled with the classes that are
+            // actually still being loaded
+            return 0;
+        }
+        CountingInputStream countingIn =
+                new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(countingIn);
+        try {
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return 0;
+                }
+                byte[] storedFingerprintDigest = new byte[DIGEST_LENGTH];
+                in.readFully(storedFingerprintDigest);
+                if (!MessageDigest.isEqual(fingerprintDigest, storedFingerprintDigest)) {
+                    return 0;
+                }
+            } catch (EOFException e) {
+                return 0;
+            }
+            long validLength = countingIn.getCount();
+            byte[] key = new byte[DIGEST_LENGTH];
+            while (true) {
+                try {
+                    in.readFully(key);
+                    int valueLength = in.readInt();
+                    if (valueLength < 0 || valueLength > fileLength - countingIn.getCount()) {
+                        return validLength;
+                    }
+                    byte[] value = new byte[valueLength];
+                    in.readFully(value);
+                    readEntryValue(value, 0, valueLength);
+                } catch (EOFException e) {
+                    return validLength;
+                } catch (CorruptFileException e) {
+                    return validLength;
+                }
+                long entryLength = countingIn.getCount() - validLength;
+                index.put(getIndexKey(key), new IndexEntry(validLength, (int) entryLength));
+                validLength += entryLength;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void updateDigest(MessageDigest messageDigest, AnalyzedClass analyzedClass) {
+        updateDigest(messageDigest, analyzedClass.modifiers());
+        updateDigest(messageDigest, analyzedClass.name());
+        updateDigest(messageDigest, analyzedClass.superName());
+        updateDigest(messageDigest, analyzedClass.interfaceNames());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            updateDigest(messageDigest, analyzedMethod.modifiers());
+            updateDigest(messageDigest, analyzedMethod.name());
+            updateDigest(messageDigest, analyzedMethod.parameterTypes());
+            updateDigest(messageDigest, analyzedMethod.returnType());
+            updateDigest(messageDigest, analyzedMethod.signature());
+            updateDigest(messageDigest, analyzedMethod.exceptions());
+            for (Advice advice : analyzedMethod.advisors()) {
+                updateDigest(messageDigest, advice.adviceType().getInternalName());
+            }
+            messageDigest.update((byte) 0);
+            for (Advice advice : analyzedMethod.subTypeRestrictedAdvisors()) {
+                updateDigest(messageDigest, advice.adviceType().getInternalName());
+            }
+            messageDigest.update((byte) 0);
+        }
+        messageDigest.update((byte) 0);
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            updateDigest(messageDigest, publicFinalMethod.name());
+            updateDigest(messageDigest, publicFinalMethod.parameterTypes());
+        }
+        messageDigest.update((byte) 0);
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            updateDigest(messageDigest, shimType.iface().getInternalName());
+        }
+        messageDigest.update((byte) 0);
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            for (Type mixinInterface : mixinType.interfaces()) {
+                updateDigest(messageDigest, mixinInterface.getInternalName());
+            }
+        }
+        messageDigest.update((byte) 0);
+        for (MixinType mixinType : analyzedClass.nonReweavableMixinTypes()) {
+            for (Type mixinInterface : mixinType.interfaces()) {
+                updateDigest(messageDigest, mixinInterface.getInternalName());
+            }
+        }
+        messageDigest.update((byte) 0);
+        messageDigest.update((byte) (analyzedClass.ejbRemote() ? 1 : 0));
+    }
+
+    private static void updateDigest(MessageDigest messageDigest, List<String> values) {
+        updateDigest(messageDigest, values.size());
+        for (String value : values) {
+            updateDigest(messageDigest, value);
+        }
+    }
+
+    // the length prefix keeps adjacent values from running together
+    private static void updateDigest(MessageDigest messageDigest, @Nullable String value) {
+        if (value == null) {
+            updateDigest(messageDigest, -1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            updateDigest(messageDigest, bytes.length);
+            messageDigest.update(bytes);
+        }
+    }
+
+    private static void updateDigest(MessageDigest messageDigest, int value) {
+        messageDigest.update((byte) (value >>> 24));
+        messageDigest.update((byte) (value >>> 16));
+        messageDigest.update((byte) (value >>> 8));
+        messageDigest.update((byte) value);
+    }
+
+    private static long getIndexKey(byte[] key) {
+        long indexKey = 0;
+        for (int i = 0; i < 8; i++) {
+            indexKey = (indexKey << 8) | (key[i] & 0xff);
+        }
+        return indexKey;
+    }
+
+    static class CachedWeaving {
+
+        private final byte /*@Nullable*/ [] wovenBytes;
+        private final String[] usedAdviceTypes;
+
+        private CachedWeaving(byte /*@Nullable*/ [] wovenBytes, String[] usedAdviceTypes) {
+            this.wovenBytes = wovenBytes;
+            this.usedAdviceTypes = usedAdviceTypes;
+        }
+
+        // null means no weaving was required
+        byte /*@Nullable*/ [] getWovenBytes() {
+            return wovenBytes;
+        }
+    }
+
+    private static class IndexEntry {
+
+        private final long offset;
+        private final int length;
+
+        private IndexEntry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class CorruptFileException extends IOException {}
+
+    private static class PendingEntry {
+
+        private final byte[] key;
+        private final byte /*@Nullable*/ [] wovenBytes;
+        private final List<String> usedAdviceTypes;
+
+        private PendingEntry(byte[] key, byte /*@Nullable*/ [] wovenBytes,
+                List<String> usedAdviceTypes) {
+            this.key = key;
+            this.wovenBytes = wovenBytes;
+            this.usedAdviceTypes = usedAdviceTypes;
+        }
+    }
+}
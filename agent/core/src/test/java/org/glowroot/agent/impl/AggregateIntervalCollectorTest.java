@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateIntervalCollectorTest {
+
+    private static final int LANES = 4;
+
+    private static final String TRANSACTION_TYPE = "Web";
+
+    @Test
+    public void shouldMatchSingleThreadedAggregationWhenProcessedAcrossLanes() throws Exception {
+        // given
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            transactions.add(mockTransaction("name" + (i % 37), 1000 + i));
+        }
+        AggregateIntervalCollector singleThreaded = newIntervalCollector();
+        AggregateIntervalCollector acrossLanes = newIntervalCollector();
+
+        // when
+        for (Transaction transaction : transactions) {
+            singleThreaded.add(transaction);
+        }
+        addAcrossLanes(acrossLanes, transactions);
+
+        // then
+        assertThat(acrossLanes.getOverviewAggregate(TRANSACTION_TYPE, null))
+                .isEqualTo(singleThreaded.getOverviewAggregate(TRANSACTION_TYPE, null));
+        assertThat(acrossLanes.getThroughputAggregate(TRANSACTION_TYPE, null))
+                .isEqualTo(singleThreaded.getThroughputAggregate(TRANSACTION_TYPE, null));
+        for (int i = 0; i < 37; i++) {
+            String transactionName = "name" + i;
+            assertThat(acrossLanes.getOverviewAggregate(TRANSACTION_TYPE, transactionName))
+                    .isEqualTo(singleThreaded.getOverviewAggregate(TRANSACTION_TYPE,
+                            transactionName));
+            assertThat(acrossLanes.getThroughputAggregate(TRANSACTION_TYPE, transactionName))
+                    .isEqualTo(singleThreaded.getThroughputAggregate(TRANSACTION_TYPE,
+                            transactionName));
+        }
+    }
+
+    private static void addAcrossLanes(final AggregateIntervalCollector intervalCollector,
+            List<Transaction> transactions) throws Exception {
+        // partitioned by transaction name, same as TransactionProcessor
+        final List<List<Transaction>> lanes = Lists.newArrayList();
+        for (int i = 0; i < LANES; i++) {
+            lanes.add(Lists.<Transaction>newArrayList());
+        }
+        for (Transaction transaction : transactions) {
+            String transactionName = transaction.getTransactionName();
+            lanes.get((transactionName.hashCode() & Integer.MAX_VALUE) % LANES).add(transaction);
+        }
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(LANES);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (final List<Transaction> lane : lanes) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (Transaction transaction : lane) {
+                        intervalCollector.add(transaction);
+                    }
+                }
+            }));
+        }
+        startLatch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    private static AggregateIntervalCollector newIntervalCollector() {
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(60000L);
+        return new AggregateIntervalCollector(60000, 60000, 100, 500, 500, clock);
+    }
+
+    private static Transaction mockTransaction(String transactionName, long durationNanos) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("http request");
+        when(rootTimer.getTotalNanos()).thenReturn(durationNanos);
+        when(rootTimer.getCount()).thenReturn(1L);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn(TRANSACTION_TYPE);
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getMainThreadStats())
+                .thenReturn(new ThreadStats(durationNanos / 2, 1, 2, 100));
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        return transaction;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,14 +18,18 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import org.junit.Test;
 
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class QueryCollectorTest {
@@ -48,6 +52,34 @@ public class QueryCollectorTest {
         test(queries);
     }
 
+    @Test
+    public void shouldGetFullQueryText() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 4);
+        String shortQueryText = "select 1";
+        String longQueryText = Strings.repeat("x", Constants.AGGREGATE_QUERY_TEXT_TRUNCATE + 1);
+        String otherLongQueryText =
+                Strings.repeat("y", Constants.AGGREGATE_QUERY_TEXT_TRUNCATE + 1);
+        queries.mergeQuery("SQL", shortQueryText, 1, 1, false, 0, false);
+        queries.mergeQuery("SQL", longQueryText, 1, 1, false, 0, false);
+        queries.mergeQuery("SQL", longQueryText, 1, 1, false, 0, false);
+
+        // when
+        String fullQueryText = queries.getFullQueryText(sha1(longQueryText));
+        // merged after the first lookup
+        queries.mergeQuery("CQL", otherLongQueryText, 1, 1, false, 0, false);
+        String otherFullQueryText = queries.getFullQueryText(sha1(otherLongQueryText));
+
+        // then
+        assertThat(fullQueryText).isEqualTo(longQueryText);
+        assertThat(otherFullQueryText).isEqualTo(otherLongQueryText);
+        assertThat(queries.getFullQueryText(sha1(shortQueryText))).isNull();
+    }
+
+    private static String sha1(String text) {
+        return Hashing.sha1().hashString(text, UTF_8).toString();
+    }
+
     private void test(QueryCollector collector) throws Exception {
         // when
         SharedQueryTextCollectionImpl sharedQueryTextCollection =
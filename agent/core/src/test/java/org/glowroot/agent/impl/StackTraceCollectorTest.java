@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.common.config.ImmutableTransactionConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    private TransactionRegistry transactionRegistry;
+    private StackTraceCollector stackTraceCollector;
+
+    @Before
+    public void beforeEachTest() {
+        transactionRegistry = mock(TransactionRegistry.class);
+        ConfigService configService = mock(ConfigService.class);
+        // profiling interval 0 keeps the processing thread out of the way of these tests, which
+        // run each capture cycle directly
+        when(configService.getTransactionConfig()).thenReturn(ImmutableTransactionConfig.builder()
+                .profilingIntervalMillis(0)
+                .build());
+        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService,
+                new Random(), Ticker.systemTicker());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        stackTraceCollector.close();
+    }
+
+    @Test
+    public void shouldCaptureInBatches() throws Exception {
+        // given
+        List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            threadContexts.add(mockThreadContext(Thread.currentThread().getId()));
+        }
+        setTransactions(threadContexts);
+
+        // when
+        long sleptMillis = stackTraceCollector.runInternal(30, 2);
+
+        // then
+        // 3 batches, with 2 pauses of 10 milliseconds in between
+        assertThat(sleptMillis).isEqualTo(20);
+        for (ThreadContextImpl threadContext : threadContexts) {
+            verify(threadContext).captureStackTrace(any(ThreadInfo.class));
+        }
+        assertThat(stackTraceCollector.getLastStackTracesCaptured()).isEqualTo(5);
+        assertThat(stackTraceCollector.getLastFramesCaptured()).isGreaterThan(0);
+        assertThat(stackTraceCollector.getTotalStackTracesCaptured()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldNotCaptureThreadContextsCompletedBetweenBatches() throws Exception {
+        // given
+        ThreadContextImpl threadContext1 = mockThreadContext(Thread.currentThread().getId());
+        ThreadContextImpl threadContext2 = mockThreadContext(Thread.currentThread().getId());
+        // active when collected, but completed by the time its batch is captured
+        when(threadContext2.isActive()).thenReturn(true, false);
+        setTransactions(ImmutableList.of(threadContext1, threadContext2));
+
+        // when
+        stackTraceCollector.runInternal(0, 1);
+
+        // then
+        verify(threadContext1).captureStackTrace(any(ThreadInfo.class));
+        verify(threadContext2, never()).captureStackTrace(any(ThreadInfo.class));
+        assertThat(stackTraceCollector.getLastStackTracesCaptured()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCountThreadsThatHaveTerminated() throws Exception {
+        // given
+        Thread thread = new Thread();
+        thread.start();
+        thread.join();
+        ThreadContextImpl liveThreadContext = mockThreadContext(Thread.currentThread().getId());
+        ThreadContextImpl terminatedThreadContext = mockThreadContext(thread.getId());
+        setTransactions(ImmutableList.of(liveThreadContext, terminatedThreadContext));
+
+        // when
+        stackTraceCollector.runInternal(0, 10);
+
+        // then
+        verify(terminatedThreadContext, never()).captureStackTrace(any(ThreadInfo.class));
+        assertThat(stackTraceCollector.getLastStackTracesCaptured()).isEqualTo(1);
+        assertThat(stackTraceCollector.getTotalStackTracesCaptured()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldResetLastStatsWhenNoActiveTransactions() throws Exception {
+        // given
+        setTransactions(ImmutableList.of(mockThreadContext(Thread.currentThread().getId())));
+        stackTraceCollector.runInternal(0, 10);
+        long totalFramesCaptured = stackTraceCollector.getTotalFramesCaptured();
+        setTransactions(ImmutableList.<ThreadContextImpl>of());
+
+        // when
+        stackTraceCollector.runInternal(0, 10);
+
+        // then
+        assertThat(stackTraceCollector.getLastCaptureTimeNanos()).isZero();
+        assertThat(stackTraceCollector.getLastStackTracesCaptured()).isZero();
+        assertThat(stackTraceCollector.getLastFramesCaptured()).isZero();
+        assertThat(stackTraceCollector.getTotalStackTracesCaptured()).isEqualTo(1);
+        assertThat(stackTraceCollector.getTotalFramesCaptured()).isEqualTo(totalFramesCaptured);
+    }
+
+    private void setTransactions(List<ThreadContextImpl> threadContexts) {
+        List<Transaction> transactions = Lists.newArrayList();
+        for (ThreadContextImpl threadContext : threadContexts) {
+            Transaction transaction = mock(Transaction.class);
+            when(transaction.getMainThreadContext()).thenReturn(threadContext);
+            when(transaction.getActiveAuxThreadContexts())
+                    .thenReturn(ImmutableList.<ThreadContextImpl>of());
+            transactions.add(transaction);
+        }
+        when(transactionRegistry.getTransactions()).thenReturn(transactions);
+    }
+
+    private static ThreadContextImpl mockThreadContext(long threadId) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(threadId);
+        when(threadContext.isActive()).thenReturn(true);
+        return threadContext;
+    }
+}
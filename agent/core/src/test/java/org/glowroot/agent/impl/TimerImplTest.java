@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TimerImplTest {
+
+    @Test
+    public void shouldReuseNestedTimersBeforeAndAfterSwitchingToMap() {
+        // given
+        TimerImpl rootTimer = TimerImpl.createRootTimer(mock(ThreadContextImpl.class),
+                ImmutableTimerNameImpl.of("root", false));
+        rootTimer.start(0);
+        List<TimerNameImpl> timerNames = Lists.newArrayList();
+        List<TimerImpl> nestedTimers = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 10; i++) {
+            TimerNameImpl timerName = ImmutableTimerNameImpl.of("timer-" + i, false);
+            timerNames.add(timerName);
+            TimerImpl nestedTimer = rootTimer.startNestedTimer(timerName, 0);
+            nestedTimer.end(1);
+            nestedTimers.add(nestedTimer);
+            // then
+            for (int j = 0; j <= i; j++) {
+                TimerImpl existingTimer = rootTimer.startNestedTimer(timerNames.get(j), 0);
+                existingTimer.end(1);
+                assertThat(existingTimer).isSameAs(nestedTimers.get(j));
+            }
+        }
+        Trace.Timer timer = rootTimer.toProto();
+        assertThat(timer.getChildTimerCount()).isEqualTo(10);
+        for (Trace.Timer childTimer : timer.getChildTimerList()) {
+            int i = Integer.parseInt(childTimer.getName().substring("timer-".length()));
+            assertThat(childTimer.getCount()).isEqualTo(11 - i);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceCollectorTest {
+
+    private final CountDownLatch storageLatch = new CountDownLatch(1);
+    private final List<String> storedTraceIds =
+            Collections.synchronizedList(Lists.<String>newArrayList());
+
+    private TraceCollector traceCollector;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                storageLatch.await();
+                TraceReader traceReader = invocation.getArgument(0);
+                storedTraceIds.add(traceReader.traceId());
+                return null;
+            }
+        }).when(collector).collectTrace(any(TraceReader.class));
+        traceCollector = new TraceCollector(mock(ConfigService.class), collector,
+                mock(Clock.class), mock(Ticker.class));
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        storageLatch.countDown();
+        traceCollector.close();
+    }
+
+    @Test
+    public void shouldNotStarveErrorTracesBehindSlowTraces() throws Exception {
+        // given
+        // occupy the storage threads
+        traceCollector.collectTrace(createTransaction("slow-a", false));
+        traceCollector.collectTrace(createTransaction("slow-b", false));
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (traceCollector.getSlowQueueDepth() > 0 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        // fill the slow lane
+        for (int i = 0; i < 51; i++) {
+            traceCollector.collectTrace(createTransaction("slow-" + i, false));
+        }
+        // when
+        traceCollector.collectTrace(createTransaction("error", true));
+        // then
+        assertThat(traceCollector.getTotalSlowTracesDropped()).isEqualTo(1);
+        assertThat(traceCollector.getTotalErrorTracesDropped()).isEqualTo(0);
+        assertThat(traceCollector.getErrorQueueDepth()).isEqualTo(1);
+        // the error trace is picked up ahead of the slow traces that were already waiting
+        storageLatch.countDown();
+        stopwatch = Stopwatch.createStarted();
+        while (storedTraceIds.size() < 53 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        assertThat(storedTraceIds).hasSize(53);
+        assertThat(storedTraceIds.indexOf("error")).isLessThan(4);
+    }
+
+    @Test
+    public void shouldAlwaysAdmitCompletionOfPartiallyStoredTrace() throws Exception {
+        // given
+        // occupy the storage threads
+        traceCollector.collectTrace(createTransaction("slow-a", false));
+        traceCollector.collectTrace(createTransaction("slow-b", false));
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (traceCollector.getSlowQueueDepth() > 0 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        // fill the slow and error lanes
+        for (int i = 0; i < 50; i++) {
+            traceCollector.collectTrace(createTransaction("slow-" + i, false));
+            traceCollector.collectTrace(createTransaction("error-" + i, true));
+        }
+        // when
+        for (int i = 0; i < 60; i++) {
+            Transaction transaction = createTransaction("completion-" + i, i % 2 == 0);
+            when(transaction.isPartiallyStored()).thenReturn(true);
+            traceCollector.collectTrace(transaction);
+        }
+        // then
+        assertThat(traceCollector.getCompletionQueueDepth()).isEqualTo(60);
+        assertThat(traceCollector.getTotalSlowTracesDropped()).isEqualTo(0);
+        assertThat(traceCollector.getTotalErrorTracesDropped()).isEqualTo(0);
+        storageLatch.countDown();
+        stopwatch = Stopwatch.createStarted();
+        while (storedTraceIds.size() < 162 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        assertThat(storedTraceIds).hasSize(162);
+        for (int i = 0; i < 60; i++) {
+            assertThat(storedTraceIds).contains("completion-" + i);
+        }
+    }
+
+    @Test
+    public void shouldTrackPendingTransactions() throws Exception {
+        // given
+        Transaction beingStored = createTransaction("slow-a", false);
+        traceCollector.collectTrace(beingStored);
+        traceCollector.collectTrace(createTransaction("slow-b", false));
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (traceCollector.getSlowQueueDepth() > 0 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        List<Transaction> waiting = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            Transaction transaction = createTransaction("slow-" + i, false);
+            traceCollector.collectTrace(transaction);
+            waiting.add(transaction);
+        }
+        // when
+        Transaction dropped = createTransaction("dropped", false);
+        traceCollector.collectTrace(dropped);
+        Transaction partial = createTransaction("partial", false);
+        traceCollector.storePartialTrace(partial);
+        // then
+        assertThat(traceCollector.isPending(beingStored)).isTrue();
+        for (Transaction transaction : waiting) {
+            assertThat(traceCollector.isPending(transaction)).isTrue();
+        }
+        assertThat(traceCollector.isPending(dropped)).isFalse();
+        assertThat(traceCollector.isPending(partial)).isTrue();
+        assertThat(traceCollector.isPending(createTransaction("other", false))).isFalse();
+        storageLatch.countDown();
+        stopwatch = Stopwatch.createStarted();
+        while (storedTraceIds.size() < 52 && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        // the partial trace is behind the slow traces, and storing it is the last step
+        stopwatch = Stopwatch.createStarted();
+        while (traceCollector.isPending(partial) && stopwatch.elapsed(SECONDS) < 5) {
+            Thread.sleep(10);
+        }
+        assertThat(traceCollector.isPending(beingStored)).isFalse();
+        for (Transaction transaction : waiting) {
+            assertThat(traceCollector.isPending(transaction)).isFalse();
+        }
+        assertThat(traceCollector.isPending(partial)).isFalse();
+    }
+
+    private static Transaction createTransaction(String traceId, boolean error) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTraceId()).thenReturn(traceId);
+        when(transaction.getSlowThresholdMillisOverride())
+                .thenReturn(Transaction.USE_GENERAL_STORE_THRESHOLD);
+        if (error) {
+            when(transaction.getErrorMessage()).thenReturn(mock(ErrorMessage.class));
+        }
+        return transaction;
+    }
+}
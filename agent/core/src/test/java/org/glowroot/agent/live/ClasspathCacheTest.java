@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -103,6 +103,18 @@ public class ClasspathCacheTest {
         }
     }
 
+    @Test
+    public void shouldReadClasspathClassNames() {
+        // given
+        ClasspathCache classpathCache =
+                new ClasspathCache(mock(AnalyzedWorld.class), mock(Instrumentation.class));
+        // when
+        List<String> classNames = classpathCache.getClasspathClassNames();
+        // then
+        assertThat(classNames).contains("com.google.common.collect.ImmutableMap");
+        assertThat(classNames).contains(ClasspathCacheTest.class.getName());
+    }
+
     @Test
     public void shouldAnalyzedMethods() {
         List<UiAnalyzedMethod> methods = classpathCache.getAnalyzedMethods(A.class.getName());
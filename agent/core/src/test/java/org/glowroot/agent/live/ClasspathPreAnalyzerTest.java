@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.live.ClasspathPreAnalyzer.Result;
+import org.glowroot.agent.weaving.AnalyzedWorld;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ClasspathPreAnalyzerTest {
+
+    @Test
+    public void shouldPreAnalyzeEachClassOnce() {
+        // given
+        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        when(analyzedWorld.preAnalyze(anyString(), any(ClassLoader.class))).thenReturn(true);
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        List<String> classNames = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            classNames.add("org.example.Class" + i);
+        }
+
+        // when
+        Result result = ClasspathPreAnalyzer.preAnalyze(analyzedWorld, classNames, loader, 4);
+
+        // then
+        assertThat(result.analyzedCount()).isEqualTo(100);
+        for (String className : classNames) {
+            verify(analyzedWorld).preAnalyze(className, loader);
+        }
+    }
+
+    @Test
+    public void shouldSkipNonClassNames() {
+        // given
+        AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+        when(analyzedWorld.preAnalyze(anyString(), any(ClassLoader.class))).thenReturn(true);
+        List<String> classNames = ImmutableList.of("module-info", "org.example.package-info",
+                "META-INF.versions.9.org.example.Class", "org.example.Class");
+
+        // when
+        Result result = ClasspathPreAnalyzer.preAnalyze(analyzedWorld, classNames,
+                ClassLoader.getSystemClassLoader(), 2);
+
+        // then
+        assertThat(result.analyzedCount()).isEqualTo(1);
+        verify(analyzedWorld, never()).preAnalyze(eq("module-info"), any(ClassLoader.class));
+    }
+}
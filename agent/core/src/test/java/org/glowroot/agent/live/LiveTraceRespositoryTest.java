@@ -27,16 +27,19 @@ import org.glowroot.common.util.Clock;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class LiveTraceRespositoryTest {
 
     private LiveTraceRepositoryImpl liveTraceRepository;
+    private TransactionRegistry transactionRegistry;
     private TraceCollector traceCollector;
 
     @Before
     public void beforeEachTest() {
-        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        transactionRegistry = mock(TransactionRegistry.class);
         traceCollector = mock(TraceCollector.class);
         Clock clock = mock(Clock.class);
         Ticker ticker = mock(Ticker.class);
@@ -108,4 +111,39 @@ public class LiveTraceRespositoryTest {
         // then
         assertThat(matches).isTrue();
     }
+
+    @Test
+    public void shouldFindActiveTransactionByTraceId() throws Exception {
+        // given
+        Transaction transaction = mock(Transaction.class);
+        when(transactionRegistry.getTransaction("abc")).thenReturn(transaction);
+        when(transaction.isActive()).thenReturn(true);
+        // when
+        liveTraceRepository.getMainThreadProfile("", "abc");
+        // then
+        verify(transaction).getMainThreadProfileProtobuf();
+    }
+
+    @Test
+    public void shouldFindPendingTransactionByTraceId() throws Exception {
+        // given
+        Transaction transaction = mock(Transaction.class);
+        when(transactionRegistry.getTransaction("abc")).thenReturn(transaction);
+        when(traceCollector.isPending(transaction)).thenReturn(true);
+        // when
+        liveTraceRepository.getMainThreadProfile("", "abc");
+        // then
+        verify(transaction).getMainThreadProfileProtobuf();
+    }
+
+    @Test
+    public void shouldNotFindTransactionThatIsNoLongerActiveOrPending() throws Exception {
+        // given
+        Transaction transaction = mock(Transaction.class);
+        when(transactionRegistry.getTransaction("abc")).thenReturn(transaction);
+        // when
+        liveTraceRepository.getMainThreadProfile("", "abc");
+        // then
+        verify(transaction, never()).getMainThreadProfileProtobuf();
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadProfileTest {
+
+    private static final Thread.State[] THREAD_STATES = Thread.State.values();
+
+    @Test
+    public void shouldMatchMutableProfile() throws Exception {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(10000);
+        MutableProfile mutableProfile = new MutableProfile();
+        Random random = new Random(0);
+        // when
+        for (int i = 0; i < 1000; i++) {
+            StackTraceElement[] stackTrace = randomStackTrace(random);
+            Thread.State threadState = THREAD_STATES[random.nextInt(THREAD_STATES.length)];
+            threadProfile.addStackTrace(stackTrace, threadState);
+            mutableProfile.merge(Arrays.asList(stackTrace), threadState);
+        }
+        // then
+        assertThat(threadProfile.toProto()).isEqualTo(mutableProfile.toProto());
+        MutableProfile merged = new MutableProfile();
+        threadProfile.mergeInto(merged);
+        assertThat(merged.toJson()).isEqualTo(mutableProfile.toJson());
+    }
+
+    @Test
+    public void shouldRespectMaxSamples() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(2);
+        StackTraceElement[] stackTrace =
+                new StackTraceElement[] {new StackTraceElement("a.B", "c", "B.java", 1)};
+        // when
+        for (int i = 0; i < 3; i++) {
+            threadProfile.addStackTrace(stackTrace, Thread.State.RUNNABLE);
+        }
+        // then
+        assertThat(threadProfile.getSampleCount()).isEqualTo(2);
+        assertThat(threadProfile.isSampleLimitExceeded()).isTrue();
+        assertThat(threadProfile.toProto().getNode(0).getSampleCount()).isEqualTo(2);
+    }
+
+    private static StackTraceElement[] randomStackTrace(Random random) {
+        // small number of distinct frames at each depth so that branches are shared
+        StackTraceElement[] stackTrace = new StackTraceElement[1 + random.nextInt(50)];
+        for (int i = 0; i < stackTrace.length; i++) {
+            int depth = stackTrace.length - 1 - i;
+            String className = "org.example" + random.nextInt(2) + ".Class" + depth;
+            stackTrace[i] = new StackTraceElement(className, "method" + random.nextInt(2),
+                    "Class" + depth + ".java", random.nextInt(3));
+        }
+        return stackTrace;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -39,4 +39,22 @@ public class IterableWithSelfRemovableEntriesTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void shouldIterateOverRemainingEntries() {
+        IterableWithSelfRemovableEntries<String> collection =
+                new IterableWithSelfRemovableEntries<String>();
+        List<SelfRemovableEntry> entries = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            entries.add(collection.add("e" + i));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            entries.get(i).remove();
+        }
+        // removing twice is harmless
+        entries.get(0).remove();
+        assertThat(collection).containsOnly("e1", "e3", "e5", "e7", "e9");
+        assertThat(entries.get(0).isRemoved()).isTrue();
+        assertThat(entries.get(1).isRemoved()).isFalse();
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.config.ImmutableInstrumentationConfig;
+import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig.CaptureKind;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private final Advice exact = createAdvice("org.example.One", "", "");
+    private final Advice exactOrPrefix = createAdvice("org.example.Two|org.example.sub.*", "", "");
+    private final Advice everything = createAdvice("*", "", "");
+    private final Advice regex = createAdvice("/org\\.example\\.T.*/", "", "");
+    private final Advice middleWildcard = createAdvice("org.*.Three", "", "");
+    private final Advice superType = createAdvice("", "org.example.Annotation",
+            "org.example.Base|org.example.OtherBase");
+    private final Advice annotation = createAdvice("", "org.example.Annotation", "");
+
+    private final List<Advice> advisors = ImmutableList.of(exact, exactOrPrefix, everything,
+            regex, middleWildcard, superType, annotation);
+
+    @Test
+    public void shouldReturnUnindexedCandidatesOnly() {
+        assertThat(getCandidates("com.example.Other")).containsExactly(everything, regex,
+                middleWildcard);
+    }
+
+    @Test
+    public void shouldReturnExactCandidates() {
+        assertThat(getCandidates("org.example.One")).containsExactly(exact, everything, regex,
+                middleWildcard);
+        assertThat(getCandidates("org.example.Two")).containsExactly(exactOrPrefix, everything,
+                regex, middleWildcard);
+    }
+
+    @Test
+    public void shouldReturnPrefixCandidates() {
+        assertThat(getCandidates("org.example.sub.Four")).containsExactly(exactOrPrefix,
+                everything, regex, middleWildcard);
+        assertThat(getCandidates("org.example.sub")).containsExactly(everything, regex,
+                middleWildcard);
+    }
+
+    @Test
+    public void shouldReturnSuperTypeCandidates() {
+        assertThat(AdviceIndex.get(advisors).getCandidates("com.example.Other",
+                ImmutableList.<String>of(), ImmutableSet.of("org.example.OtherBase")))
+                        .containsExactly(everything, regex, middleWildcard, superType);
+    }
+
+    @Test
+    public void shouldReturnAnnotationCandidates() {
+        assertThat(AdviceIndex.get(advisors).getCandidates("com.example.Other",
+                ImmutableList.of("Lorg/example/Annotation;"), ImmutableSet.<String>of()))
+                        .containsExactly(everything, regex, middleWildcard, annotation);
+    }
+
+    @Test
+    public void shouldNotRebuildIndexWhenAlternatingBetweenListsOfAdvisors() {
+        // given
+        List<Advice> mergedAdvisors = Lists.newArrayList(advisors);
+        mergedAdvisors.add(createAdvice("org.example.Merged", "", ""));
+        AdviceIndex index = AdviceIndex.get(advisors);
+
+        // when
+        AdviceIndex mergedIndex = AdviceIndex.get(mergedAdvisors);
+
+        // then
+        assertThat(AdviceIndex.get(advisors)).isSameAs(index);
+        assertThat(AdviceIndex.get(mergedAdvisors)).isSameAs(mergedIndex);
+        assertThat(mergedIndex.getCandidates("org.example.Merged", ImmutableList.<String>of(),
+                ImmutableSet.<String>of())).contains(mergedAdvisors.get(advisors.size()));
+    }
+
+    @Test
+    public void shouldMatchSameAsWithoutIndex() {
+        List<String> classNames = ImmutableList.of("org.example.One", "org.example.Two",
+                "org.example.Three", "org.example.sub.Four", "org.other.Three", "com.example.One");
+        List<List<String>> classAnnotations = ImmutableList.<List<String>>of(
+                ImmutableList.<String>of(), ImmutableList.of("Lorg/example/Annotation;"));
+        List<ImmutableSet<String>> superClassNames = ImmutableList.of(ImmutableSet.<String>of(),
+                ImmutableSet.of("org.example.Base"));
+        for (String className : classNames) {
+            for (List<String> annotations : classAnnotations) {
+                for (ImmutableSet<String> superNames : superClassNames) {
+                    List<Advice> expected = Lists.newArrayList();
+                    for (Advice advice : advisors) {
+                        if (AdviceMatcher.isClassMatch(className, annotations, superNames,
+                                advice)) {
+                            expected.add(advice);
+                        }
+                    }
+                    List<Advice> actual = Lists.newArrayList();
+                    for (AdviceMatcher adviceMatcher : AdviceMatcher.getAdviceMatchers(className,
+                            annotations, superNames, advisors)) {
+                        actual.add(adviceMatcher.advice());
+                    }
+                    assertThat(actual).isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    private List<Advice> getCandidates(String className) {
+        return AdviceIndex.get(advisors).getCandidates(className, ImmutableList.<String>of(),
+                ImmutableSet.<String>of());
+    }
+
+    private static Advice createAdvice(String className, String classAnnotation,
+            String superTypeRestriction) {
+        InstrumentationConfig config = ImmutableInstrumentationConfig.builder()
+                .className(className)
+                .classAnnotation(classAnnotation)
+                .superTypeRestriction(superTypeRestriction)
+                .methodName("*")
+                .captureKind(CaptureKind.OTHER)
+                .build();
+        return AdviceGenerator.createAdvisors(ImmutableList.of(config), null, false, false)
+                .keySet().iterator().next();
+    }
+}
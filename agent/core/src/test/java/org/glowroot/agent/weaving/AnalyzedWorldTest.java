@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    private AnalyzedWorld analyzedWorld;
+    private WeavingStats weavingStats;
+
+    @Before
+    public void beforeEachTest() {
+        analyzedWorld = new AnalyzedWorld(Suppliers.ofInstance(ImmutableList.<Advice>of()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null);
+        weavingStats = new WeavingStats(analyzedWorld);
+    }
+
+    @Test
+    public void shouldNotRetainFinalClasses() {
+        // when
+        analyzedWorld.add(createAnalyzedClass("a.B", Modifier.PUBLIC), null);
+        analyzedWorld.add(createAnalyzedClass("a.C", Modifier.PUBLIC | Modifier.FINAL), null);
+
+        // then
+        assertThat(weavingStats.getAnalyzedClasses()).isEqualTo(1);
+        assertThat(weavingStats.getNotRetainedFinalClasses()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldInternNames() {
+        // given
+        NameInterner nameInterner = analyzedWorld.getNameInterner();
+        String name = nameInterner.intern(new String("java.lang.String"));
+
+        // when
+        String otherName = nameInterner.intern(new String("java.lang.String"));
+
+        // then
+        assertThat(otherName).isSameAs(name);
+        assertThat(nameInterner.internNullable(null)).isNull();
+    }
+
+    @Test
+    public void shouldEstimateSharedNamesOnlyOnce() {
+        // given
+        NameInterner nameInterner = analyzedWorld.getNameInterner();
+        analyzedWorld.add(createAnalyzedClass("a.B", Modifier.PUBLIC,
+                nameInterner.intern(new String("x.Y"))), null);
+        long estimatedBytes = weavingStats.getEstimatedAnalyzedWorldBytes();
+
+        // when
+        analyzedWorld.add(createAnalyzedClass("a.C", Modifier.PUBLIC,
+                nameInterner.intern(new String("x.Y"))), null);
+        long sharedNameBytes = weavingStats.getEstimatedAnalyzedWorldBytes() - estimatedBytes;
+        estimatedBytes = weavingStats.getEstimatedAnalyzedWorldBytes();
+        analyzedWorld.add(createAnalyzedClass("a.D", Modifier.PUBLIC, new String("x.Y")), null);
+        long unsharedNameBytes = weavingStats.getEstimatedAnalyzedWorldBytes() - estimatedBytes;
+
+        // then
+        assertThat(sharedNameBytes).isPositive();
+        assertThat(unsharedNameBytes).isGreaterThan(sharedNameBytes);
+    }
+
+    @Test
+    public void shouldPreAnalyze() {
+        // given
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+
+        // when
+        boolean preAnalyzed =
+                analyzedWorld.preAnalyze("com.google.common.collect.ForwardingObject", loader);
+        boolean preAnalyzedAgain =
+                analyzedWorld.preAnalyze("com.google.common.collect.ForwardingObject", loader);
+
+        // then
+        assertThat(preAnalyzed).isTrue();
+        assertThat(preAnalyzedAgain).isFalse();
+        assertThat(weavingStats.getAnalyzedClasses()).isEqualTo(0);
+        assertThat(weavingStats.getPreAnalyzedClasses()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldMovePreAnalyzedClassIntoAnalyzedWorldWhenNeeded() {
+        // given
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        analyzedWorld.preAnalyze("com.google.common.collect.ForwardingObject", loader);
+
+        // when
+        List<AnalyzedClass> hierarchy = analyzedWorld.getAnalyzedHierarchy(
+                "com.google.common.collect.ForwardingObject", loader, "a.B",
+                ImmutableParseContext.of("a.B", null));
+
+        // then
+        assertThat(hierarchy).hasSize(1);
+        assertThat(weavingStats.getAnalyzedClasses()).isEqualTo(1);
+        assertThat(weavingStats.getPreAnalyzedClasses()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldDropPreAnalyzedClassWhenLoaded() {
+        // given
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        analyzedWorld.preAnalyze("com.google.common.collect.ForwardingObject", loader);
+
+        // when
+        analyzedWorld.add(createAnalyzedClass("com.google.common.collect.ForwardingObject",
+                Modifier.PUBLIC | Modifier.ABSTRACT), loader);
+
+        // then
+        assertThat(weavingStats.getAnalyzedClasses()).isEqualTo(1);
+        assertThat(weavingStats.getPreAnalyzedClasses()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotRetainPreAnalyzedFinalOrMissingClasses() {
+        // given
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+
+        // when
+        boolean finalPreAnalyzed = analyzedWorld.preAnalyze("java.lang.String", loader);
+        boolean missingPreAnalyzed = analyzedWorld.preAnalyze("org.example.DoesNotExist", loader);
+
+        // then
+        assertThat(finalPreAnalyzed).isFalse();
+        assertThat(missingPreAnalyzed).isFalse();
+    }
+
+    private static AnalyzedClass createAnalyzedClass(String name, int modifiers,
+            String... interfaceNames) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(modifiers)
+                .name(name)
+                .superName("java.lang.Object")
+                .addInterfaceNames(interfaceNames)
+                .ejbRemote(false)
+                .build();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WovenClassCacheTest {
+
+    private static final List<Advice> ADVISORS = ImmutableList.of();
+    private static final List<AnalyzedClass> NO_SUPER_TYPES = ImmutableList.of();
+
+    private File file;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-unit-test-", "");
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadAfterRestart() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        byte[] key1 = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+        byte[] key2 = cache.getKey(new byte[] {4, 5, 6}, NO_SUPER_TYPES, ADVISORS, false, false);
+        cache.put(key1, new byte[] {7, 8, 9}, ImmutableList.<Advice>of());
+        cache.put(key2, null, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+
+        // when
+        cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+
+        // then
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(key1, null).getWovenBytes()).containsExactly(new byte[] {7, 8, 9});
+        assertThat(cache.get(key2, null).getWovenBytes()).isNull();
+        byte[] key3 = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, true);
+        assertThat(cache.get(key3, null)).isNull();
+        cache.close();
+    }
+
+    @Test
+    public void shouldResetOnFingerprintChange() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        byte[] key = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+        cache.put(key, new byte[] {7, 8, 9}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+
+        // when
+        cache = new WovenClassCache(file, 1000000, "xyz", ADVISORS);
+
+        // then
+        assertThat(cache.size()).isZero();
+        assertThat(cache.get(key, null)).isNull();
+        cache.close();
+    }
+
+    @Test
+    public void shouldIgnorePartiallyWrittenEntry() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        byte[] key1 = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+        byte[] key2 = cache.getKey(new byte[] {4, 5, 6}, NO_SUPER_TYPES, ADVISORS, false, false);
+        cache.put(key1, new byte[] {7, 8, 9}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.put(key2, new byte[] {10, 11, 12}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 1);
+        randomAccessFile.close();
+
+        // when
+        cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+
+        // then
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.get(key1, null).getWovenBytes()).containsExactly(new byte[] {7, 8, 9});
+        assertThat(cache.get(key2, null)).isNull();
+
+        // and new entries can still be appended
+        cache.put(key2, new byte[] {10, 11, 12}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+        cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(key2, null).getWovenBytes()).containsExactly(new byte[] {10, 11, 12});
+        cache.close();
+    }
+
+    @Test
+    public void shouldNotWritePastMaxFileSize() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 100, "abc", ADVISORS);
+        byte[] key = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+
+        // when
+        cache.put(key, new byte[100], ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+
+        // then
+        assertThat(cache.size()).isZero();
+        cache.close();
+    }
+
+    @Test
+    public void shouldNotUseCacheAfterAdvisorsChange() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+
+        // when
+        byte[] key = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES,
+                Lists.<Advice>newArrayList(), false, false);
+
+        // then
+        assertThat(key).isNull();
+        cache.close();
+    }
+
+    @Test
+    public void shouldTruncateCorruptEntry() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        byte[] key1 = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+        byte[] key2 = cache.getKey(new byte[] {4, 5, 6}, NO_SUPER_TYPES, ADVISORS, false, false);
+        cache.put(key1, new byte[] {7, 8, 9}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+        long validLength = file.length();
+        cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        cache.put(key2, new byte[] {10, 11, 12}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        // corrupt the value length of the second entry
+        randomAccessFile.seek(validLength + 20);
+        randomAccessFile.writeInt(Integer.MAX_VALUE);
+        randomAccessFile.close();
+
+        // when
+        cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+
+        // then
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.get(key1, null).getWovenBytes()).containsExactly(new byte[] {7, 8, 9});
+        assertThat(cache.get(key2, null)).isNull();
+        assertThat(file.length()).isEqualTo(validLength);
+        cache.close();
+    }
+
+    @Test
+    public void shouldTruncateCorruptEntryValue() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        byte[] key = cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+        cache.put(key, new byte[] {7, 8, 9}, ImmutableList.<Advice>of());
+        cache.writePendingEntries();
+        cache.close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        // corrupt the woven bytes length inside of the entry value
+        randomAccessFile.seek(randomAccessFile.length() - 7);
+        randomAccessFile.writeInt(1000);
+        randomAccessFile.close();
+
+        // when
+        cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+
+        // then
+        assertThat(cache.size()).isZero();
+        assertThat(cache.get(key, null)).isNull();
+        cache.close();
+    }
+
+    @Test
+    public void shouldIncludeSuperTypesInKey() throws Exception {
+        // given
+        WovenClassCache cache = new WovenClassCache(file, 1000000, "abc", ADVISORS);
+        List<AnalyzedClass> superTypes = ImmutableList.of(createAnalyzedClass("java.util.List"));
+        List<AnalyzedClass> changedSuperTypes =
+                ImmutableList.of(createAnalyzedClass("java.util.List", "java.util.RandomAccess"));
+
+        // when
+        byte[] key = cache.getKey(new byte[] {1, 2, 3}, superTypes, ADVISORS, false, false);
+        byte[] sameKey = cache.getKey(new byte[] {1, 2, 3},
+                ImmutableList.of(createAnalyzedClass("java.util.List")), ADVISORS, false, false);
+        byte[] changedKey =
+                cache.getKey(new byte[] {1, 2, 3}, changedSuperTypes, ADVISORS, false, false);
+        byte[] noSuperTypesKey =
+                cache.getKey(new byte[] {1, 2, 3}, NO_SUPER_TYPES, ADVISORS, false, false);
+
+        // then
+        assertThat(sameKey).isEqualTo(key);
+        assertThat(changedKey).isNotEqualTo(key);
+        assertThat(noSuperTypesKey).isNotEqualTo(key);
+        cache.close();
+    }
+
+    private static AnalyzedClass createAnalyzedClass(String name, String... interfaceNames) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT)
+                .name(name)
+                .addInterfaceNames(interfaceNames)
+                .ejbRemote(false)
+                .build();
+    }
+}
@@ -20,6 +20,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.google.common.base.Strings;
@@ -30,6 +34,8 @@ import com.google.protobuf.Parser;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
@@ -44,6 +50,7 @@ import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -65,6 +72,7 @@ import org.glowroot.common.model.TransactionNameErrorSummaryCollector.ErrorSumma
 import org.glowroot.common.model.TransactionNameSummaryCollector;
 import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
 import org.glowroot.common.util.NotAvailableAware;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
@@ -75,10 +83,13 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class AggregateDao implements AggregateRepository {
 
+    private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
+
     private static final String AGENT_ID = "";
 
     private static final ImmutableList<Column> overallAggregatePointColumns =
@@ -152,9 +163,26 @@ public class AggregateDao implements AggregateRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
 
+    private final RecentAggregateCache recentAggregateCache;
+
     private final AtomicLongArray lastRollupTimes;
 
-    private final Object rollupLock = new Object();
+    // rollups are performed on a dedicated thread so that storing aggregates (which is done on the
+    // aggregate flushing thread) does not have to wait for rollups, which can take a long time at
+    // the higher rollup levels
+    //
+    // rollup levels are not rolled up in parallel since each rollup level is rolled up from the
+    // prior rollup level, and all rollup writes go through the single h2 write connection anyways
+    // (and by default, h2 also executes only one statement at a time, see DataSource)
+    private final ExecutorService rollupExecutor;
+
+    // capture time of the most recently stored aggregates, which is what the rollup thread rolls up
+    // to (subject to each rollup level's interval)
+    private final AtomicLong rollupCaptureTime = new AtomicLong();
+
+    // at most one rollup is queued at a time, since a single rollup catches up all rollup levels
+    // to the most recently stored aggregates
+    private final AtomicBoolean rollupQueued = new AtomicBoolean();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
@@ -166,6 +194,7 @@ public class AggregateDao implements AggregateRepository {
         this.fullQueryTextDao = fullQueryTextDao;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        recentAggregateCache = new RecentAggregateCache(rollupConfigs);
         for (int i = 0; i < rollupConfigs.size(); i++) {
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
             dataSource.syncTable(overallTableName, overallAggregatePointColumns);
@@ -187,6 +216,9 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        rollupExecutor =
+                Executors.newSingleThreadExecutor(ThreadFactories.create("Glowroot-Rollup"));
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -201,7 +233,7 @@ public class AggregateDao implements AggregateRepository {
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
                     Aggregate overallAggregate) throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
-                dataSource.update(new AggregateInsert(transactionType, null, captureTime,
+                insert(new AggregateInsert(transactionType, null, captureTime,
                         overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
@@ -210,7 +242,7 @@ public class AggregateDao implements AggregateRepository {
                     List<String> sharedQueryTexts, Aggregate transactionAggregate)
                     throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
-                dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
+                insert(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
@@ -232,18 +264,19 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
-        synchronized (rollupLock) {
-            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
+        updateRollupCaptureTime(captureTime);
+        if (rollupQueued.compareAndSet(false, true)) {
+            rollupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rollupQueued.set(false);
+                    try {
+                        rollup(rollupCaptureTime.get());
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
                 }
-            }
+            });
         }
     }
 
@@ -290,6 +323,11 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        List<PercentileAggregate> percentileAggregates =
+                recentAggregateCache.readPercentileAggregates(query);
+        if (percentileAggregates != null) {
+            return percentileAggregates;
+        }
         return dataSource.query(new PercentileAggregateQuery(query));
     }
 
@@ -297,6 +335,11 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        List<ThroughputAggregate> throughputAggregates =
+                recentAggregateCache.readThroughputAggregates(query);
+        if (throughputAggregates != null) {
+            return throughputAggregates;
+        }
         return dataSource.query(new ThroughputAggregateQuery(query));
     }
 
@@ -423,6 +466,54 @@ public class AggregateDao implements AggregateRepository {
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        recentAggregateCache.deleteBefore(captureTime, rollupLevel);
+    }
+
+    void invalidateCache() {
+        recentAggregateCache.clear();
+    }
+
+    private void insert(AggregateInsert aggregateInsert) throws SQLException {
+        dataSource.update(aggregateInsert);
+        aggregateInsert.addTo(recentAggregateCache);
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        // any queued rollup is still performed
+        rollupExecutor.shutdown();
+        if (!rollupExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void updateRollupCaptureTime(long captureTime) {
+        while (true) {
+            long currRollupCaptureTime = rollupCaptureTime.get();
+            if (captureTime <= currRollupCaptureTime || rollupCaptureTime
+                    .compareAndSet(currRollupCaptureTime, captureTime)) {
+                return;
+            }
+        }
+    }
+
+    private void rollup(long captureTime) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        // rollup level 0 is complete up to the capture time
+        long fromLevelRollupTime = captureTime;
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            long intervalMillis = rollupConfigs.get(i).intervalMillis();
+            // never roll up past what the prior rollup level has been rolled up to (which can be
+            // behind, e.g. if its rollup failed)
+            long safeRollupTime =
+                    RollupLevelService.getSafeRollupTime(fromLevelRollupTime, intervalMillis);
+            long lastRollupTime = lastRollupTimes.get(i);
+            if (safeRollupTime > lastRollupTime) {
+                rollup(lastRollupTime, safeRollupTime, intervalMillis, i, i - 1);
+                lastRollupTimes.set(i, safeRollupTime);
+            }
+            fromLevelRollupTime = lastRollupTimes.get(i);
+        }
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -434,6 +525,10 @@ public class AggregateDao implements AggregateRepository {
                     fromRollupLevel, toRollupLevel));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
+            // record progress after each rollup interval so that if a later rollup interval fails,
+            // the rollup intervals that have already been rolled up are not rolled up again (which
+            // would double count them)
+            lastRollupTimes.set(toRollupLevel, rollupTime);
         }
     }
 
@@ -1058,7 +1153,7 @@ public class AggregateDao implements AggregateRepository {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
+                        insert(new AggregateInsert(curr.transactionType(), null,
                                 rollupCaptureTime, curr.aggregate(), toRollupLevel,
                                 cappedDatabase, scratchBuffer));
                     }
@@ -1068,7 +1163,7 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(), null,
+                insert(new AggregateInsert(curr.transactionType(), null,
                         rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
                         scratchBuffer));
             }
@@ -1132,7 +1227,7 @@ public class AggregateDao implements AggregateRepository {
                 if (curr == null || !transactionType.equals(curr.transactionType())
                         || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
+                        insert(new AggregateInsert(curr.transactionType(),
                                 curr.transactionName(), rollupCaptureTime, curr.aggregate(),
                                 toRollupLevel, cappedDatabase, scratchBuffer));
                     }
@@ -1142,7 +1237,7 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, i++, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
+                insert(new AggregateInsert(curr.transactionType(),
                         curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
                         cappedDatabase, scratchBuffer));
             }
@@ -1263,7 +1358,8 @@ public class AggregateDao implements AggregateRepository {
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
             return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by 1";
         }
 
         @Override
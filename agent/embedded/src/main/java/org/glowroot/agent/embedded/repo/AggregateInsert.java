@@ -177,6 +177,11 @@ class AggregateInsert implements JdbcUpdate {
                 aggregate.getDurationNanosHistogram().toProto(scratchBuffer).toByteArray();
     }
 
+    void addTo(RecentAggregateCache recentAggregateCache) {
+        recentAggregateCache.add(rollupLevel, transactionType, transactionName, captureTime,
+                totalDurationNanos, transactionCount, errorCount, durationNanosHistogramBytes);
+    }
+
     @Override
     public @Untainted String getSql() {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutablePercentileAggregate;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// holds the most recent rollup level 0 and 1 aggregates in memory, so that the response time
+// percentile and throughput charts for recent time ranges can be served without querying h2 (which
+// may be busy, e.g. compacting)
+//
+// only the columns needed by those charts are kept, and they are kept in columnar ring buffers (one
+// ring buffer per transaction type / transaction name)
+//
+// the serialized duration histograms are by far the largest column, and there is one per slot per
+// transaction type / transaction name, so the total bytes retained for them are capped, and once
+// the cap is reached, new histograms are not retained (until older ones expire)
+//
+// a query is only served from here if every row that h2 could return for the query is guaranteed
+// to be here (including its histogram for percentile queries), otherwise the caller falls back to h2
+class RecentAggregateCache {
+
+    // rollup level 1 is the default view for time ranges up to 8 hours (see view thresholds in
+    // ConfigRepository.RollupConfig)
+    private static final long RETENTION_MILLIS =
+            HOURS.toMillis(Integer.getInteger("glowroot.embedded.recentAggregateHours", 8));
+
+    private static final int MAX_ROLLUP_LEVEL = 1;
+
+    private static final long MAX_HISTOGRAM_BYTES = 1024L * 1024
+            * Integer.getInteger("glowroot.embedded.recentAggregateHistogramMb", 16);
+
+    private final long maxHistogramBytes;
+
+    private final long[] intervalMillis;
+    private final int[] capacity;
+
+    private final List<Map<SeriesKey, Series>> seriesByLevel = Lists.newArrayList();
+
+    // capture time of the first aggregate added at each rollup level since startup (or since the
+    // cache was last cleared), zero if none has been added yet
+    private final long[] firstCaptureTime;
+    private final long[] lastCaptureTime;
+
+    // across all rollup levels and series
+    private long histogramBytes;
+
+    RecentAggregateCache(List<RollupConfig> rollupConfigs) {
+        this(rollupConfigs, MAX_HISTOGRAM_BYTES);
+    }
+
+    @VisibleForTesting
+    RecentAggregateCache(List<RollupConfig> rollupConfigs, long maxHistogramBytes) {
+        this.maxHistogramBytes = maxHistogramBytes;
+        int levels = Math.min(MAX_ROLLUP_LEVEL + 1, rollupConfigs.size());
+        intervalMillis = new long[levels];
+        capacity = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            intervalMillis[i] = rollupConfigs.get(i).intervalMillis();
+            long retentionMillis = RETENTION_MILLIS;
+            if (i + 1 < rollupConfigs.size()) {
+                // no need to retain more than what will be viewed at this rollup level, with some
+                // margin since charts request a bit more than the visible time range
+                retentionMillis = Math.min(retentionMillis,
+                        rollupConfigs.get(i + 1).viewThresholdMillis() * 2);
+            }
+            capacity[i] = Ints.saturatedCast(retentionMillis / intervalMillis[i]);
+            seriesByLevel.add(Maps.<SeriesKey, Series>newHashMap());
+        }
+        firstCaptureTime = new long[levels];
+        lastCaptureTime = new long[levels];
+    }
+
+    synchronized void add(int rollupLevel, String transactionType,
+            @Nullable String transactionName, long captureTime, double totalDurationNanos,
+            long transactionCount, long errorCount, byte[] durationNanosHistogramBytes) {
+        if (rollupLevel >= capacity.length || capacity[rollupLevel] == 0) {
+            return;
+        }
+        if (firstCaptureTime[rollupLevel] == 0) {
+            firstCaptureTime[rollupLevel] = captureTime;
+        }
+        if (captureTime > lastCaptureTime[rollupLevel]) {
+            lastCaptureTime[rollupLevel] = captureTime;
+            removeExpiredSeries(rollupLevel);
+        }
+        Map<SeriesKey, Series> seriesMap = seriesByLevel.get(rollupLevel);
+        SeriesKey seriesKey = ImmutableSeriesKey.of(transactionType, transactionName);
+        Series series = seriesMap.get(seriesKey);
+        if (series == null) {
+            series = new Series(capacity[rollupLevel]);
+            seriesMap.put(seriesKey, series);
+        }
+        int slot = (int) ((captureTime / intervalMillis[rollupLevel]) % capacity[rollupLevel]);
+        series.captureTimes[slot] = captureTime;
+        series.totalDurationNanos[slot] = totalDurationNanos;
+        series.transactionCounts[slot] = transactionCount;
+        series.errorCounts[slot] = errorCount;
+        histogramBytes -= series.clearHistogram(slot);
+        if (histogramBytes + durationNanosHistogramBytes.length <= maxHistogramBytes) {
+            series.setHistogram(slot, durationNanosHistogramBytes);
+            histogramBytes += durationNanosHistogramBytes.length;
+        }
+        series.lastCaptureTime = Math.max(series.lastCaptureTime, captureTime);
+    }
+
+    // returns null if the query cannot be served from the cache
+    @Nullable
+    List<PercentileAggregate> readPercentileAggregates(AggregateQuery query)
+            throws InvalidProtocolBufferException {
+        List<PercentileAggregate> percentileAggregates = Lists.newArrayList();
+        synchronized (this) {
+            List<Integer> slots = getSlots(query);
+            if (slots == null) {
+                return null;
+            }
+            if (slots.isEmpty()) {
+                return percentileAggregates;
+            }
+            Series series = checkNotNull(getSeries(query));
+            for (int slot : slots) {
+                byte[] durationNanosHistogramBytes = series.durationNanosHistograms[slot];
+                if (durationNanosHistogramBytes == null) {
+                    // histogram was not retained because of the cap on histogram bytes
+                    return null;
+                }
+                percentileAggregates.add(ImmutablePercentileAggregate.builder()
+                        .captureTime(series.captureTimes[slot])
+                        .totalDurationNanos(series.totalDurationNanos[slot])
+                        .transactionCount(series.transactionCounts[slot])
+                        .durationNanosHistogram(Aggregate.Histogram.parser()
+                                .parseFrom(durationNanosHistogramBytes))
+                        .build());
+            }
+        }
+        return percentileAggregates;
+    }
+
+    // returns null if the query cannot be served from the cache
+    synchronized @Nullable List<ThroughputAggregate> readThroughputAggregates(
+            AggregateQuery query) {
+        List<Integer> slots = getSlots(query);
+        if (slots == null) {
+            return null;
+        }
+        List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
+        if (slots.isEmpty()) {
+            return throughputAggregates;
+        }
+        Series series = checkNotNull(getSeries(query));
+        for (int slot : slots) {
+            throughputAggregates.add(ImmutableThroughputAggregate.builder()
+                    .captureTime(series.captureTimes[slot])
+                    .transactionCount(series.transactionCounts[slot])
+                    .errorCount(series.errorCounts[slot])
+                    .build());
+        }
+        return throughputAggregates;
+    }
+
+    synchronized void deleteBefore(long captureTime, int rollupLevel) {
+        if (rollupLevel >= capacity.length) {
+            return;
+        }
+        for (Series series : seriesByLevel.get(rollupLevel).values()) {
+            for (int i = 0; i < series.captureTimes.length; i++) {
+                if (series.captureTimes[i] < captureTime) {
+                    histogramBytes -= series.clear(i);
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (Map<SeriesKey, Series> seriesMap : seriesByLevel) {
+            seriesMap.clear();
+        }
+        Arrays.fill(firstCaptureTime, 0);
+        Arrays.fill(lastCaptureTime, 0);
+        histogramBytes = 0;
+    }
+
+    @VisibleForTesting
+    synchronized long getHistogramBytes() {
+        return histogramBytes;
+    }
+
+    // returns the slots matching the query, ordered by capture time, or null if the query cannot
+    // be served from the cache
+    private @Nullable List<Integer> getSlots(AggregateQuery query) {
+        int rollupLevel = query.rollupLevel();
+        if (rollupLevel >= capacity.length || firstCaptureTime[rollupLevel] == 0) {
+            return null;
+        }
+        long coveredFrom = getCoveredFrom(rollupLevel);
+        if (query.from() < coveredFrom) {
+            return null;
+        }
+        List<Integer> slots = Lists.newArrayList();
+        final Series series = getSeries(query);
+        if (series == null) {
+            // nothing has been captured for this transaction type / transaction name since the
+            // cache started covering this rollup level
+            return slots;
+        }
+        for (int i = 0; i < series.captureTimes.length; i++) {
+            long captureTime = series.captureTimes[i];
+            if (captureTime != 0 && captureTime >= coveredFrom && captureTime >= query.from()
+                    && captureTime <= query.to()) {
+                slots.add(i);
+            }
+        }
+        Collections.sort(slots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer slot1, Integer slot2) {
+                return Longs.compare(series.captureTimes[slot1], series.captureTimes[slot2]);
+            }
+        });
+        return slots;
+    }
+
+    private long getCoveredFrom(int rollupLevel) {
+        long oldestRetained = lastCaptureTime[rollupLevel]
+                - (capacity[rollupLevel] - 1) * intervalMillis[rollupLevel];
+        return Math.max(firstCaptureTime[rollupLevel], oldestRetained);
+    }
+
+    private @Nullable Series getSeries(AggregateQuery query) {
+        return seriesByLevel.get(query.rollupLevel())
+                .get(ImmutableSeriesKey.of(query.transactionType(), query.transactionName()));
+    }
+
+    private void removeExpiredSeries(int rollupLevel) {
+        long coveredFrom = getCoveredFrom(rollupLevel);
+        Iterator<Series> i = seriesByLevel.get(rollupLevel).values().iterator();
+        while (i.hasNext()) {
+            Series series = i.next();
+            if (series.lastCaptureTime < coveredFrom) {
+                histogramBytes -= series.histogramBytes;
+                i.remove();
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SeriesKey {
+        String transactionType();
+        @Nullable
+        String transactionName();
+    }
+
+    private static class Series {
+
+        private final long[] captureTimes;
+        private final double[] totalDurationNanos;
+        private final long[] transactionCounts;
+        private final long[] errorCounts;
+        private final byte /*@Nullable*/ [][] durationNanosHistograms;
+
+        private long lastCaptureTime;
+        private long histogramBytes;
+
+        private Series(int capacity) {
+            captureTimes = new long[capacity];
+            totalDurationNanos = new double[capacity];
+            transactionCounts = new long[capacity];
+            errorCounts = new long[capacity];
+            durationNanosHistograms = new byte[capacity][];
+        }
+
+        private void setHistogram(int slot, byte[] durationNanosHistogramBytes) {
+            durationNanosHistograms[slot] = durationNanosHistogramBytes;
+            histogramBytes += durationNanosHistogramBytes.length;
+        }
+
+        // returns the number of histogram bytes released
+        private int clearHistogram(int slot) {
+            byte[] durationNanosHistogramBytes = durationNanosHistograms[slot];
+            if (durationNanosHistogramBytes == null) {
+                return 0;
+            }
+            durationNanosHistograms[slot] = null;
+            histogramBytes -= durationNanosHistogramBytes.length;
+            return durationNanosHistogramBytes.length;
+        }
+
+        // returns the number of histogram bytes released
+        private int clear(int slot) {
+            captureTimes[slot] = 0;
+            totalDurationNanos[slot] = 0;
+            transactionCounts[slot] = 0;
+            errorCounts[slot] = 0;
+            return clearHistogram(slot);
+        }
+    }
+}
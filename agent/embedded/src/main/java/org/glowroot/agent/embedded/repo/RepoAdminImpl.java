@@ -50,6 +50,7 @@ class RepoAdminImpl implements RepoAdmin {
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final GaugeValueDao gaugeValueDao;
+    private final AggregateDao aggregateDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
@@ -59,8 +60,9 @@ class RepoAdminImpl implements RepoAdmin {
             CappedDatabase traceCappedDatabase, ConfigRepositoryImpl configRepository,
             AlertingDisabledDao alertingDisabledDao, EnvironmentDao environmentDao,
             GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
-            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao, Clock clock) {
+            AggregateDao aggregateDao, TransactionTypeDao transactionTypeDao,
+            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
+            Clock clock) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
@@ -70,6 +72,7 @@ class RepoAdminImpl implements RepoAdmin {
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
         this.gaugeValueDao = gaugeValueDao;
+        this.aggregateDao = aggregateDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
@@ -92,6 +95,7 @@ class RepoAdminImpl implements RepoAdmin {
         gaugeIdDao.invalidateCache();
         gaugeNameDao.invalidateCache();
         gaugeValueDao.reinitAfterDeletingDatabase();
+        aggregateDao.invalidateCache();
         transactionTypeDao.invalidateCache();
         fullQueryTextDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
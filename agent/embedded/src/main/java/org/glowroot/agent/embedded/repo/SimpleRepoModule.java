@@ -121,7 +121,8 @@ public class SimpleRepoModule {
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
                 configRepository, alertingDisabledDao, environmentDao, gaugeIdDao, gaugeNameDao,
-                gaugeValueDao, transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                gaugeValueDao, aggregateDao, transactionTypeDao, fullQueryTextDao,
+                traceAttributeNameDao, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -210,6 +211,7 @@ public class SimpleRepoModule {
             reaperRunnable.cancel();
         }
         alertingService.close();
+        aggregateDao.close();
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
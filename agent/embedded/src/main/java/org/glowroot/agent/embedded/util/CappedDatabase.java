@@ -16,6 +16,8 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,9 +26,13 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -72,13 +78,24 @@ public class CappedDatabase {
                 !unalignedAccessAllowed || (JavaVersion.isJ9Jvm() && JavaVersion.isJava6());
     }
 
+    // compressed blocks up to this size are buffered so that they can be compressed outside of
+    // the lock, larger blocks are compressed directly into the capped file under the lock
+    private static final int MAX_BUFFERED_BLOCK_BYTES = 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 32768;
+
     private final File file;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
+    // reads do not take the write lock (they use positional reads and then verify that the block
+    // was not overwritten in the meantime), they only need to be excluded during resize/close
+    private final ReadWriteLock readLock = new ReentrantReadWriteLock();
+    @GuardedBy("readLock")
     private RandomAccessFile inFile;
+    @GuardedBy("readLock")
+    private FileChannel inChannel;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
@@ -91,6 +108,7 @@ public class CappedDatabase {
         this.ticker = ticker;
         out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
         inFile = new RandomAccessFile(file, "r");
+        inChannel = inFile.getChannel();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -135,12 +153,47 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        long startTick = ticker.read();
+        // serialization and compression are done outside of the lock, so that concurrent writers
+        // (e.g. trace and aggregate/profile writes) only serialize on copying the compressed bytes
+        // into the capped file
+        ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream();
+        CountingOutputStream countingStreamBeforeCompression = new CountingOutputStream(
+                newLZFOutputStream(new LimitedOutputStream(compressedBytes)));
+        try {
+            copier.copyTo(countingStreamBeforeCompression);
+            countingStreamBeforeCompression.close();
+        } catch (BufferLimitExceededException e) {
+            // large block, so compress directly into the capped file under the lock instead of
+            // holding a full copy of the compressed block in memory
+            return writeUnderLock(type, copier, startTick);
+        }
+        long blockStartIndex;
+        synchronized (lock) {
+            if (closed) {
+                return -1;
+            }
+            out.startBlock();
+            // single write for the entire block (instead of one per compressed chunk)
+            compressedBytes.writeTo(out);
+            blockStartIndex = out.endBlock();
+            recordStats(type, countingStreamBeforeCompression.getCount(), compressedBytes.size(),
+                    ticker.read() - startTick);
+        }
+        // fsync (if really needed here) does not need to be done under lock
+        out.fsyncIfReallyNeeded();
+        return blockStartIndex;
+    }
+
+    private long writeUnderLock(String type, Copier copier, long startTick) throws IOException {
         long blockStartIndex;
         synchronized (lock) {
             if (closed) {
                 return -1;
             }
-            long startTick = ticker.read();
             out.startBlock();
             NonClosingCountingOutputStream countingStreamAfterCompression =
                     new NonClosingCountingOutputStream(out);
@@ -148,21 +201,26 @@ public class CappedDatabase {
                     new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
-            long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
-            }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
             blockStartIndex = out.endBlock();
+            recordStats(type, countingStreamBeforeCompression.getCount(),
+                    countingStreamAfterCompression.getCount(), ticker.read() - startTick);
         }
         // fsync (if really needed here) does not need to be done under lock
         out.fsyncIfReallyNeeded();
         return blockStartIndex;
     }
 
+    @GuardedBy("lock")
+    private void recordStats(String type, long bytesBeforeCompression,
+            long bytesAfterCompression, long nanos) {
+        CappedDatabaseStats stats = statsByType.get(type);
+        if (stats == null) {
+            stats = new CappedDatabaseStats();
+            statsByType.put(type, stats);
+        }
+        stats.record(bytesBeforeCompression, bytesAfterCompression, nanos);
+    }
+
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
         if (out.isOverwritten(cappedId)) {
@@ -176,11 +234,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newCappedBlockInputStream(cappedId);
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
@@ -206,11 +260,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newCappedBlockInputStream(cappedId);
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -248,20 +298,57 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            readLock.writeLock().lock();
+            try {
+                inFile.close();
+                out.resize(newSizeKb);
+                inFile = new RandomAccessFile(file, "r");
+                inChannel = inFile.getChannel();
+            } finally {
+                readLock.writeLock().unlock();
+            }
         }
     }
 
     @OnlyUsedByTests
     public void close() throws IOException {
+        closeInternal();
+        Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
+    }
+
+    private void closeInternal() throws IOException {
+        // update flag outside of lock in case there is a backlog of threads already waiting on the
+        // lock (once the flag is set, any threads in the backlog that haven't acquired the lock
+        // will abort quickly once they do obtain the lock)
+        closed = true;
         synchronized (lock) {
-            closed = true;
             out.close();
-            inFile.close();
+            readLock.writeLock().lock();
+            try {
+                inFile.close();
+            } finally {
+                readLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private InputStream newCappedBlockInputStream(long cappedId) throws IOException {
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying file
+        return newLZFInputStream(
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), READ_BUFFER_SIZE));
+    }
+
+    @GuardedBy("readLock")
+    private void readFully(long filePosition, ByteBuffer buffer) throws IOException {
+        long position = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition;
+        while (buffer.hasRemaining()) {
+            int n = inChannel.read(buffer, position);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            position += n;
         }
-        Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
@@ -291,15 +378,25 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    UTF_8);
+            return new InputStreamReader(newCappedBlockInputStream(cappedId), UTF_8);
+        }
+    }
+
+    private class ShutdownHookThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                closeInternal();
+            } catch (IOException e) {
+                logger.warn(e.getMessage(), e);
+            }
         }
     }
 
+    // streams the (compressed) block with positional reads, which do not interfere with concurrent
+    // writes, and verifies after each read that the block was not overwritten while it was being
+    // read (this relies on CappedDatabaseOutputStream advancing the smallest non-overwritten id
+    // prior to overwriting any bytes)
     private class CappedBlockInputStream extends InputStream {
 
         private final long cappedId;
@@ -315,24 +412,45 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
+            readLock.readLock().lock();
+            try {
+                if (closed) {
+                    throw new IOException("Capped database is closed");
+                }
                 if (out.isOverwritten(cappedId)) {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
+                long sizeBytes = out.getSizeKb() * 1024L;
                 if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+                    ByteBuffer blockHeader = ByteBuffer
+                            .allocate(CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES);
+                    readFully(out.convertToFilePosition(cappedId), blockHeader);
+                    long blockLength = blockHeader.getLong(0);
+                    if (blockLength < 0 || blockLength > sizeBytes) {
+                        if (out.isOverwritten(cappedId)) {
+                            throw new CappedBlockRolledOverMidReadException(
+                                    "Block rolled over mid-read");
+                        }
+                        throw new IOException("Invalid block length: " + blockLength);
+                    }
+                    this.blockLength = blockLength;
+                    if (blockLength == 0) {
+                        return -1;
+                    }
                 }
                 long filePosition = out.convertToFilePosition(
                         cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
                 long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+                long fileRemaining = sizeBytes - filePosition;
                 int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
+                readFully(filePosition, ByteBuffer.wrap(bytes, off, numToRead));
+                if (out.isOverwritten(cappedId)) {
+                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+                }
                 blockIndex += numToRead;
                 return numToRead;
+            } finally {
+                readLock.readLock().unlock();
             }
         }
 
@@ -350,32 +468,32 @@ public class CappedDatabase {
         }
     }
 
-    private class ShutdownHookThread extends Thread {
+    // fails fast once the compressed block no longer fits in the buffer (see write() above)
+    private static class LimitedOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private LimitedOutputStream(OutputStream out) {
+            super(out);
+        }
+
         @Override
-        public void run() {
-            try {
-                // update flag outside of lock in case there is a backlog of threads already
-                // waiting on the lock (once the flag is set, any threads in the backlog that
-                // haven't acquired the lock will abort quickly once they do obtain the lock)
-                closed = true;
-                synchronized (lock) {
-                    out.close();
-                    inFile.close();
-                }
-            } catch (IOException e) {
-                logger.warn(e.getMessage(), e);
-            }
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkLimit(len);
+            out.write(b, off, len);
         }
-    }
 
-    private interface Copier {
-        void copyTo(OutputStream out) throws IOException;
-    }
+        @Override
+        public void write(int b) throws IOException {
+            checkLimit(1);
+            out.write(b);
+        }
 
-    @SuppressWarnings("serial")
-    private static class CappedBlockRolledOverMidReadException extends IOException {
-        public CappedBlockRolledOverMidReadException(String message) {
-            super(message);
+        private void checkLimit(int len) throws BufferLimitExceededException {
+            count += len;
+            if (count > MAX_BUFFERED_BLOCK_BYTES) {
+                throw new BufferLimitExceededException();
+            }
         }
     }
 
@@ -406,4 +524,18 @@ public class CappedDatabase {
             return count;
         }
     }
+
+    private interface Copier {
+        void copyTo(OutputStream out) throws IOException;
+    }
+
+    @SuppressWarnings("serial")
+    private static class BufferLimitExceededException extends IOException {}
+
+    @SuppressWarnings("serial")
+    private static class CappedBlockRolledOverMidReadException extends IOException {
+        public CappedBlockRolledOverMidReadException(String message) {
+            super(message);
+        }
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -226,6 +226,11 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        // the smallest non-overwritten id is advanced prior to overwriting any bytes, so that
+        // readers (which read without the external synchronization) can verify after reading a
+        // block that none of it was overwritten mid-read
+        smallestNonOverwrittenId =
+                calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex + len, sizeBytes);
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -240,7 +245,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         currIndex += len;
         out.seek(HEADER_CURR_INDEX_POS);
         out.writeLong(currIndex);
-        updateSmallestNonOverwrittenId();
     }
 
     private void fsyncIfNeeded() throws IOException {
@@ -23,8 +23,12 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -38,6 +42,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.h2.jdbc.JdbcConnection;
@@ -64,14 +69,40 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // read-only queries (mostly from the UI) use a separate small pool of connections, so that
+    // they do not hold the single write connection (and block aggregate and trace writes) while
+    // their results are being processed
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 2);
+
+    // without multi_threaded, H2 executes only one statement at a time internally (across all
+    // connections), in which case the read connections only take the processing of query results
+    // off of the write connection, and a slow read statement still blocks writes while it is
+    // executing
+    //
+    // multi_threaded is still marked experimental in H2 1.3, so it is off by default, and this
+    // provides a way to opt in to it
+    private static final boolean MULTI_THREADED =
+            Boolean.getBoolean("glowroot.internal.h2.multiThreaded");
+
     // null means use memDb
     private final @Nullable File dbFile;
+    private final boolean multiThreaded;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private JdbcConnection connection;
     private volatile boolean closed;
 
+    // null when using memDb, since an unnamed in-memory database is private to its connection
+    private final @Nullable BlockingQueue<ReadConnection> readConnections;
+    // read lock is held while using a read connection, write lock is held while the read
+    // connections are closed and re-opened (e.g. during defrag)
+    private final ReadWriteLock readConnectionsLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong totalWriteLockWaitNanos = new AtomicLong();
+    private final AtomicLong totalReadConnectionWaitNanos = new AtomicLong();
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -80,6 +111,14 @@ public class DataSource {
         }
     };
 
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private final ThreadLocal<Boolean> holdingReadConnection = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
     private final Map</*@Untainted*/ String, ImmutableList<Column>> tables =
             Maps.newConcurrentMap();
     private final Map</*@Untainted*/ String, ImmutableList<Index>> indexes =
@@ -98,14 +137,30 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        multiThreaded = false;
+        connection = createConnection(null, false);
+        readConnections = null;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, MULTI_THREADED);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, boolean multiThreaded) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        this.multiThreaded = multiThreaded;
+        connection = createConnection(dbFile, multiThreaded);
+        if (READ_CONNECTIONS > 0) {
+            readConnections = Queues.newArrayBlockingQueue(READ_CONNECTIONS);
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                readConnections.add(new ReadConnection(createConnection(dbFile, multiThreaded)));
+            }
+        } else {
+            readConnections = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -114,14 +169,25 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        // readConnectionsLock is always acquired before lock, since read queries can perform
+        // writes while processing their results (e.g. aggregate rollups)
+        readConnectionsLock.writeLock().lock();
+        try {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                recordWriteLockWait(startTick);
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                closeReadConnections();
+                execute("shutdown defrag");
+                connection = createConnection(dbFile, multiThreaded);
+                preparedStatementCache.invalidateAll();
+                reopenReadConnections();
             }
-            checkConnectionUnderLock();
-            execute("shutdown defrag");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+        } finally {
+            readConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -129,14 +195,25 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        // readConnectionsLock is always acquired before lock, since read queries can perform
+        // writes while processing their results (e.g. aggregate rollups)
+        readConnectionsLock.writeLock().lock();
+        try {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                recordWriteLockWait(startTick);
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                closeReadConnections();
+                execute("shutdown compact");
+                connection = createConnection(dbFile, multiThreaded);
+                preparedStatementCache.invalidateAll();
+                reopenReadConnections();
             }
-            checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+        } finally {
+            readConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -157,36 +234,49 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            checkConnectionUnderLock();
-            List<String> schemaVersionRows =
-                    queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        // readConnectionsLock is always acquired before lock (see defrag() above)
+        readConnectionsLock.writeLock().lock();
+        try {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                recordWriteLockWait(startTick);
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                List<String> schemaVersionRows =
+                        queryForStringList("select schema_version from schema_version");
+                closeReadConnections();
+                connection.close();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createConnection(dbFile, multiThreaded);
+                preparedStatementCache.invalidateAll();
+                reopenReadConnections();
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
+                        .entrySet()) {
+                    syncTable(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
+                        .entrySet()) {
+                    syncIndexes(entry.getKey(), entry.getValue());
+                }
+                for (String schemaVersionRow : schemaVersionRows) {
+                    update("insert into schema_version (schema_version) values (?)",
+                            schemaVersionRow);
+                }
             }
+        } finally {
+            readConnectionsLock.writeLock().unlock();
         }
     }
 
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return;
             }
@@ -208,53 +298,41 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("no rows returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        return queryInternal(sql, args, 0L, new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("no rows returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        });
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        return queryInternal(sql, args, null, new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        });
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -272,26 +350,24 @@ public class DataSource {
         });
     }
 
-    public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
-                return jdbcQuery.valueIfDataSourceClosed();
-            }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
-        }
+    public <T> T query(final JdbcQuery<T> jdbcQuery) throws Exception {
+        return executeQuery(jdbcQuery.getSql(), jdbcQuery.valueIfDataSourceClosed(),
+                new StatementCallback<T>() {
+                    @Override
+                    public T doWithStatement(PreparedStatement preparedStatement)
+                            throws Exception {
+                        jdbcQuery.bind(preparedStatement);
+                        ResultSet resultSet = preparedStatement.executeQuery();
+                        ResultSetCloser closer = new ResultSetCloser(resultSet);
+                        try {
+                            return jdbcQuery.processResultSet(resultSet);
+                        } catch (Throwable t) {
+                            throw closer.rethrow(t);
+                        } finally {
+                            closer.close();
+                        }
+                    }
+                });
     }
 
     public <T extends /*@NonNull*/ Object> /*@Nullable*/ T queryAtMostOne(JdbcRowQuery<T> jdbcQuery)
@@ -306,31 +382,29 @@ public class DataSource {
         return list.get(0);
     }
 
-    public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
+    public <T extends /*@NonNull*/ Object> List<T> query(final JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        return executeSqlQuery(jdbcQuery.getSql(), ImmutableList.<T>of(),
+                new StatementCallback<List<T>>() {
+                    @Override
+                    public List<T> doWithStatement(PreparedStatement preparedStatement)
+                            throws Exception {
+                        jdbcQuery.bind(preparedStatement);
+                        ResultSet resultSet = preparedStatement.executeQuery();
+                        ResultSetCloser closer = new ResultSetCloser(resultSet);
+                        try {
+                            List<T> mappedRows = Lists.newArrayList();
+                            while (resultSet.next()) {
+                                mappedRows.add(jdbcQuery.mapRow(resultSet));
+                            }
+                            return ImmutableList.copyOf(mappedRows);
+                        } catch (Throwable t) {
+                            throw closer.rethrow(t);
+                        } finally {
+                            closer.close();
+                        }
+                    }
+                });
     }
 
     public int update(final @Untainted String sql, final @Nullable Object... args)
@@ -356,7 +430,9 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return 0;
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return 0;
             }
@@ -375,7 +451,9 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return new int[0];
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return new int[0];
             }
@@ -417,7 +495,9 @@ public class DataSource {
     }
 
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return;
             }
@@ -429,7 +509,9 @@ public class DataSource {
 
     public void syncIndexes(@Untainted String tableName, ImmutableList<Index> indexes)
             throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return;
             }
@@ -443,9 +525,19 @@ public class DataSource {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    long getTotalWriteLockWaitNanos() {
+        return totalWriteLockWaitNanos.get();
+    }
+
+    long getTotalReadConnectionWaitNanos() {
+        return totalReadConnectionWaitNanos.get();
+    }
+
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return false;
             }
@@ -456,7 +548,9 @@ public class DataSource {
 
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return false;
             }
@@ -468,7 +562,9 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return;
             }
@@ -482,7 +578,9 @@ public class DataSource {
     // helpful for upgrading schema
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return;
             }
@@ -507,21 +605,102 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return;
+        readConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                closeReadConnections();
+                connection.close();
             }
-            closed = true;
-            connection.close();
+        } finally {
+            readConnectionsLock.writeLock().unlock();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    // must be called under readConnectionsLock write lock, at which point all read connections are
+    // back in the queue
+    private void closeReadConnections() throws SQLException {
+        if (readConnections == null) {
+            return;
+        }
+        for (ReadConnection readConnection : readConnections) {
+            readConnection.connection.close();
+        }
+    }
+
+    // must be called under readConnectionsLock write lock
+    private void reopenReadConnections() throws SQLException {
+        if (readConnections == null) {
+            return;
+        }
+        for (ReadConnection readConnection : readConnections) {
+            readConnection.reopen();
+        }
+    }
+
+    private <T extends /*@Nullable*/ Object> T executeSqlQuery(@Untainted String sql,
+            T valueIfDataSourceClosed, StatementCallback<T> callback) throws SQLException {
+        try {
+            return executeQuery(sql, valueIfDataSourceClosed, callback);
+        } catch (Exception e) {
+            Throwables.propagateIfPossible(e, SQLException.class);
+            throw new SQLException(e);
+        }
+    }
+
+    private <T extends /*@Nullable*/ Object> T executeQuery(@Untainted String sql,
+            T valueIfDataSourceClosed, StatementCallback<T> callback) throws Exception {
+        if (readConnections == null || holdingReadConnection.get()) {
+            // nested queries (e.g. from inside processResultSet()) fall back to the write
+            // connection instead of waiting on a second read connection, which could deadlock
+            // once all of the read connections are held by outer queries
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                recordWriteLockWait(startTick);
+                if (closed) {
+                    return valueIfDataSourceClosed;
+                }
+                checkConnectionUnderLock();
+                return callback.doWithStatement(
+                        prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS));
+                // don't need to close statement since they are all cached and used under lock
+            }
+        }
+        readConnectionsLock.readLock().lock();
+        try {
+            if (closed) {
+                return valueIfDataSourceClosed;
+            }
+            long startTick = System.nanoTime();
+            ReadConnection readConnection = readConnections.take();
+            totalReadConnectionWaitNanos.addAndGet(System.nanoTime() - startTick);
+            holdingReadConnection.set(true);
+            try {
+                return callback.doWithStatement(
+                        readConnection.prepareStatement(sql, QUERY_TIMEOUT_SECONDS));
+                // don't need to close statement since they are all cached and only used by one
+                // thread at a time
+            } finally {
+                holdingReadConnection.set(false);
+                readConnections.add(readConnection);
+            }
+        } finally {
+            readConnectionsLock.readLock().unlock();
+        }
+    }
+
+    private void recordWriteLockWait(long startTick) {
+        totalWriteLockWaitNanos.addAndGet(System.nanoTime() - startTick);
+    }
+
     @GuardedBy("lock")
     private void checkConnectionUnderLock() throws SQLException {
-        if (connection.getPowerOffCount() == -1) {
-            // connection was closed internally due to OutOfMemoryError
-            connection = createConnection(dbFile);
+        if (isClosedInternally(connection)) {
+            connection = createConnection(dbFile, multiThreaded);
             preparedStatementCache.invalidateAll();
         }
     }
@@ -529,6 +708,12 @@ public class DataSource {
     @GuardedBy("lock")
     private PreparedStatement prepareStatementUnderLock(@Untainted String sql,
             int queryTimeoutSeconds) throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -548,16 +733,19 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
-        }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
+    private <T extends /*@Nullable*/ Object> T queryInternal(@Untainted String sql,
+            final Object[] args, T valueIfDataSourceClosed, final ResultSetExtractor<T> rse)
+            throws SQLException {
+        return executeSqlQuery(sql, valueIfDataSourceClosed, new StatementCallback<T>() {
+            @Override
+            public T doWithStatement(PreparedStatement preparedStatement) throws Exception {
+                for (int i = 0; i < args.length; i++) {
+                    preparedStatement.setObject(i + 1, args[i]);
+                }
+                ResultSet resultSet = preparedStatement.executeQuery();
+                return extractAndClose(resultSet, rse);
+            }
+        });
     }
 
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
@@ -582,7 +770,9 @@ public class DataSource {
 
     @GuardedBy("lock")
     private List</*@Untainted*/ String> getAllTableNames() throws SQLException {
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            recordWriteLockWait(startTick);
             if (closed) {
                 return ImmutableList.of();
             }
@@ -607,7 +797,8 @@ public class DataSource {
         }
     }
 
-    private static JdbcConnection createConnection(@Nullable File dbFile) throws SQLException {
+    private static JdbcConnection createConnection(@Nullable File dbFile, boolean multiThreaded)
+            throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -621,10 +812,21 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                // lock_timeout is raised (from the default of 1 second) since concurrent statements
+                // can now wait on each other's table locks
+                url += ";multi_threaded=1;lock_timeout=" + QUERY_TIMEOUT_SECONDS * 1000;
+            }
             return new JdbcConnection(url, props);
         }
     }
 
+    // H2 closes the database internally on OutOfMemoryError, after which the connection reports
+    // power off count -1 until its session is closed, and reports being closed after that
+    private static boolean isClosedInternally(JdbcConnection connection) throws SQLException {
+        return connection.getPowerOffCount() == -1 || connection.isClosed();
+    }
+
     private static <T> T extractAndClose(ResultSet resultSet, ResultSetExtractor<T> rse)
             throws SQLException {
         ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -690,6 +892,48 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private interface StatementCallback<T extends /*@Nullable*/ Object> {
+        T doWithStatement(PreparedStatement preparedStatement) throws Exception;
+    }
+
+    // each read connection has its own prepared statement cache, and is only used by one thread at
+    // a time (between taking it from and returning it to readConnections)
+    private class ReadConnection {
+
+        private JdbcConnection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> statementCache =
+                CacheBuilder.newBuilder().weakValues()
+                        .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                            @Override
+                            public PreparedStatement load(@Untainted String sql)
+                                    throws SQLException {
+                                return connection.prepareStatement(sql);
+                            }
+                        });
+
+        private ReadConnection(JdbcConnection connection) {
+            this.connection = connection;
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+                throws SQLException {
+            if (isClosedInternally(connection)) {
+                // the read connections are only ever closed by DataSource under the
+                // readConnectionsLock write lock (and then re-opened), so if this one is closed,
+                // it was closed internally and needs to be re-opened here, otherwise every read
+                // on it would fail until restart
+                reopen();
+            }
+            return DataSource.this.prepareStatement(statementCache, sql, queryTimeoutSeconds);
+        }
+
+        private void reopen() throws SQLException {
+            connection = createConnection(dbFile, multiThreaded);
+            statementCache.invalidateAll();
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -701,8 +945,14 @@ public class DataSource {
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
-                synchronized (lock) {
-                    connection.close();
+                readConnectionsLock.writeLock().lock();
+                try {
+                    synchronized (lock) {
+                        closeReadConnections();
+                        connection.close();
+                    }
+                } finally {
+                    readConnectionsLock.writeLock().unlock();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
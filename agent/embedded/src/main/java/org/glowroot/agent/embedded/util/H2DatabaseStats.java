@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,4 +27,14 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public long getTotalWriteLockWaitNanos() {
+        return dataSource.getTotalWriteLockWaitNanos();
+    }
+
+    @Override
+    public long getTotalReadConnectionWaitNanos() {
+        return dataSource.getTotalReadConnectionWaitNanos();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,4 +18,11 @@ package org.glowroot.agent.embedded.util;
 public interface H2DatabaseStatsMXBean {
 
     long getFileSize();
+
+    // time spent waiting on the single write connection (which is also used by nested queries and
+    // by all queries when using an in-memory database)
+    long getTotalWriteLockWaitNanos();
+
+    // time spent by read-only queries waiting for one of the read connections
+    long getTotalReadConnectionWaitNanos();
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -35,7 +35,9 @@ import org.glowroot.common.live.ImmutableAggregateQuery;
 import org.glowroot.common.live.ImmutableSummaryQuery;
 import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionNameSummaryCollector;
 import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
@@ -92,6 +94,7 @@ public class AggregateDaoTest {
 
     @After
     public void afterEachTest() throws Exception {
+        aggregateDao.close();
         scheduledExecutor.shutdownNow();
         dataSource.close();
         cappedDatabase.close();
@@ -138,6 +141,67 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadRecentAggregatesSameFromCacheAsFromH2() throws Exception {
+        // given
+        populateAggregates();
+        // from 0 is before the cache started covering rollup level 0, so this is read from h2
+        AggregateQuery h2Query = ImmutableAggregateQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        AggregateQuery cacheQuery = ImmutableAggregateQuery.builder()
+                .copyFrom(h2Query)
+                .from(10000)
+                .build();
+
+        // when
+        List<PercentileAggregate> h2PercentileAggregates =
+                aggregateDao.readPercentileAggregates(AGENT_ID, h2Query);
+        List<PercentileAggregate> cachePercentileAggregates =
+                aggregateDao.readPercentileAggregates(AGENT_ID, cacheQuery);
+        List<ThroughputAggregate> h2ThroughputAggregates =
+                aggregateDao.readThroughputAggregates(AGENT_ID, h2Query);
+        List<ThroughputAggregate> cacheThroughputAggregates =
+                aggregateDao.readThroughputAggregates(AGENT_ID, cacheQuery);
+        aggregateDao.invalidateCache();
+        List<ThroughputAggregate> invalidatedThroughputAggregates =
+                aggregateDao.readThroughputAggregates(AGENT_ID, cacheQuery);
+
+        // then
+        assertThat(h2PercentileAggregates).hasSize(2);
+        assertThat(cachePercentileAggregates).isEqualTo(h2PercentileAggregates);
+        assertThat(h2ThroughputAggregates).hasSize(2);
+        assertThat(cacheThroughputAggregates).isEqualTo(h2ThroughputAggregates);
+        assertThat(invalidatedThroughputAggregates).isEqualTo(h2ThroughputAggregates);
+    }
+
+    @Test
+    public void shouldRollupAggregates() throws Exception {
+        // given
+        populateAggregates();
+        // wait for the queued rollup to complete
+        aggregateDao.close();
+
+        // when
+        AggregateQuery aggregateQuery = ImmutableAggregateQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<ThroughputAggregate> throughputAggregates =
+                aggregateDao.readThroughputAggregates(AGENT_ID, aggregateQuery);
+
+        // then
+        // only the aggregate captured at 10000 is safe to roll up to the 15000 rollup interval
+        assertThat(throughputAggregates).hasSize(1);
+        assertThat(throughputAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(throughputAggregates.get(0).transactionCount()).isEqualTo(10);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecentAggregateCacheTest {
+
+    private static final byte[] HISTOGRAM_BYTES = Aggregate.Histogram.newBuilder()
+            .addOrderedRawValue(1)
+            .addOrderedRawValue(2)
+            .build()
+            .toByteArray();
+
+    private static final AggregateQuery QUERY = ImmutableAggregateQuery.builder()
+            .transactionType("tt")
+            .from(60000)
+            .to(300000)
+            .rollupLevel(0)
+            .build();
+
+    @Test
+    public void shouldReadPercentileAggregates() throws Exception {
+        // given
+        RecentAggregateCache cache = new RecentAggregateCache(RollupConfig.buildRollupConfigs());
+        for (int i = 1; i <= 5; i++) {
+            add(cache, "tt", i * 60000);
+        }
+        // when
+        // then
+        assertThat(cache.readPercentileAggregates(QUERY)).hasSize(5);
+        assertThat(cache.getHistogramBytes()).isEqualTo(5 * HISTOGRAM_BYTES.length);
+    }
+
+    @Test
+    public void shouldFallBackWhenHistogramBytesCapped() throws Exception {
+        // given
+        RecentAggregateCache cache = new RecentAggregateCache(RollupConfig.buildRollupConfigs(),
+                4 * HISTOGRAM_BYTES.length);
+        for (int i = 1; i <= 5; i++) {
+            add(cache, "tt", i * 60000);
+        }
+        // when
+        // then
+        assertThat(cache.getHistogramBytes()).isEqualTo(4 * HISTOGRAM_BYTES.length);
+        assertThat(cache.readPercentileAggregates(QUERY)).isNull();
+        // throughput aggregates do not need the histograms
+        assertThat(cache.readThroughputAggregates(QUERY)).hasSize(5);
+    }
+
+    @Test
+    public void shouldReleaseHistogramBytesOnDelete() throws Exception {
+        // given
+        RecentAggregateCache cache = new RecentAggregateCache(RollupConfig.buildRollupConfigs(),
+                4 * HISTOGRAM_BYTES.length);
+        for (int i = 1; i <= 4; i++) {
+            add(cache, "tt", i * 60000);
+        }
+        // when
+        cache.deleteBefore(180000, 0);
+        add(cache, "tt", 300000);
+        add(cache, "tt2", 300000);
+        // then
+        assertThat(cache.getHistogramBytes()).isEqualTo(4 * HISTOGRAM_BYTES.length);
+        assertThat(cache.readPercentileAggregates(ImmutableAggregateQuery.builder()
+                .copyFrom(QUERY)
+                .from(180000)
+                .build())).hasSize(3);
+    }
+
+    private static void add(RecentAggregateCache cache, String transactionType,
+            long captureTime) {
+        cache.add(0, transactionType, null, captureTime, 1000000, 1, 0, HISTOGRAM_BYTES);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -110,6 +110,36 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteBlockLargerThanWriteBuffer() throws Exception {
+        // given
+        File largeTempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabase largeCappedDatabase =
+                new CappedDatabase(largeTempFile, 8192, scheduledExecutor, Ticker.systemTicker());
+        // use random text so that the lzf compressed text is larger than the write buffer
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * 1024 * 1024; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        String text = sb.toString();
+
+        try {
+            // when
+            long cappedId =
+                    largeCappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+            // then
+            String text2 = largeCappedDatabase.read(cappedId).read();
+            assertThat(text2).isEqualTo(text);
+            assertThat(largeCappedDatabase.getStats("test").getTotalBytesAfterCompression())
+                    .isGreaterThan(1024 * 1024);
+        } finally {
+            largeCappedDatabase.close();
+            largeTempFile.delete();
+        }
+    }
+
     @Test
     public void shouldWrapAndKeepGoing() throws Exception {
         // given
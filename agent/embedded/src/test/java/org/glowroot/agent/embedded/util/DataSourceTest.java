@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,20 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
 
+import com.google.common.base.Stopwatch;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -28,6 +37,120 @@ import static org.mockito.Mockito.when;
 
 public class DataSourceTest {
 
+    @Test
+    public void shouldQueryAndWriteFromReadConnection() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        try {
+            dataSource.execute("create table test (x bigint)");
+            dataSource.update("insert into test (x) values (?)", 1);
+            // when
+            // the nested read and write from inside processResultSet() must not deadlock
+            long total = dataSource.query(new JdbcQuery<Long>() {
+                @Override
+                public String getSql() {
+                    return "select x from test";
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) {}
+                @Override
+                public Long processResultSet(ResultSet resultSet) throws Exception {
+                    long total = 0;
+                    while (resultSet.next()) {
+                        total += resultSet.getLong(1);
+                    }
+                    total += dataSource.queryForLong("select count(*) from test");
+                    dataSource.update("insert into test (x) values (?)", 2);
+                    return total;
+                }
+                @Override
+                public Long valueIfDataSourceClosed() {
+                    return 0L;
+                }
+            });
+            dataSource.defrag();
+            // then
+            assertThat(total).isEqualTo(2);
+            assertThat(dataSource.queryForLong("select sum(x) from test")).isEqualTo(3);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldReopenReadConnectionsAfterDatabaseClosedInternally() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        DataSource dataSource = new DataSource(dbFile);
+        try {
+            dataSource.execute("create table test (x bigint)");
+            dataSource.update("insert into test (x) values (?)", 1);
+            // otherwise the above is lost by the shutdown below
+            dataSource.execute("checkpoint");
+            // this is what H2 does internally on OutOfMemoryError
+            try {
+                dataSource.execute("shutdown immediately");
+            } catch (SQLException e) {
+                // the connection that executed it is closed in the middle of executing it
+            }
+            // when
+            // each read connection is used in turn, and each needs to be re-opened
+            long count1 = dataSource.queryForLong("select count(*) from test");
+            long count2 = dataSource.queryForLong("select count(*) from test");
+            long count3 = dataSource.queryForLong("select count(*) from test");
+            dataSource.update("insert into test (x) values (?)", 2);
+            // then
+            assertThat(count1).isEqualTo(1);
+            assertThat(count2).isEqualTo(1);
+            assertThat(count3).isEqualTo(1);
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldNotBlockWriteOnSlowReadWhenMultiThreaded() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile, true);
+        try {
+            dataSource.execute("create table test (x bigint)");
+            dataSource.execute("create table test2 (x bigint)");
+            dataSource.update("insert into test (x) values (?)", 1);
+            dataSource.execute("create alias sleep_millis for \"java.lang.Thread.sleep\"");
+            final CountDownLatch readLatch = new CountDownLatch(1);
+            Thread readThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readLatch.countDown();
+                        dataSource.queryForLong(
+                                "select count(*) from test where sleep_millis(5000) is null");
+                    } catch (SQLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            readThread.start();
+            readLatch.await();
+            // give the read statement time to start executing
+            MILLISECONDS.sleep(500);
+            // when
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            dataSource.update("insert into test2 (x) values (?)", 1);
+            // then
+            assertThat(stopwatch.elapsed(MILLISECONDS)).isLessThan(2500);
+            readThread.join();
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
     @Test
     public void testDebugNoArgs() throws SQLException {
         // given
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.tests.javaagent;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.TempDirs;
+import org.glowroot.agent.it.harness.impl.JavaagentContainer;
+import org.glowroot.agent.tests.app.LevelOne;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WovenClassCacheIT {
+
+    private static File testDir;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        testDir = TempDirs.createTempDir("glowroot-test-dir");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        TempDirs.deleteRecursively(testDir);
+    }
+
+    @Test
+    public void shouldWeaveFromCacheAfterRestart() throws Exception {
+        // given
+        Container container = JavaagentContainer.create(testDir);
+        try {
+            assertTrace(container.execute(ShouldGenerateTraceAndWaitForCacheWrite.class));
+        } finally {
+            container.close();
+        }
+        File cacheFile = new File(testDir, "tmp/woven-class-cache");
+        long cacheFileLength = cacheFile.length();
+        // format version (4 bytes) and fingerprint digest (20 bytes)
+        assertThat(cacheFileLength).isGreaterThan(24);
+
+        // when
+        container = JavaagentContainer.create(testDir);
+        try {
+            // then
+            assertTrace(container.execute(ShouldGenerateTrace.class));
+        } finally {
+            container.close();
+        }
+    }
+
+    private static void assertTrace(Trace trace) {
+        assertThat(trace.getHeader().getHeadline()).isEqualTo("Level One");
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEqualTo("Level Two");
+    }
+
+    public static class ShouldGenerateTrace implements AppUnderTest {
+        @Override
+        public void executeApp() throws Exception {
+            new LevelOne().call("a", "b");
+        }
+    }
+
+    public static class ShouldGenerateTraceAndWaitForCacheWrite implements AppUnderTest {
+        @Override
+        public void executeApp() throws Exception {
+            new LevelOne().call("a", "b");
+            // woven classes are written to the cache file every 5 seconds
+            SECONDS.sleep(6);
+        }
+    }
+}
@@ -247,7 +247,7 @@ public class CentralModule {
             });
             rollupService = new RollupService(repos.getActiveAgentDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    clusterManager, clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getActiveAgentDao(),
                     repos.getConfigRepository(), repos.getAlertingDisabledDao(),
                     repos.getIncidentDao(), alertingService, repos.getSyntheticResultDao(),
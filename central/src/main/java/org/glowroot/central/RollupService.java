@@ -17,9 +17,18 @@ package org.glowroot.central;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
@@ -27,6 +36,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,11 +45,13 @@ import org.glowroot.central.repo.ActiveAgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
+import org.glowroot.common2.repo.util.LockSet;
 
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -49,9 +61,22 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 class RollupService implements Runnable {
 
     private static final int MIN_WORKER_THREADS = 1;
-    private static final int MAX_WORKER_THREADS = 4;
+    // worker threads mostly wait on cassandra queries, and cassandra is protected separately by the
+    // rollup query limit in Session, so using at least as many worker threads as cores is safe
+    @VisibleForTesting
+    static final int MAX_WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
     private static final int INITIAL_WORKER_THREADS = 2;
 
+    // rollup is considered to be behind when the oldest data waiting to be rolled up (into rollup
+    // level 1) is older than this, e.g. after an outage
+    private static final long BEHIND_THRESHOLD_MILLIS = MINUTES.toMillis(15);
+
+    // rollup locks are renewed while the rollup is still running (a catch-up rollup after an outage
+    // can take much longer than the expiration), so the expiration only needs to cover a central
+    // collector node going away without releasing its locks
+    private static final long ROLLUP_LOCK_EXPIRATION_MINUTES = 10;
+    private static final long ROLLUP_LOCK_RENEWAL_MINUTES = 1;
+
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
     private final ActiveAgentDao activeAgentDao;
@@ -61,19 +86,34 @@ class RollupService implements Runnable {
     private final CentralAlertingService centralAlertingService;
     private final Clock clock;
 
+    // used to prevent multiple central collector nodes from rolling up the same agent rollup at
+    // the same time (expiration is a safety guard in case a central collector node goes away
+    // while holding a lock)
+    private final LockSet<String> rollupLockSet;
+    // rollup locks held by this central collector node, keyed by lock key
+    private final ConcurrentMap<String, UUID> heldRollupLocks = new ConcurrentHashMap<>();
+
     private final ExecutorService mainLoopExecutor;
+    private final ScheduledExecutorService lockRenewalExecutor;
 
     private volatile boolean closed;
 
     RollupService(ActiveAgentDao activeAgentDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
-            CentralAlertingService centralAlertingService, Clock clock) {
+            CentralAlertingService centralAlertingService, ClusterManager clusterManager,
+            Clock clock) {
         this.activeAgentDao = activeAgentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
         this.clock = clock;
+        rollupLockSet = clusterManager.createReplicatedLockSet("rollupLockSet",
+                ROLLUP_LOCK_EXPIRATION_MINUTES, MINUTES);
+        lockRenewalExecutor =
+                MoreExecutors2.newSingleThreadScheduledExecutor("Rollup-Lock-Renewal");
+        lockRenewalExecutor.scheduleWithFixedDelay(castInitialized(this)::renewHeldRollupLocks,
+                ROLLUP_LOCK_RENEWAL_MINUTES, ROLLUP_LOCK_RENEWAL_MINUTES, MINUTES);
         mainLoopExecutor = MoreExecutors2.newSingleThreadExecutor("Rollup-Main-Loop");
         mainLoopExecutor.execute(castInitialized(this));
     }
@@ -83,7 +123,9 @@ class RollupService implements Runnable {
         Session.setInRollupThread(true);
         int counter = 0;
         int numWorkerThreads = INITIAL_WORKER_THREADS;
-        ListeningExecutorService workerExecutor = newWorkerExecutor(numWorkerThreads);
+        ThreadPoolExecutor workerExecutor = newWorkerExecutor(numWorkerThreads);
+        ListeningExecutorService listeningWorkerExecutor =
+                MoreExecutors.listeningDecorator(workerExecutor);
         while (!closed) {
             try {
                 MILLISECONDS.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
@@ -92,27 +134,27 @@ class RollupService implements Runnable {
                 Stopwatch stopwatch = Stopwatch.createStarted();
                 List<AgentRollup> agentRollups =
                         activeAgentDao.readRecentlyActiveAgentRollups(lastXMillis);
-                runInternal(agentRollups, workerExecutor);
+                Map<String, Long> oldestNeedsRollupCaptureTimes =
+                        readOldestNeedsRollupCaptureTimes(agentRollups);
+                boolean behind = isBehind(oldestNeedsRollupCaptureTimes.values(),
+                        clock.currentTimeMillis());
+                if (behind && numWorkerThreads < MAX_WORKER_THREADS) {
+                    // no need to wait for a slow pass to find out that more worker threads are
+                    // needed
+                    numWorkerThreads = MAX_WORKER_THREADS;
+                    setNumWorkerThreads(workerExecutor, numWorkerThreads);
+                }
+                runInternal(agentRollups, oldestNeedsRollupCaptureTimes, listeningWorkerExecutor);
                 long elapsedInSeconds = stopwatch.elapsed(SECONDS);
-                int oldNumWorkerThreads = numWorkerThreads;
-                if (elapsedInSeconds > 300) {
-                    if (numWorkerThreads < MAX_WORKER_THREADS) {
-                        numWorkerThreads++;
-                    } else {
-                        logger.warn("rolling up data across {} agent rollup took {} seconds (using"
-                                + " {} threads)", count(agentRollups), elapsedInSeconds,
-                                numWorkerThreads);
-                    }
-                } else if (elapsedInSeconds < 60 && numWorkerThreads > MIN_WORKER_THREADS) {
-                    numWorkerThreads--;
+                if (elapsedInSeconds > 300 && numWorkerThreads == MAX_WORKER_THREADS) {
+                    logger.warn("rolling up data across {} agent rollup took {} seconds (using {}"
+                            + " threads)", count(agentRollups), elapsedInSeconds,
+                            numWorkerThreads);
                 }
+                int oldNumWorkerThreads = numWorkerThreads;
+                numWorkerThreads = getNumWorkerThreads(numWorkerThreads, elapsedInSeconds, behind);
                 if (numWorkerThreads != oldNumWorkerThreads) {
-                    ExecutorService oldWorkerExecutor = workerExecutor;
-                    workerExecutor = newWorkerExecutor(numWorkerThreads);
-                    oldWorkerExecutor.shutdown();
-                    if (!oldWorkerExecutor.awaitTermination(10, SECONDS)) {
-                        logger.error("timed out waiting for old worker rollup thread to terminate");
-                    }
+                    setNumWorkerThreads(workerExecutor, numWorkerThreads);
                 }
             } catch (InterruptedException e) {
                 // probably shutdown requested (see close method below)
@@ -144,20 +186,43 @@ class RollupService implements Runnable {
             throw new IllegalStateException(
                     "Timed out waiting for main rollup thread to terminate");
         }
+        lockRenewalExecutor.shutdownNow();
+        if (!lockRenewalExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for rollup lock renewal thread to terminate");
+        }
+    }
+
+    private void renewHeldRollupLocks() {
+        for (Map.Entry<String, UUID> entry : heldRollupLocks.entrySet()) {
+            try {
+                if (!rollupLockSet.renew(entry.getKey(), entry.getValue())) {
+                    // the lock expired before it could be renewed (e.g. long pause), so another
+                    // central collector node may now be rolling up the same agent rollup
+                    logger.warn("rollup lock expired while still rolling up: {}",
+                            entry.getKey());
+                }
+            } catch (Throwable t) {
+                // need to catch, otherwise subsequent renewals are suppressed
+                logger.error(t.getMessage(), t);
+            }
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
     private void runInternal(List<AgentRollup> agentRollups,
+            Map<String, Long> oldestNeedsRollupCaptureTimes,
             ListeningExecutorService workerExecutor) throws Exception {
+        Map<String, Long> priorities = getPriorities(agentRollups, oldestNeedsRollupCaptureTimes);
         List<Future<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentRollups)) {
-            futures.addAll(rollupAggregates(agentRollup, workerExecutor));
-            futures.add(rollupGauges(agentRollup, workerExecutor));
-            futures.addAll(rollupSyntheticMonitors(agentRollup, workerExecutor));
+        // the worker threads take tasks from a single shared queue in submission order, so agent
+        // rollups with the oldest data waiting to be rolled up are rolled up first
+        for (AgentRollup agentRollup : prioritize(agentRollups, priorities)) {
+            futures.addAll(rollupAggregates(agentRollup, priorities, workerExecutor));
+            futures.add(rollupGauges(agentRollup, priorities, workerExecutor));
+            futures.addAll(rollupSyntheticMonitors(agentRollup, priorities, workerExecutor));
             // checking aggregate and gauge alerts after rollup since their calculation can depend
             // on rollups depending on time period length (and alerts on rollups are not checked
             // anywhere else)
@@ -179,31 +244,59 @@ class RollupService implements Runnable {
         }
     }
 
+    // returns the capture time of the oldest aggregate or gauge data waiting to be rolled up for
+    // each agent rollup (agent rollups with nothing waiting to be rolled up are not included)
+    private Map<String, Long> readOldestNeedsRollupCaptureTimes(List<AgentRollup> agentRollups)
+            throws Exception {
+        Map<String, List<ListenableFuture<Long>>> futures = new HashMap<>();
+        readOldestNeedsRollupCaptureTimes(agentRollups, futures);
+        Map<String, Long> oldestNeedsRollupCaptureTimes = new HashMap<>();
+        for (Map.Entry<String, List<ListenableFuture<Long>>> entry : futures.entrySet()) {
+            long oldestNeedsRollupCaptureTime = Long.MAX_VALUE;
+            // using successfulAsList since the backlog is only used for prioritization, and a
+            // failure here should not prevent the agent rollup from being rolled up
+            for (Long captureTime : Futures.successfulAsList(entry.getValue()).get()) {
+                if (captureTime != null) {
+                    oldestNeedsRollupCaptureTime =
+                            Math.min(oldestNeedsRollupCaptureTime, captureTime);
+                }
+            }
+            if (oldestNeedsRollupCaptureTime != Long.MAX_VALUE) {
+                oldestNeedsRollupCaptureTimes.put(entry.getKey(), oldestNeedsRollupCaptureTime);
+            }
+        }
+        return oldestNeedsRollupCaptureTimes;
+    }
+
+    private void readOldestNeedsRollupCaptureTimes(List<AgentRollup> agentRollups,
+            Map<String, List<ListenableFuture<Long>>> futures) throws Exception {
+        for (AgentRollup agentRollup : agentRollups) {
+            readOldestNeedsRollupCaptureTimes(agentRollup.children(), futures);
+            List<ListenableFuture<Long>> agentRollupFutures = new ArrayList<>();
+            agentRollupFutures.add(aggregateDao.readOldestNeedsRollupCaptureTime(agentRollup.id()));
+            agentRollupFutures
+                    .add(gaugeValueDao.readOldestNeedsRollupCaptureTime(agentRollup.id()));
+            futures.put(agentRollup.id(), agentRollupFutures);
+        }
+    }
+
     private List<Future<?>> rollupAggregates(AgentRollup agentRollup,
-            ListeningExecutorService workerExecutor) {
+            Map<String, Long> priorities, ListeningExecutorService workerExecutor) {
         List<Future<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
-            futures.addAll(rollupAggregates(childAgentRollup, workerExecutor));
+        for (AgentRollup childAgentRollup : prioritize(agentRollup.children(), priorities)) {
+            futures.addAll(rollupAggregates(childAgentRollup, priorities, workerExecutor));
         }
-        futures.add(workerExecutor.submit(new Runnable() {
+        futures.add(workerExecutor.submit(new RollupWithLock("aggregates", agentRollup.id()) {
             @Override
-            public void run() {
-                try {
-                    aggregateDao.rollup(agentRollup.id());
-                } catch (InterruptedException e) {
-                    // probably shutdown requested (see close method above)
-                } catch (Throwable t) {
-                    logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
-                }
+            void rollup(String agentRollupId) throws Exception {
+                aggregateDao.rollup(agentRollupId);
             }
         }));
         return futures;
     }
 
     private ListenableFuture<?> rollupGauges(AgentRollup agentRollup,
-            ListeningExecutorService workerExecutor) {
+            Map<String, Long> priorities, ListeningExecutorService workerExecutor) {
         List<AgentRollup> childAgentRollups = agentRollup.children();
         if (childAgentRollups.isEmpty()) {
             // optimization of common case
@@ -212,8 +305,8 @@ class RollupService implements Runnable {
         // need to roll up children first, since gauge values initial roll up from children is
         // done on the 1-min aggregates of the children
         List<ListenableFuture<?>> futures = new ArrayList<>();
-        for (AgentRollup childAgentRollup : shuffle(childAgentRollups)) {
-            futures.add(rollupGauges(childAgentRollup, workerExecutor));
+        for (AgentRollup childAgentRollup : prioritize(childAgentRollups, priorities)) {
+            futures.add(rollupGauges(childAgentRollup, priorities, workerExecutor));
         }
         // using _whenAllSucceed_ because need to _not_ roll up parent if exception occurs while
         // rolling up a child, since gauge values initial roll up from children is done on the 1-min
@@ -223,21 +316,15 @@ class RollupService implements Runnable {
     }
 
     private List<Future<?>> rollupSyntheticMonitors(AgentRollup agentRollup,
-            ListeningExecutorService workerExecutor) {
+            Map<String, Long> priorities, ListeningExecutorService workerExecutor) {
         List<Future<?>> futures = new ArrayList<>();
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
-            futures.addAll(rollupSyntheticMonitors(childAgentRollup, workerExecutor));
+        for (AgentRollup childAgentRollup : prioritize(agentRollup.children(), priorities)) {
+            futures.addAll(rollupSyntheticMonitors(childAgentRollup, priorities, workerExecutor));
         }
-        futures.add(workerExecutor.submit(new Runnable() {
+        futures.add(workerExecutor.submit(new RollupWithLock("synthetic", agentRollup.id()) {
             @Override
-            public void run() {
-                try {
-                    syntheticResultDao.rollup(agentRollup.id());
-                } catch (InterruptedException e) {
-                    // probably shutdown requested (see close method above)
-                } catch (Throwable t) {
-                    logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
-                }
+            void rollup(String agentRollupId) throws Exception {
+                syntheticResultDao.rollup(agentRollupId);
             }
         }));
         return futures;
@@ -266,14 +353,92 @@ class RollupService implements Runnable {
         return futures;
     }
 
-    private static ListeningExecutorService newWorkerExecutor(int numWorkerThreads) {
-        return MoreExecutors.listeningDecorator(
-                MoreExecutors2.newFixedThreadPool(numWorkerThreads, "Rollup-Worker-%d"));
+    private static ThreadPoolExecutor newWorkerExecutor(int numWorkerThreads) {
+        return new ThreadPoolExecutor(numWorkerThreads, numWorkerThreads, 0, MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                MoreExecutors2.newThreadFactory("Rollup-Worker-%d"));
+    }
+
+    // resizing the existing worker executor (as opposed to replacing it) means that there is no
+    // need to wait for the old worker threads to terminate
+    private static void setNumWorkerThreads(ThreadPoolExecutor workerExecutor,
+            int numWorkerThreads) {
+        if (numWorkerThreads > workerExecutor.getMaximumPoolSize()) {
+            workerExecutor.setMaximumPoolSize(numWorkerThreads);
+            workerExecutor.setCorePoolSize(numWorkerThreads);
+        } else {
+            workerExecutor.setCorePoolSize(numWorkerThreads);
+            workerExecutor.setMaximumPoolSize(numWorkerThreads);
+        }
+    }
+
+    @VisibleForTesting
+    static int getNumWorkerThreads(int numWorkerThreads, long elapsedInSeconds,
+            boolean behind) {
+        if (elapsedInSeconds > 60) {
+            // rollups are not keeping up with the 1 minute rollup cadence
+            return Math.min(numWorkerThreads * 2, MAX_WORKER_THREADS);
+        } else if (elapsedInSeconds < 30 && !behind) {
+            return Math.max(numWorkerThreads - 1, MIN_WORKER_THREADS);
+        } else {
+            return numWorkerThreads;
+        }
+    }
+
+    private static boolean isBehind(Iterable<Long> oldestNeedsRollupCaptureTimes,
+            long currentTimeMillis) {
+        for (long oldestNeedsRollupCaptureTime : oldestNeedsRollupCaptureTimes) {
+            if (currentTimeMillis - oldestNeedsRollupCaptureTime > BEHIND_THRESHOLD_MILLIS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the priority of an agent rollup is the oldest capture time waiting to be rolled up across
+    // the agent rollup and all of its descendants, since rolling up an agent rollup depends on
+    // its children being rolled up first
+    @VisibleForTesting
+    static Map<String, Long> getPriorities(List<AgentRollup> agentRollups,
+            Map<String, Long> oldestNeedsRollupCaptureTimes) {
+        Map<String, Long> priorities = new HashMap<>();
+        for (AgentRollup agentRollup : agentRollups) {
+            addPriorities(agentRollup, oldestNeedsRollupCaptureTimes, priorities);
+        }
+        return priorities;
+    }
+
+    private static long addPriorities(AgentRollup agentRollup,
+            Map<String, Long> oldestNeedsRollupCaptureTimes, Map<String, Long> priorities) {
+        Long oldestNeedsRollupCaptureTime = oldestNeedsRollupCaptureTimes.get(agentRollup.id());
+        long priority = oldestNeedsRollupCaptureTime == null ? Long.MAX_VALUE
+                : oldestNeedsRollupCaptureTime;
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            priority = Math.min(priority,
+                    addPriorities(childAgentRollup, oldestNeedsRollupCaptureTimes, priorities));
+        }
+        priorities.put(agentRollup.id(), priority);
+        return priority;
     }
 
-    private static <T> List<T> shuffle(List<T> agentRollups) {
-        List<T> mutable = new ArrayList<>(agentRollups);
+    @VisibleForTesting
+    static List<AgentRollup> prioritize(List<AgentRollup> agentRollups,
+            Map<String, Long> priorities) {
+        List<AgentRollup> mutable = new ArrayList<>(agentRollups);
+        // randomize order of agent rollups with the same priority (e.g. those with nothing waiting
+        // to be rolled up) so that multiple central collector nodes will be less likely to contend
+        // for the same agent rollups (sort is stable so this randomization is retained)
         Collections.shuffle(mutable);
+        Collections.sort(mutable, new Comparator<AgentRollup>() {
+            @Override
+            public int compare(AgentRollup left, AgentRollup right) {
+                return Long.compare(getPriority(left), getPriority(right));
+            }
+            private long getPriority(AgentRollup agentRollup) {
+                Long priority = priorities.get(agentRollup.id());
+                return priority == null ? Long.MAX_VALUE : priority;
+            }
+        });
         return mutable;
     }
 
@@ -300,23 +465,50 @@ class RollupService implements Runnable {
         void accept(AgentRollup agentRollup) throws Exception;
     }
 
-    private class RollupGauges implements Runnable {
+    private abstract class RollupWithLock implements Runnable {
 
+        private final String lockKey;
         private final String agentRollupId;
 
-        private RollupGauges(String agentRollupId) {
+        private RollupWithLock(String rollupType, String agentRollupId) {
+            lockKey = rollupType + ":" + agentRollupId;
             this.agentRollupId = agentRollupId;
         }
 
         @Override
         public void run() {
+            @Nullable
+            UUID lockToken = rollupLockSet.lock(lockKey);
+            if (lockToken == null) {
+                // another central collector node is currently rolling up this agent rollup, any
+                // remaining work will be picked up on the next pass
+                return;
+            }
+            heldRollupLocks.put(lockKey, lockToken);
             try {
-                gaugeValueDao.rollup(agentRollupId);
+                rollup(agentRollupId);
             } catch (InterruptedException e) {
                 // probably shutdown requested (see close method above)
             } catch (Throwable t) {
                 logger.error("{} - {}", agentRollupId, t.getMessage(), t);
+            } finally {
+                heldRollupLocks.remove(lockKey);
+                rollupLockSet.unlock(lockKey, lockToken);
             }
         }
+
+        abstract void rollup(String agentRollupId) throws Exception;
+    }
+
+    private class RollupGauges extends RollupWithLock {
+
+        private RollupGauges(String agentRollupId) {
+            super("gauges", agentRollupId);
+        }
+
+        @Override
+        void rollup(String agentRollupId) throws Exception {
+            gaugeValueDao.rollup(agentRollupId);
+        }
     }
 }
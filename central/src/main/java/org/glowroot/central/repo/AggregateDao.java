@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,8 @@ package org.glowroot.central.repo;
 
 import java.util.List;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.agent.api.Instrumentation.AlreadyInTransactionBehavior;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -35,6 +37,10 @@ public interface AggregateDao extends AggregateRepository {
             alreadyInTransactionBehavior = AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION)
     void rollup(String agentRollupId) throws Exception;
 
+    // returns the capture time of the oldest aggregate data that is waiting to be rolled up, or
+    // Long.MAX_VALUE if there is none
+    ListenableFuture<Long> readOldestNeedsRollupCaptureTime(String agentRollupId) throws Exception;
+
     @OnlyUsedByTests
     void truncateAll() throws Exception;
 }
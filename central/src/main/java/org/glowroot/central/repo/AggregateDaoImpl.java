@@ -233,6 +233,9 @@ public class AggregateDaoImpl implements AggregateDao {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
+    private final PreparedStatement readOldestNeedsRollup;
+    private final PreparedStatement readOldestNeedsRollupFromChild;
+
     private final ImmutableList<Table> allTables;
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
@@ -408,6 +411,11 @@ public class AggregateDaoImpl implements AggregateDao {
                 + " where agent_rollup = ?");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+
+        readOldestNeedsRollup = session.prepare("select capture_time from aggregate_needs_rollup_1"
+                + " where agent_rollup = ? limit 1");
+        readOldestNeedsRollupFromChild = session.prepare("select capture_time from"
+                + " aggregate_needs_rollup_from_child where agent_rollup = ? limit 1");
     }
 
     @Override
@@ -813,6 +821,18 @@ public class AggregateDaoImpl implements AggregateDao {
                 !agentRollupId.endsWith("::"));
     }
 
+    @Override
+    public ListenableFuture<Long> readOldestNeedsRollupCaptureTime(String agentRollupId)
+            throws Exception {
+        List<PreparedStatement> readOldestNeedsRollupList = new ArrayList<>();
+        readOldestNeedsRollupList.add(readOldestNeedsRollup);
+        if (agentRollupId.endsWith("::")) {
+            readOldestNeedsRollupList.add(readOldestNeedsRollupFromChild);
+        }
+        return Common.readOldestNeedsRollupCaptureTime(agentRollupId, readOldestNeedsRollupList,
+                session);
+    }
+
     public void rollup(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, boolean leaf) throws Exception {
         List<TTL> ttls = getTTLs();
@@ -1574,8 +1594,7 @@ public class AggregateDaoImpl implements AggregateDao {
             AggregateQuery query, Iterable<Row> rows, Table table) throws Exception {
         MutableProfile profile = new MutableProfile();
         for (Row row : rows) {
-            ByteBuffer bytes = checkNotNull(row.getBytes(0));
-            profile.merge(Profile.parseFrom(bytes));
+            profile.merge(checkNotNull(row.getBytes(0)));
         }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
@@ -2025,10 +2044,7 @@ public class AggregateDaoImpl implements AggregateDao {
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
             captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(0)).getTime());
-            ByteBuffer bytes = checkNotNull(row.getBytes(1));
-            // TODO optimize this byte copying
-            Profile profile = Profile.parseFrom(bytes);
-            collector.mergeProfile(profile);
+            collector.mergeProfile(checkNotNull(row.getBytes(1)));
             collector.updateLastCaptureTime(captureTime);
         }
     }
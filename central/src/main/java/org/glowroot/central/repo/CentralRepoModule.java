@@ -61,6 +61,7 @@ public class CentralRepoModule {
     private final FullQueryTextDao fullQueryTextDao;
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
+    private final GaugeValueDaoImpl gaugeValueDaoImpl;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final V09AgentRollupDao v09AgentRollupDao;
@@ -139,8 +140,8 @@ public class CentralRepoModule {
         fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
                 transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, clock);
-        GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
-                clusterManager, asyncExecutor, clock);
+        gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository, clusterManager,
+                asyncExecutor, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
                 configRepository, asyncExecutor, clock);
         if (v09AggregateLastExpirationTime < clock.currentTimeMillis()) {
@@ -241,6 +242,7 @@ public class CentralRepoModule {
 
     public void close() throws Exception {
         fullQueryTextDao.close();
+        gaugeValueDaoImpl.close();
     }
 
     private static void populateFromAdminDefault(File file, ConfigRepositoryImpl configRepository)
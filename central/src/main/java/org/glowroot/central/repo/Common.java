@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -31,11 +31,15 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.central.util.MoreFutures;
@@ -119,6 +123,33 @@ class Common {
         return needsRollupMap.values();
     }
 
+    // returns the capture time of the oldest "needs rollup" record across the given "needs rollup"
+    // tables (which are clustered by capture time), or Long.MAX_VALUE if there are none
+    static ListenableFuture<Long> readOldestNeedsRollupCaptureTime(String agentRollupId,
+            List<PreparedStatement> readOldestNeedsRollupList, Session session) throws Exception {
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (PreparedStatement readOldestNeedsRollup : readOldestNeedsRollupList) {
+            BoundStatement boundStatement = readOldestNeedsRollup.bind();
+            boundStatement.setString(0, agentRollupId);
+            futures.add(session.readAsync(boundStatement));
+        }
+        return Futures.transform(Futures.allAsList(futures),
+                new Function<List<ResultSet>, Long>() {
+                    @Override
+                    public Long apply(List<ResultSet> list) {
+                        long oldestCaptureTime = Long.MAX_VALUE;
+                        for (ResultSet results : list) {
+                            Row row = results.one();
+                            if (row != null) {
+                                oldestCaptureTime = Math.min(oldestCaptureTime,
+                                        checkNotNull(row.getTimestamp(0)).getTime());
+                            }
+                        }
+                        return oldestCaptureTime;
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
     static List<NeedsRollupFromChildren> getNeedsRollupFromChildrenList(String agentRollupId,
             PreparedStatement readNeedsRollupFromChild, Session session) throws Exception {
         BoundStatement boundStatement = readNeedsRollupFromChild.bind();
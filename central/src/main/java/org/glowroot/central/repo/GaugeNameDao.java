@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -25,7 +26,6 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
-import com.google.common.collect.ImmutableList;
 import org.immutables.value.Value;
 
 import org.glowroot.central.util.RateLimiter;
@@ -33,6 +33,7 @@ import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -80,21 +81,31 @@ class GaugeNameDao {
         return gaugeNames;
     }
 
-    List<Future<?>> insert(String agentRollupId, long captureTime, String gaugeName)
-            throws Exception {
-        long rollupCaptureTime = CaptureTimes.getRollup(captureTime, DAYS.toMillis(1));
-        GaugeKey rateLimiterKey = ImmutableGaugeKey.of(agentRollupId, rollupCaptureTime, gaugeName);
-        if (!rateLimiter.tryAcquire(rateLimiterKey)) {
-            return ImmutableList.of();
-        }
-        BoundStatement boundStatement = insertPS.bind();
-        int i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setString(i++, gaugeName);
+    // gauge names that have already been inserted for the same agent rollup and day are skipped,
+    // and the remaining ones are inserted together as unlogged batches since they all share the
+    // same partition (agent_rollup_id)
+    List<Future<?>> insert(String agentRollupId, List<GaugeValue> gaugeValues) throws Exception {
         int maxRollupTTL = configRepository.getCentralStorageConfig().getMaxRollupTTL();
-        boundStatement.setInt(i++, Common.getAdjustedTTL(maxRollupTTL, rollupCaptureTime, clock));
-        return ImmutableList.of(session.writeAsync(boundStatement));
+        List<BoundStatement> boundStatements = new ArrayList<>();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            String gaugeName = gaugeValue.getGaugeName();
+            long rollupCaptureTime =
+                    CaptureTimes.getRollup(gaugeValue.getCaptureTime(), DAYS.toMillis(1));
+            GaugeKey rateLimiterKey =
+                    ImmutableGaugeKey.of(agentRollupId, rollupCaptureTime, gaugeName);
+            if (!rateLimiter.tryAcquire(rateLimiterKey)) {
+                continue;
+            }
+            BoundStatement boundStatement = insertPS.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+            boundStatement.setString(i++, gaugeName);
+            boundStatement.setInt(i++,
+                    Common.getAdjustedTTL(maxRollupTTL, rollupCaptureTime, clock));
+            boundStatements.add(boundStatement);
+        }
+        return new ArrayList<>(session.writeUnloggedBatchesAsync(boundStatements));
     }
 
     @Value.Immutable
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -39,11 +39,16 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.serial.Serial;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
@@ -51,6 +56,7 @@ import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
 import org.glowroot.central.util.Session;
+import org.glowroot.central.util.UnloggedBatchCoalescer;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -61,12 +67,21 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class GaugeValueDaoImpl implements GaugeValueDao {
 
+    private static final Logger logger = LoggerFactory.getLogger(GaugeValueDaoImpl.class);
+
+    // the partition key is (agent_rollup, gauge_name), and each agent sends a single value per
+    // gauge every gauge collection interval, so values are held for this long in order to write
+    // several values per partition in a single unlogged batch
+    private static final long VALUE_COALESCING_MILLIS =
+            Long.getLong("glowroot.internal.gaugeValueCoalescingMillis", 15000);
+
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final ExecutorService asyncExecutor;
@@ -89,10 +104,18 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
+    private final PreparedStatement readOldestNeedsRollup;
+    private final PreparedStatement readOldestNeedsRollupFromChild;
+
     // needs rollup caches are only to reduce pressure on the needs rollup tables by reducing
     // duplicate entries
     private final ConcurrentMap<NeedsRollupKey, ImmutableSet<String>> needsRollupCache1;
 
+    private final UnloggedBatchCoalescer valueCoalescer;
+
+    // stores whose "needs rollup" records have not been inserted yet
+    private final Set<ListenableFuture<?>> pendingStores = Sets.newConcurrentHashSet();
+
     GaugeValueDaoImpl(Session session, ConfigRepositoryImpl configRepository,
             ClusterManager clusterManager, ExecutorService asyncExecutor, Clock clock)
             throws Exception {
@@ -182,8 +205,16 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         deleteNeedsRollupFromChild = session.prepare("delete from gauge_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
 
+        readOldestNeedsRollup = session.prepare("select capture_time from gauge_needs_rollup_1"
+                + " where agent_rollup = ? limit 1");
+        readOldestNeedsRollupFromChild = session.prepare("select capture_time from"
+                + " gauge_needs_rollup_from_child where agent_rollup = ? limit 1");
+
         needsRollupCache1 =
                 clusterManager.createReplicatedMap("gaugeNeedsRollupCache1", 5, MINUTES);
+
+        valueCoalescer = new UnloggedBatchCoalescer(session, VALUE_COALESCING_MILLIS,
+                "Gauge-Value-Coalescing");
     }
 
     @Override
@@ -197,13 +228,11 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             return;
         }
         int ttl = getTTLs().get(0);
-        long maxCaptureTime = 0;
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         for (GaugeValue gaugeValue : gaugeValues) {
             BoundStatement boundStatement = insertValuePS.get(0).bind();
             String gaugeName = gaugeValue.getGaugeName();
             long captureTime = gaugeValue.getCaptureTime();
-            maxCaptureTime = Math.max(captureTime, maxCaptureTime);
             int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
             int i = 0;
             boundStatement.setString(i++, agentId);
@@ -212,17 +241,37 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             boundStatement.setDouble(i++, gaugeValue.getValue());
             boundStatement.setLong(i++, gaugeValue.getWeight());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.writeAsync(boundStatement));
-            for (String agentRollupIdForMeta : agentRollupIdsForMeta) {
-                futures.addAll(gaugeNameDao.insert(agentRollupIdForMeta, captureTime, gaugeName));
-            }
+            boundStatements.add(boundStatement);
         }
+        List<ListenableFuture<?>> valueFutures = valueCoalescer.writeAsync(boundStatements);
+        List<Future<?>> gaugeNameFutures = new ArrayList<>();
+        for (String agentRollupIdForMeta : agentRollupIdsForMeta) {
+            gaugeNameFutures.addAll(gaugeNameDao.insert(agentRollupIdForMeta, gaugeValues));
+        }
+        // wait for the values to be written (which can take up to VALUE_COALESCING_MILLIS) before
+        // inserting "needs rollup" records, without holding up the caller
+        ListenableFuture<?> future = Futures.whenAllSucceed(valueFutures)
+                .callAsync(() -> insertNeedsRollup(agentId, gaugeValues, ttl), asyncExecutor);
+        pendingStores.add(future);
+        Futures.addCallback(future, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {
+                pendingStores.remove(future);
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                pendingStores.remove(future);
+                logger.error(t.getMessage(), t);
+            }
+        }, directExecutor());
+        MoreFutures.waitForAll(gaugeNameFutures);
+    }
 
-        // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
-
+    private ListenableFuture</*@Nullable*/ Object> insertNeedsRollup(String agentId,
+            List<GaugeValue> gaugeValues, int ttl) throws Exception {
         // insert into gauge_needs_rollup_1
+        // the partition key is agent_rollup, so these all go out together as unlogged batches
+        List<BoundStatement> needsRollupBoundStatements = new ArrayList<>();
         Map<NeedsRollupKey, ImmutableSet<String>> updatesForNeedsRollupCache1 = new HashMap<>();
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
         for (Map.Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
@@ -260,12 +309,16 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             boundStatement.setUUID(i++, UUIDs.timeBased());
             boundStatement.setSet(i++, gaugeNames);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
-            futures.add(session.writeAsync(boundStatement));
+            needsRollupBoundStatements.add(boundStatement);
         }
-        MoreFutures.waitForAll(futures);
-
-        // update the cache now that the above inserts were successful
-        needsRollupCache1.putAll(updatesForNeedsRollupCache1);
+        List<ListenableFuture<?>> futures =
+                session.writeUnloggedBatchesAsync(needsRollupBoundStatements);
+        return Futures.whenAllSucceed(futures)
+                .call(() -> {
+                    // update the cache now that the above inserts were successful
+                    needsRollupCache1.putAll(updatesForNeedsRollupCache1);
+                    return null;
+                }, directExecutor());
     }
 
     @Override
@@ -325,6 +378,18 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                 !agentRollupId.endsWith("::"));
     }
 
+    @Override
+    public ListenableFuture<Long> readOldestNeedsRollupCaptureTime(String agentRollupId)
+            throws Exception {
+        List<PreparedStatement> readOldestNeedsRollupList = new ArrayList<>();
+        readOldestNeedsRollupList.add(readOldestNeedsRollup);
+        if (agentRollupId.endsWith("::")) {
+            readOldestNeedsRollupList.add(readOldestNeedsRollupFromChild);
+        }
+        return Common.readOldestNeedsRollupCaptureTime(agentRollupId, readOldestNeedsRollupList,
+                session);
+    }
+
     // there is no rollup from children on 5-second gauge values
     //
     // child agent rollups should be processed before their parent agent rollup, since initial
@@ -536,6 +601,19 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         return ttls;
     }
 
+    // writes out the values that are being held for coalescing, and waits for all stores to
+    // complete, including their "needs rollup" records
+    @OnlyUsedByTests
+    public void flush() throws Exception {
+        valueCoalescer.flush();
+        MoreFutures.waitForAll(new ArrayList<>(pendingStores));
+    }
+
+    public void close() throws Exception {
+        valueCoalescer.close();
+        MoreFutures.waitForAll(new ArrayList<>(pendingStores));
+    }
+
     @Override
     @OnlyUsedByTests
     public void truncateAll() throws Exception {
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// limits concurrent cassandra queries across query classes (e.g. read, write and rollup)
+//
+// each query class is guaranteed its reserved permits, and can borrow any capacity that the other
+// query classes are not using, up to its own adaptive limit
+//
+// the adaptive limit is AIMD based on observed latency: it grows additively while the limit is
+// being fully used and queries complete close to the baseline latency, and it shrinks
+// multiplicatively (but never below the query class's minimum limit) when recent latency exceeds a
+// multiple of the baseline or when queries fail (at most once per round trip, i.e. queries that
+// were already in flight during the last decrease are ignored)
+//
+// recent latency and baseline latency are both exponentially weighted moving averages, the recent
+// one over roughly the last 10 queries and the baseline over roughly the last 100 queries, so that
+// normal variance in individual query latencies does not look like a latency increase, while the
+// baseline can still adapt to a cluster that has permanently become slower
+//
+// latencies are tracked per table, since latencies differ widely between tables (e.g. a single row
+// write vs a large aggregate read), and comparing against a single baseline would treat every
+// query against a slower table as a latency increase
+//
+// in addition, while queries against other tables in the same query class are waiting for a
+// permit, no single table can use more than half of the query class's current limit, so that a hot
+// table cannot starve queries against other tables (a table can use the full limit otherwise)
+//
+// acquiring and releasing permits is lock-free, the lock is only taken when a query has to wait
+// for a permit, or when releasing a permit while some other query is waiting
+class AdaptiveQueryLimiter {
+
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double DECREASE_FACTOR = 0.9;
+    private static final double MAX_TABLE_SHARE = 0.5;
+
+    private static final double RECENT_LATENCY_WEIGHT = 0.1;
+    private static final double BASELINE_LATENCY_WEIGHT = 0.01;
+
+    private final int maxConcurrentQueries;
+
+    private final List<QueryClass> queryClasses = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger totalInFlight = new AtomicInteger();
+    private final AtomicInteger totalWaiting = new AtomicInteger();
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition released = waitLock.newCondition();
+
+    AdaptiveQueryLimiter(int maxConcurrentQueries) {
+        this.maxConcurrentQueries = maxConcurrentQueries;
+    }
+
+    QueryClass addQueryClass(int reservedPermits, int minLimit, int initialLimit) {
+        int reserved = Math.max(reservedPermits, 1);
+        int min = Math.max(minLimit, reserved);
+        QueryClass queryClass = new QueryClass(reserved, min, Math.max(initialLimit, min));
+        queryClasses.add(queryClass);
+        return queryClass;
+    }
+
+    private void signalIfWaiting() {
+        // this read must come after the caller has released its permit, see acquire()
+        if (totalWaiting.get() > 0) {
+            waitLock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    class QueryClass {
+
+        private final int reservedPermits;
+        private final int minLimit;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger waiting = new AtomicInteger();
+        // the set of tables is fixed by the schema, so entries are never removed
+        private final ConcurrentMap<String, TableCounts> tableCounts = new ConcurrentHashMap<>();
+
+        // only written under adjustLock
+        private volatile double limit;
+
+        private final ReentrantLock adjustLock = new ReentrantLock();
+        // guarded by adjustLock
+        private final Map<String, TableLatency> latencies = new HashMap<>();
+        private boolean decreased;
+        private long lastDecreaseTick;
+
+        private QueryClass(int reservedPermits, int minLimit, int initialLimit) {
+            this.reservedPermits = reservedPermits;
+            this.minLimit = minLimit;
+            limit = initialLimit;
+        }
+
+        void acquire(@Nullable String tableName) throws InterruptedException {
+            if (tryAcquire(tableName)) {
+                return;
+            }
+            // a concurrent acquire may have failed because of the (temporary) increments made by
+            // the failed attempt above (this is not needed for the attempts below, since those are
+            // made under waitLock, and so are never concurrent with the re-check of a waiter)
+            signalIfWaiting();
+            // incrementing totalWaiting before re-checking (under waitLock) pairs with releasing
+            // a permit before checking totalWaiting (in signalIfWaiting()), so that either the
+            // re-check sees the released permit, or the releasing thread sees this waiter and
+            // signals it (which cannot happen until this thread is awaiting, since the releasing
+            // thread needs waitLock in order to signal)
+            TableCounts counts = getTableCounts(tableName);
+            if (counts != null) {
+                counts.waiting.incrementAndGet();
+            }
+            waiting.incrementAndGet();
+            totalWaiting.incrementAndGet();
+            try {
+                waitLock.lockInterruptibly();
+                try {
+                    while (!tryAcquire(tableName)) {
+                        released.await();
+                    }
+                } finally {
+                    waitLock.unlock();
+                }
+            } finally {
+                waiting.decrementAndGet();
+                totalWaiting.decrementAndGet();
+                if (counts != null) {
+                    counts.waiting.decrementAndGet();
+                }
+            }
+        }
+
+        // used for queries whose latency should not influence the limit (e.g. schema changes)
+        void release(@Nullable String tableName) {
+            releaseInternal(getTableCounts(tableName));
+            signalIfWaiting();
+        }
+
+        void release(@Nullable String tableName, long startTick, long endTick, boolean success) {
+            boolean limitReached = waiting.get() > 0 || inFlight.get() >= getLimit();
+            releaseInternal(getTableCounts(tableName));
+            adjustLimit(tableName, startTick, endTick, success, limitReached);
+            signalIfWaiting();
+        }
+
+        int getLimit() {
+            return (int) limit;
+        }
+
+        int getReservedPermits() {
+            return reservedPermits;
+        }
+
+        int getMinLimit() {
+            return minLimit;
+        }
+
+        int getAvailablePermits() {
+            int unusedTotal = maxConcurrentQueries - totalInFlight.get();
+            return Math.max(0, Math.min(getLimit() - inFlight.get(),
+                    unusedTotal - getUnusedReservedPermitsOfOthers()));
+        }
+
+        int getQueueLength() {
+            return waiting.get();
+        }
+
+        // average across tables
+        double getBaselineLatencyMillis() {
+            adjustLock.lock();
+            try {
+                if (latencies.isEmpty()) {
+                    return 0;
+                }
+                double totalNanos = 0;
+                for (TableLatency latency : latencies.values()) {
+                    totalNanos += latency.baselineNanos;
+                }
+                return totalNanos / latencies.size() / MILLISECONDS.toNanos(1);
+            } finally {
+                adjustLock.unlock();
+            }
+        }
+
+        private boolean tryAcquire(@Nullable String tableName) {
+            int currLimit = getLimit();
+            TableCounts counts = getTableCounts(tableName);
+            // the counters are incremented first and checked afterwards (and then rolled back if
+            // over), so that concurrent acquires can never together exceed the limits
+            int classCount = inFlight.incrementAndGet();
+            int totalCount = totalInFlight.incrementAndGet();
+            int tableCount = counts == null ? 0 : counts.inFlight.incrementAndGet();
+            if (classCount <= currLimit
+                    && totalCount <= maxConcurrentQueries - getUnusedReservedPermitsOfOthers()
+                    && (tableCount <= Math.max(1, (int) (currLimit * MAX_TABLE_SHARE))
+                            || !isOtherTableWaiting(counts))) {
+                return true;
+            }
+            releaseInternal(counts);
+            return false;
+        }
+
+        // the table share cap only applies while queries against other tables are waiting, since
+        // otherwise capping the table would only leave permits unused
+        private boolean isOtherTableWaiting(@Nullable TableCounts counts) {
+            int tableWaiting = counts == null ? 0 : counts.waiting.get();
+            return waiting.get() > tableWaiting;
+        }
+
+        private @Nullable TableCounts getTableCounts(@Nullable String tableName) {
+            if (tableName == null) {
+                return null;
+            }
+            // get() first since computeIfAbsent() locks even when the key is present (in Java 8)
+            TableCounts counts = tableCounts.get(tableName);
+            if (counts == null) {
+                counts = tableCounts.computeIfAbsent(tableName, k -> new TableCounts());
+            }
+            return counts;
+        }
+
+        private int getUnusedReservedPermitsOfOthers() {
+            int unused = 0;
+            for (QueryClass queryClass : queryClasses) {
+                if (queryClass != this) {
+                    unused += Math.max(0, queryClass.reservedPermits - queryClass.inFlight.get());
+                }
+            }
+            return unused;
+        }
+
+        private void releaseInternal(@Nullable TableCounts counts) {
+            if (counts != null) {
+                counts.inFlight.decrementAndGet();
+            }
+            totalInFlight.decrementAndGet();
+            inFlight.decrementAndGet();
+        }
+
+        private void adjustLimit(@Nullable String tableName, long startTick, long endTick,
+                boolean success, boolean limitReached) {
+            if (!adjustLock.tryLock()) {
+                // another query is adjusting the limit at this same moment, and under that much
+                // concurrency, skipping this one sample is better than making queries wait on
+                // each other here
+                return;
+            }
+            try {
+                long latencyNanos = endTick - startTick;
+                String key = tableName == null ? "" : tableName;
+                TableLatency latency = latencies.get(key);
+                if (latency == null) {
+                    latency = new TableLatency(latencyNanos);
+                    latencies.put(key, latency);
+                } else {
+                    latency.recentNanos +=
+                            (latencyNanos - latency.recentNanos) * RECENT_LATENCY_WEIGHT;
+                    latency.baselineNanos +=
+                            (latencyNanos - latency.baselineNanos) * BASELINE_LATENCY_WEIGHT;
+                }
+                if (!success || latency.recentNanos > latency.baselineNanos * LATENCY_TOLERANCE) {
+                    if (decreased && startTick - lastDecreaseTick < 0) {
+                        // this query was already in flight during the last decrease
+                        return;
+                    }
+                    limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                    decreased = true;
+                    lastDecreaseTick = endTick;
+                } else if (limitReached) {
+                    limit = Math.min(maxConcurrentQueries, limit + 1 / limit);
+                }
+            } finally {
+                adjustLock.unlock();
+            }
+        }
+    }
+
+    private static class TableCounts {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger waiting = new AtomicInteger();
+    }
+
+    private static class TableLatency {
+
+        private double recentNanos;
+        private double baselineNanos;
+
+        private TableLatency(double nanos) {
+            recentNanos = nanos;
+            baselineNanos = nanos;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ColumnDefinitions;
 import com.datastax.driver.core.ColumnMetadata;
@@ -158,10 +159,24 @@ public class CassandraWriteMetrics {
     }
 
     private void recordMetricsInternal(Statement statement) {
-        if (!(statement instanceof BoundStatement)) {
-            return;
+        if (statement instanceof BatchStatement) {
+            // rows are recorded individually, but the batch is only recorded as a single write
+            // request (against the table and agent rollup of its first recorded row, since batches
+            // are only used for statements in the same partition)
+            boolean recorded = false;
+            for (Statement batchedStatement : ((BatchStatement) statement).getStatements()) {
+                if (batchedStatement instanceof BoundStatement) {
+                    recorded |= recordMetricsInternal((BoundStatement) batchedStatement, !recorded);
+                }
+            }
+        } else if (statement instanceof BoundStatement) {
+            recordMetricsInternal((BoundStatement) statement, true);
         }
-        BoundStatement boundStatement = (BoundStatement) statement;
+    }
+
+    // returns false if the row is not recorded (because it is not associated with an agent rollup)
+    private boolean recordMetricsInternal(BoundStatement boundStatement,
+            boolean newWriteRequest) {
         PreparedStatement preparedStatement = boundStatement.preparedStatement();
         List<ColumnDefinitions.Definition> columnDefinitions =
                 preparedStatement.getVariables().asList();
@@ -174,17 +189,17 @@ public class CassandraWriteMetrics {
         }
         String agentRollupId = getAgentRollupId(columnDefinitions, boundStatement);
         if (agentRollupId == null) {
-            return;
+            return false;
         }
         // per table metrics
         WriteMetrics perTableMetrics = writeMetrics
                 .computeIfAbsent(display, k -> new WriteMetrics(display));
-        perTableMetrics.rowsWritten.incrementAndGet();
+        perTableMetrics.recordRowWritten(newWriteRequest);
         // per agent rollup metrics
         // TODO report checker framework issue that occurs without checkNotNull
         WriteMetrics perAgentRollupMetrics = perTableMetrics.nestedWriteMetricsMap
                 .computeIfAbsent(agentRollupId, k -> new WriteMetrics(checkNotNull(agentRollupId)));
-        perAgentRollupMetrics.rowsWritten.incrementAndGet();
+        perAgentRollupMetrics.recordRowWritten(newWriteRequest);
         // per transaction type metrics
         String transactionType = getTransactionType(columnDefinitions, boundStatement);
         WriteMetrics perTransactionTypeMetrics = null;
@@ -193,7 +208,7 @@ public class CassandraWriteMetrics {
             // TODO report checker framework issue that occurs without checkNotNull
             perTransactionTypeMetrics = perAgentRollupMetrics.nestedWriteMetricsMap.computeIfAbsent(
                     transactionType, k -> new WriteMetrics(checkNotNull(transactionType)));
-            perTransactionTypeMetrics.rowsWritten.incrementAndGet();
+            perTransactionTypeMetrics.recordRowWritten(newWriteRequest);
             // per transaction name metrics
             String transactionName = transactionType == null ? null
                     : getTransactionName(columnDefinitions, boundStatement);
@@ -208,19 +223,19 @@ public class CassandraWriteMetrics {
                 perTransactionNameMetrics = nestedWriteMetricsMap
                         .computeIfAbsent(transactionName,
                                 k -> new WriteMetrics(checkNotNull(transactionName)));
-                perTransactionNameMetrics.rowsWritten.incrementAndGet();
+                perTransactionNameMetrics.recordRowWritten(newWriteRequest);
             }
         }
         KeyspaceMetadata keyspaceMetadata =
                 session.getCluster().getMetadata().getKeyspace(keyspace);
         if (keyspaceMetadata == null) {
             // this should not happen
-            return;
+            return true;
         }
         TableMetadata tableMetadata = keyspaceMetadata.getTable(tableName);
         if (tableMetadata == null) {
             // this should not happen
-            return;
+            return true;
         }
         Set<String> partitionKeyColumnNames = tableMetadata.getPartitionKey()
                 .stream()
@@ -256,6 +271,7 @@ public class CassandraWriteMetrics {
                 }
             }
         }
+        return true;
     }
 
     private @Nullable String getTransactionType(
@@ -347,6 +363,7 @@ public class CassandraWriteMetrics {
 
         private final String display;
         private final AtomicLong rowsWritten = new AtomicLong();
+        private final AtomicLong writeRequests = new AtomicLong();
         private final AtomicLong bytesWritten = new AtomicLong();
         private final Map<String, AtomicLong> bytesWrittenPerColumn = new ConcurrentHashMap<>();
         private final Map<String, WriteMetrics> nestedWriteMetricsMap = new ConcurrentHashMap<>();
@@ -355,10 +372,18 @@ public class CassandraWriteMetrics {
             this.display = display;
         }
 
+        private void recordRowWritten(boolean newWriteRequest) {
+            rowsWritten.incrementAndGet();
+            if (newWriteRequest) {
+                writeRequests.incrementAndGet();
+            }
+        }
+
         CassandraWriteTotals toDataWritten() {
             return ImmutableCassandraWriteTotals.builder()
                     .display(display)
                     .rowsWritten(rowsWritten.get())
+                    .writeRequests(writeRequests.get())
                     .bytesWritten(bytesWritten.get())
                     .bytesWrittenPerColumn(bytesWrittenPerColumn.entrySet().stream()
                             .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue().get())))
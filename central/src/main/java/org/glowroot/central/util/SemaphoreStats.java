@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 the original author or authors.
+ * Copyright 2018-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,23 +15,43 @@
  */
 package org.glowroot.central.util;
 
-import java.util.concurrent.Semaphore;
+import org.glowroot.central.util.AdaptiveQueryLimiter.QueryClass;
 
 class SemaphoreStats implements SemaphoreStatsMXBean {
 
-    private final Semaphore semaphore;
+    private final QueryClass queryClass;
 
-    SemaphoreStats(Semaphore semaphore) {
-        this.semaphore = semaphore;
+    SemaphoreStats(QueryClass queryClass) {
+        this.queryClass = queryClass;
     }
 
     @Override
     public int getAvailablePermits() {
-        return semaphore.availablePermits();
+        return queryClass.getAvailablePermits();
     }
 
     @Override
     public int getQueueLength() {
-        return semaphore.getQueueLength();
+        return queryClass.getQueueLength();
+    }
+
+    @Override
+    public int getLimit() {
+        return queryClass.getLimit();
+    }
+
+    @Override
+    public int getReservedPermits() {
+        return queryClass.getReservedPermits();
+    }
+
+    @Override
+    public int getMinLimit() {
+        return queryClass.getMinLimit();
+    }
+
+    @Override
+    public double getBaselineLatencyMillis() {
+        return queryClass.getBaselineLatencyMillis();
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 the original author or authors.
+ * Copyright 2018-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,4 +19,9 @@ public interface SemaphoreStatsMXBean {
 
     int getAvailablePermits();
     int getQueueLength();
+    int getLimit();
+    int getReservedPermits();
+    int getMinLimit();
+    // average across tables
+    double getBaselineLatencyMillis();
 }
@@ -16,19 +16,28 @@
 package org.glowroot.central.util;
 
 import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Configuration;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.SimpleStatement;
@@ -36,9 +45,11 @@ import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -49,6 +60,8 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.util.AdaptiveQueryLimiter.QueryClass;
+
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -56,6 +69,10 @@ public class Session {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
+    // keeps unlogged batches well under cassandra's default batch_size_warn_threshold_in_kb (5kb)
+    // for the small rows that are batched
+    static final int MAX_UNLOGGED_BATCH_SIZE = 50;
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private static final ThreadLocal<Boolean> inRollupThread = new ThreadLocal<Boolean>() {
         @Override
@@ -65,14 +82,18 @@ public class Session {
     };
 
     // limit concurrent queries to avoid BusyPoolException
-    // separate read/write query limits in order to give some preference to UI requests which are
+    // separate read/write query classes in order to give some preference to UI requests which are
     // primarily read queries, compared to the bulk of the concurrent queries which are primarily
     // write queries
-    // separate rollup query limit in order to prevent rollup from hogging too many, and also to
+    // separate rollup query class in order to prevent rollup from hogging too many, and also to
     // prevent rollup from not getting enough
-    private final Semaphore readQuerySemaphore;
-    private final Semaphore writeQuerySemaphore;
-    private final Semaphore rollupQuerySemaphore;
+    // each query class's limit never drops below its original fixed share (1/4 read, 1/2 write,
+    // 1/4 rollup), and can grow above it by borrowing capacity that is not being used by the other
+    // query classes, while always leaving half of each of the other query class's share for it
+    // (see AdaptiveQueryLimiter)
+    private final QueryClass readQueryClass;
+    private final QueryClass writeQueryClass;
+    private final QueryClass rollupQueryClass;
 
     private final com.datastax.driver.core.Session wrappedSession;
     private final String keyspaceName;
@@ -89,9 +110,13 @@ public class Session {
         this.keyspaceName = keyspaceName;
         this.writeConsistencyLevel = writeConsistencyLevel;
 
-        readQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
-        writeQuerySemaphore = new Semaphore(maxConcurrentQueries / 2);
-        rollupQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(maxConcurrentQueries);
+        readQueryClass = queryLimiter.addQueryClass(maxConcurrentQueries / 8,
+                maxConcurrentQueries / 4, maxConcurrentQueries / 4);
+        writeQueryClass = queryLimiter.addQueryClass(maxConcurrentQueries / 4,
+                maxConcurrentQueries / 2, maxConcurrentQueries / 2);
+        rollupQueryClass = queryLimiter.addQueryClass(maxConcurrentQueries / 8,
+                maxConcurrentQueries / 4, maxConcurrentQueries / 4);
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
 
@@ -106,11 +131,11 @@ public class Session {
         wrappedSession.execute("use " + keyspaceName);
 
         MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
-        platformMBeanServer.registerMBean(new SemaphoreStats(readQuerySemaphore),
+        platformMBeanServer.registerMBean(new SemaphoreStats(readQueryClass),
                 ObjectName.getInstance("org.glowroot.central:type=ReadQuerySemaphore"));
-        platformMBeanServer.registerMBean(new SemaphoreStats(writeQuerySemaphore),
+        platformMBeanServer.registerMBean(new SemaphoreStats(writeQueryClass),
                 ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
-        platformMBeanServer.registerMBean(new SemaphoreStats(rollupQuerySemaphore),
+        platformMBeanServer.registerMBean(new SemaphoreStats(rollupQueryClass),
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
     }
 
@@ -208,14 +233,14 @@ public class Session {
     }
 
     public ListenableFuture<ResultSet> readAsync(Statement statement) throws Exception {
-        return throttleRead(() -> wrappedSession.executeAsync(statement));
+        return throttleRead(statement, () -> wrappedSession.executeAsync(statement));
     }
 
     public ListenableFuture<?> writeAsync(Statement statement) throws Exception {
         if (statement.getConsistencyLevel() == null && writeConsistencyLevel != null) {
             statement.setConsistencyLevel(writeConsistencyLevel);
         }
-        return throttleWrite(() -> {
+        return throttleWrite(statement, () -> {
             // for now, need to record metrics in the same method because CassandraWriteMetrics
             // relies on some thread locals
             cassandraWriteMetrics.recordMetrics(statement);
@@ -223,8 +248,65 @@ public class Session {
         });
     }
 
+    // statements can be for any number of partitions, they are grouped into batches by partition
+    // (see groupIntoUnloggedBatches())
+    public List<ListenableFuture<?>> writeUnloggedBatchesAsync(
+            List<? extends Statement> statements) throws Exception {
+        Configuration configuration = wrappedSession.getCluster().getConfiguration();
+        List<List<Statement>> batches = groupIntoUnloggedBatches(statements,
+                configuration.getProtocolOptions().getProtocolVersion(),
+                configuration.getCodecRegistry());
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        for (List<Statement> batch : batches) {
+            futures.add(writeUnloggedBatchAsync(batch));
+        }
+        return futures;
+    }
+
+    // statements must all be for the same partition
+    ListenableFuture<?> writeUnloggedBatchAsync(List<? extends Statement> partitionStatements)
+            throws Exception {
+        if (partitionStatements.size() == 1) {
+            return writeAsync(partitionStatements.get(0));
+        }
+        BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchStatement.addAll(partitionStatements);
+        return writeAsync(batchStatement);
+    }
+
+    @Nullable ByteBuffer getRoutingKey(Statement statement) {
+        Configuration configuration = wrappedSession.getCluster().getConfiguration();
+        return statement.getRoutingKey(configuration.getProtocolOptions().getProtocolVersion(),
+                configuration.getCodecRegistry());
+    }
+
+    // unlogged batches that span multiple partitions only shift the work (and the memory pressure)
+    // to the coordinator, so statements are only batched together when they have the same routing
+    // key (statements against different tables with the same routing key are still batched
+    // together, since they have the same token, and so are owned by the same replicas)
+    @VisibleForTesting
+    static List<List<Statement>> groupIntoUnloggedBatches(List<? extends Statement> statements,
+            ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
+        List<List<Statement>> batches = new ArrayList<>();
+        Map<ByteBuffer, List<Statement>> statementsPerRoutingKey = new LinkedHashMap<>();
+        for (Statement statement : statements) {
+            ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+            if (routingKey == null) {
+                // partition is not known, so not safe to batch with anything else
+                batches.add(ImmutableList.of(statement));
+            } else {
+                statementsPerRoutingKey.computeIfAbsent(routingKey, k -> new ArrayList<>())
+                        .add(statement);
+            }
+        }
+        for (List<Statement> partitionStatements : statementsPerRoutingKey.values()) {
+            batches.addAll(Lists.partition(partitionStatements, MAX_UNLOGGED_BATCH_SIZE));
+        }
+        return batches;
+    }
+
     private ListenableFuture<ResultSet> updateAsync(Statement statement) throws Exception {
-        return throttleWrite(() -> wrappedSession.executeAsync(statement));
+        return throttleWrite(statement, () -> wrappedSession.executeAsync(statement));
     }
 
     public Cluster getCluster() {
@@ -354,11 +436,11 @@ public class Session {
     }
 
     public void updateSchemaWithRetry(String query) throws InterruptedException {
-        writeQuerySemaphore.acquire();
+        writeQueryClass.acquire(null);
         try {
             updateSchemaWithRetry(wrappedSession, query);
         } finally {
-            writeQuerySemaphore.release();
+            writeQueryClass.release(null);
         }
     }
 
@@ -382,50 +464,66 @@ public class Session {
         inRollupThread.set(value);
     }
 
-    private ListenableFuture<ResultSet> throttleRead(DoUnderThrottle doUnderThrottle)
-            throws Exception {
+    private ListenableFuture<ResultSet> throttleRead(Statement statement,
+            DoUnderThrottle doUnderThrottle) throws Exception {
         if (inRollupThread.get()) {
-            return throttle(doUnderThrottle, rollupQuerySemaphore);
+            return throttle(statement, doUnderThrottle, rollupQueryClass);
         } else {
-            return throttle(doUnderThrottle, readQuerySemaphore);
+            return throttle(statement, doUnderThrottle, readQueryClass);
         }
     }
 
-    private ListenableFuture<ResultSet> throttleWrite(DoUnderThrottle doUnderThrottle)
-            throws Exception {
+    private ListenableFuture<ResultSet> throttleWrite(Statement statement,
+            DoUnderThrottle doUnderThrottle) throws Exception {
         if (inRollupThread.get()) {
-            return throttle(doUnderThrottle, rollupQuerySemaphore);
+            return throttle(statement, doUnderThrottle, rollupQueryClass);
         } else {
-            return throttle(doUnderThrottle, writeQuerySemaphore);
+            return throttle(statement, doUnderThrottle, writeQueryClass);
         }
     }
 
-    private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle,
-            Semaphore overallSemaphore) throws Exception {
-        overallSemaphore.acquire();
+    private static ListenableFuture<ResultSet> throttle(Statement statement,
+            DoUnderThrottle doUnderThrottle, QueryClass queryClass) throws Exception {
+        String tableName = getTableName(statement);
+        queryClass.acquire(tableName);
         SettableFuture<ResultSet> outerFuture = SettableFuture.create();
+        long startTick = System.nanoTime();
         ResultSetFuture innerFuture;
         try {
             innerFuture = doUnderThrottle.execute();
         } catch (Throwable t) {
-            overallSemaphore.release();
+            queryClass.release(tableName);
             throw t;
         }
         Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
             @Override
             public void onSuccess(ResultSet result) {
-                overallSemaphore.release();
+                queryClass.release(tableName, startTick, System.nanoTime(), true);
                 outerFuture.set(result);
             }
             @Override
             public void onFailure(Throwable t) {
-                overallSemaphore.release();
+                queryClass.release(tableName, startTick, System.nanoTime(), false);
                 outerFuture.setException(t);
             }
         }, MoreExecutors.directExecutor());
         return outerFuture;
     }
 
+    private static @Nullable String getTableName(Statement statement) {
+        if (statement instanceof BatchStatement) {
+            // batches are only used for statements in the same partition
+            Collection<Statement> statements = ((BatchStatement) statement).getStatements();
+            return statements.isEmpty() ? null : getTableName(statements.iterator().next());
+        }
+        if (!(statement instanceof BoundStatement)) {
+            return null;
+        }
+        ColumnDefinitions variables =
+                ((BoundStatement) statement).preparedStatement().getVariables();
+        return variables.size() == 0 ? null : variables.getTable(0);
+    }
+
     private static @Nullable String getTableName(String createTableQuery, String prefix) {
         if (createTableQuery.startsWith(prefix)) {
             String suffix = createTableQuery.substring(prefix.length());
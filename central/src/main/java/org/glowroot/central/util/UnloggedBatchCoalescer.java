@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// holds writes for up to windowMillis so that writes to the same partition that arrive separately
+// (e.g. gauge values, where each agent sends one value per gauge, and so one row per partition,
+// every few seconds) go out together as a single unlogged batch
+//
+// the returned futures complete when the batch containing the statement has been written
+public class UnloggedBatchCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnloggedBatchCoalescer.class);
+
+    private final Session session;
+    private final long windowMillis;
+
+    private final ScheduledExecutorService scheduledExecutor;
+
+    // guarded by this
+    private final Map<ByteBuffer, PendingBatch> pendingBatches = new HashMap<>();
+
+    public UnloggedBatchCoalescer(Session session, long windowMillis, String threadName) {
+        this.session = session;
+        this.windowMillis = windowMillis;
+        scheduledExecutor = MoreExecutors2.newSingleThreadScheduledExecutor(threadName);
+    }
+
+    public List<ListenableFuture<?>> writeAsync(List<? extends Statement> statements)
+            throws Exception {
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        List<Statement> unbatchedStatements = new ArrayList<>();
+        List<PendingBatch> fullBatches = new ArrayList<>();
+        synchronized (this) {
+            for (Statement statement : statements) {
+                ByteBuffer routingKey = windowMillis == 0 ? null : session.getRoutingKey(statement);
+                if (routingKey == null) {
+                    // partition is not known, so not safe to batch with anything else
+                    unbatchedStatements.add(statement);
+                    continue;
+                }
+                PendingBatch pendingBatch = pendingBatches.get(routingKey);
+                if (pendingBatch == null) {
+                    pendingBatch = new PendingBatch();
+                    pendingBatches.put(routingKey, pendingBatch);
+                    PendingBatch newPendingBatch = pendingBatch;
+                    scheduledExecutor.schedule(() -> flush(routingKey, newPendingBatch),
+                            windowMillis, MILLISECONDS);
+                }
+                pendingBatch.statements.add(statement);
+                futures.add(pendingBatch.future);
+                if (pendingBatch.statements.size() == Session.MAX_UNLOGGED_BATCH_SIZE) {
+                    pendingBatches.remove(routingKey);
+                    fullBatches.add(pendingBatch);
+                }
+            }
+        }
+        // writes can block on the write query limit, so they are performed outside of the lock
+        for (Statement statement : unbatchedStatements) {
+            futures.add(session.writeAsync(statement));
+        }
+        for (PendingBatch fullBatch : fullBatches) {
+            write(fullBatch);
+        }
+        return futures;
+    }
+
+    // writes out all pending batches without waiting for their window to elapse
+    public void flush() {
+        List<PendingBatch> batches;
+        synchronized (this) {
+            batches = new ArrayList<>(pendingBatches.values());
+            pendingBatches.clear();
+        }
+        for (PendingBatch batch : batches) {
+            write(batch);
+        }
+    }
+
+    public void close() throws InterruptedException {
+        // the scheduled flushes are not needed since all pending batches are flushed below
+        scheduledExecutor.shutdownNow();
+        if (!scheduledExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for unlogged batch coalescing thread to terminate");
+        }
+        flush();
+    }
+
+    private void flush(ByteBuffer routingKey, PendingBatch pendingBatch) {
+        synchronized (this) {
+            if (!pendingBatches.remove(routingKey, pendingBatch)) {
+                // already written out because it filled up, or because of flush()
+                return;
+            }
+        }
+        write(pendingBatch);
+    }
+
+    private void write(PendingBatch pendingBatch) {
+        try {
+            pendingBatch.future.setFuture(session.writeUnloggedBatchAsync(pendingBatch.statements));
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            pendingBatch.future.setException(e);
+        }
+    }
+
+    private static class PendingBatch {
+
+        private final List<Statement> statements = new ArrayList<>();
+        private final SettableFuture</*@Nullable*/ Object> future = SettableFuture.create();
+    }
+}
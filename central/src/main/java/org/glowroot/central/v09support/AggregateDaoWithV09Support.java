@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
@@ -242,6 +243,12 @@ public class AggregateDaoWithV09Support implements AggregateDao {
         }
     }
 
+    @Override
+    public ListenableFuture<Long> readOldestNeedsRollupCaptureTime(String agentRollupId)
+            throws Exception {
+        return delegate.readOldestNeedsRollupCaptureTime(agentRollupId);
+    }
+
     private void splitMergeIfNeeded(String agentRollupId, SummaryQuery query,
             DelegateMergeAction<SummaryQuery> action) throws Exception {
         SummaryQueryPlan plan = getPlan(agentRollupId, query);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2018 the original author or authors.
+ * Copyright 2017-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.glowroot.central.repo.AgentRollupIds;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.GaugeValueDaoImpl;
@@ -127,6 +129,12 @@ public class GaugeValueDaoWithV09Support implements GaugeValueDao {
         }
     }
 
+    @Override
+    public ListenableFuture<Long> readOldestNeedsRollupCaptureTime(String agentRollupId)
+            throws Exception {
+        return delegate.readOldestNeedsRollupCaptureTime(agentRollupId);
+    }
+
     @Override
     @OnlyUsedByTests
     public void truncateAll() throws Exception {
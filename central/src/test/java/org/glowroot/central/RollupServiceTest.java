@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,16 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
 
+import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
+import org.glowroot.common2.repo.ImmutableAgentRollup;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class RollupServiceTest {
@@ -28,4 +36,50 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldAdjustNumWorkerThreads() {
+        assertThat(RollupService.getNumWorkerThreads(2, 90, false)).isEqualTo(4);
+        assertThat(RollupService.getNumWorkerThreads(RollupService.MAX_WORKER_THREADS, 90, false))
+                .isEqualTo(RollupService.MAX_WORKER_THREADS);
+        assertThat(RollupService.getNumWorkerThreads(2, 45, false)).isEqualTo(2);
+        assertThat(RollupService.getNumWorkerThreads(2, 10, false)).isEqualTo(1);
+        assertThat(RollupService.getNumWorkerThreads(1, 10, false)).isEqualTo(1);
+        assertThat(RollupService.getNumWorkerThreads(4, 10, true)).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldPrioritizeStalestAgentRollups() {
+        // given
+        AgentRollup agentA = agentRollup("a");
+        AgentRollup agentB = agentRollup("g::b");
+        AgentRollup agentC = agentRollup("g::c");
+        AgentRollup agentD = agentRollup("d");
+        AgentRollup group = agentRollup("g::", agentB, agentC);
+        List<AgentRollup> agentRollups = ImmutableList.of(agentA, group, agentD);
+        Map<String, Long> oldestNeedsRollupCaptureTimes =
+                ImmutableMap.of("a", 3000L, "g::", 5000L, "g::c", 1000L);
+
+        // when
+        Map<String, Long> priorities =
+                RollupService.getPriorities(agentRollups, oldestNeedsRollupCaptureTimes);
+
+        // then
+        assertThat(priorities.get("g::")).isEqualTo(1000);
+        assertThat(priorities.get("g::b")).isEqualTo(Long.MAX_VALUE);
+        assertThat(priorities.get("d")).isEqualTo(Long.MAX_VALUE);
+        assertThat(RollupService.prioritize(agentRollups, priorities))
+                .containsExactly(group, agentA, agentD);
+        assertThat(RollupService.prioritize(group.children(), priorities))
+                .containsExactly(agentC, agentB);
+    }
+
+    private static AgentRollup agentRollup(String id, AgentRollup... children) {
+        return ImmutableAgentRollup.builder()
+                .id(id)
+                .display(id)
+                .lastDisplayPart(id)
+                .addChildren(children)
+                .build();
+    }
 }
@@ -44,6 +44,7 @@ public class GaugeValueDaoIT {
     private static Session session;
     private static ExecutorService asyncExecutor;
     private static AgentConfigDao agentConfigDao;
+    private static GaugeValueDaoImpl gaugeValueDaoImpl;
     private static GaugeValueDao gaugeValueDao;
 
     @BeforeClass
@@ -62,13 +63,15 @@ public class GaugeValueDaoIT {
         RoleDao roleDao = new RoleDao(session, clusterManager);
         ConfigRepositoryImpl configRepository = new ConfigRepositoryImpl(centralConfigDao,
                 agentConfigDao, userDao, roleDao, "");
+        gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository, clusterManager,
+                asyncExecutor, Clock.systemClock());
         gaugeValueDao = new GaugeValueDaoWithV09Support(ImmutableSet.of(), 0, Clock.systemClock(),
-                new GaugeValueDaoImpl(session, configRepository, clusterManager, asyncExecutor,
-                        Clock.systemClock()));
+                gaugeValueDaoImpl);
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        gaugeValueDaoImpl.close();
         asyncExecutor.shutdown();
         session.close();
         cluster.close();
@@ -82,6 +85,7 @@ public class GaugeValueDaoIT {
         gaugeValueDao.store("one", createData(60013));
         gaugeValueDao.store("one", createData(65009));
         gaugeValueDao.store("one", createData(360000));
+        gaugeValueDaoImpl.flush();
 
         // check non-rolled up data
         List<GaugeValue> gaugeValues =
@@ -113,6 +117,7 @@ public class GaugeValueDaoIT {
         gaugeValueDao.store("the parent::one", createData(60013));
         gaugeValueDao.store("the parent::one", createData(65009));
         gaugeValueDao.store("the parent::one", createData(360000));
+        gaugeValueDaoImpl.flush();
 
         // rollup
         // need to roll up children first, since gauge values initial roll up from children is
@@ -134,6 +139,7 @@ public class GaugeValueDaoIT {
         gaugeValueDao.store("the gp::the parent::one", createData(60013));
         gaugeValueDao.store("the gp::the parent::one", createData(65009));
         gaugeValueDao.store("the gp::the parent::one", createData(360000));
+        gaugeValueDaoImpl.flush();
 
         // rollup
         // need to roll up children first, since gauge values initial roll up from children is
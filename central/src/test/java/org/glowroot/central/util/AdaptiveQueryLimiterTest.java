@@ -0,0 +1,258 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.glowroot.central.util.AdaptiveQueryLimiter.QueryClass;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveQueryLimiterTest {
+
+    @Test
+    public void shouldBorrowCapacityButLeaveReservedPermits() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(8);
+        QueryClass readQueryClass = queryLimiter.addQueryClass(1, 2, 2);
+        QueryClass writeQueryClass = queryLimiter.addQueryClass(2, 8, 8);
+
+        // when
+        for (int i = 0; i < 7; i++) {
+            writeQueryClass.acquire("table" + i);
+        }
+
+        // then
+        assertThat(writeQueryClass.getAvailablePermits()).isEqualTo(0);
+        assertThat(readQueryClass.getAvailablePermits()).isEqualTo(1);
+        readQueryClass.acquire("table0");
+        assertThat(readQueryClass.getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotLimitConcurrencyPerTableWhenNoOtherTableIsWaiting() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(8);
+        QueryClass queryClass = queryLimiter.addQueryClass(8, 8, 8);
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            queryClass.acquire("hot");
+        }
+
+        // then
+        assertThat(queryClass.getAvailablePermits()).isEqualTo(0);
+        assertThat(queryClass.getQueueLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldLimitConcurrencyPerTableWhileOtherTableIsWaiting() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(8);
+        QueryClass queryClass = queryLimiter.addQueryClass(8, 8, 8);
+        for (int i = 0; i < 8; i++) {
+            queryClass.acquire("hot");
+        }
+        CountDownLatch otherAcquired = new CountDownLatch(1);
+        Thread otherThread = startAcquireThread(queryClass, "other", otherAcquired);
+        awaitQueueLength(queryClass, 1);
+        CountDownLatch hotAcquired = new CountDownLatch(1);
+        Thread hotThread = startAcquireThread(queryClass, "hot", hotAcquired);
+        awaitQueueLength(queryClass, 2);
+
+        // when
+        queryClass.release("hot");
+
+        // then
+        // the hot table is over its share while the other table is waiting
+        assertThat(otherAcquired.await(10, SECONDS)).isTrue();
+        assertThat(hotAcquired.await(100, MILLISECONDS)).isFalse();
+        // and is no longer capped once the other table is not waiting
+        queryClass.release("hot");
+        assertThat(hotAcquired.await(10, SECONDS)).isTrue();
+        otherThread.join();
+        hotThread.join();
+    }
+
+    @Test
+    public void shouldDecreaseLimitOncePerRoundTripWhenLatencyIncreases() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(100);
+        QueryClass queryClass = queryLimiter.addQueryClass(1, 1, 10);
+        for (int i = 0; i < 50; i++) {
+            queryClass.acquire(null);
+            queryClass.release(null, MILLISECONDS.toNanos(i), MILLISECONDS.toNanos(i + 1), true);
+        }
+
+        // when
+        queryClass.acquire(null);
+        queryClass.acquire(null);
+        queryClass.release(null, MILLISECONDS.toNanos(50), MILLISECONDS.toNanos(80), true);
+        queryClass.release(null, MILLISECONDS.toNanos(51), MILLISECONDS.toNanos(81), true);
+        int limitAfterFirstRoundTrip = queryClass.getLimit();
+        queryClass.acquire(null);
+        queryClass.release(null, MILLISECONDS.toNanos(81), MILLISECONDS.toNanos(111), false);
+
+        // then
+        assertThat(limitAfterFirstRoundTrip).isEqualTo(9);
+        assertThat(queryClass.getLimit()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldNotDecreaseLimitOnNormalLatencyVariance() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(100);
+        QueryClass queryClass = queryLimiter.addQueryClass(1, 1, 10);
+
+        // when
+        // every other query takes 3 times as long, which is well over the latency tolerance
+        // compared to the fastest query, but not compared to the typical query
+        for (int i = 0; i < 100; i++) {
+            queryClass.acquire(null);
+            long latencyMillis = i % 2 == 0 ? 1 : 3;
+            queryClass.release(null, MILLISECONDS.toNanos(i * 10),
+                    MILLISECONDS.toNanos(i * 10 + latencyMillis), true);
+        }
+
+        // then
+        assertThat(queryClass.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldIncreaseLimitWhenLimitIsReached() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(100);
+        QueryClass queryClass = queryLimiter.addQueryClass(1, 1, 2);
+        queryClass.acquire(null);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            while (queryClass.getAvailablePermits() > 0) {
+                queryClass.acquire(null);
+            }
+            queryClass.release(null, 0, MILLISECONDS.toNanos(1), true);
+        }
+
+        // then
+        assertThat(queryClass.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldTrackBaselineLatencyPerTable() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(100);
+        QueryClass queryClass = queryLimiter.addQueryClass(1, 1, 10);
+        queryClass.acquire("fast");
+        queryClass.release("fast", 0, MILLISECONDS.toNanos(1), true);
+
+        // when
+        // each of these is much slower than the fast table, but not than its own table
+        for (int i = 0; i < 10; i++) {
+            queryClass.acquire("slow");
+            queryClass.release("slow", MILLISECONDS.toNanos(i * 50),
+                    MILLISECONDS.toNanos(i * 50 + 50), true);
+        }
+
+        // then
+        assertThat(queryClass.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotDecreaseLimitBelowMinLimit() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(100);
+        QueryClass queryClass = queryLimiter.addQueryClass(2, 8, 10);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            queryClass.acquire(null);
+            queryClass.release(null, MILLISECONDS.toNanos(i * 10),
+                    MILLISECONDS.toNanos(i * 10 + 5), false);
+        }
+
+        // then
+        assertThat(queryClass.getLimit()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldNotExceedLimitUnderConcurrency() throws Exception {
+        // given
+        AdaptiveQueryLimiter queryLimiter = new AdaptiveQueryLimiter(100);
+        QueryClass queryClass = queryLimiter.addQueryClass(4, 4, 4);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 16; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 1000; j++) {
+                        queryClass.acquire("table" + (j % 2));
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        inFlight.decrementAndGet();
+                        queryClass.release("table" + (j % 2));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(SECONDS.toMillis(30));
+        }
+
+        // then
+        for (Thread thread : threads) {
+            assertThat(thread.isAlive()).isFalse();
+        }
+        assertThat(maxInFlight.get()).isLessThanOrEqualTo(4);
+        assertThat(queryClass.getAvailablePermits()).isEqualTo(4);
+        assertThat(queryClass.getQueueLength()).isEqualTo(0);
+    }
+
+    private static Thread startAcquireThread(QueryClass queryClass, String tableName,
+            CountDownLatch acquired) {
+        Thread thread = new Thread(() -> {
+            try {
+                queryClass.acquire(tableName);
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueLength(QueryClass queryClass, int queueLength)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (queryClass.getQueueLength() < queueLength && System.nanoTime() < deadline) {
+            MILLISECONDS.sleep(1);
+        }
+        assertThat(queryClass.getQueueLength()).isEqualTo(queueLength);
+    }
+}
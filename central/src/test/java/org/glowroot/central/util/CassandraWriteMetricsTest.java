@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.RepoAdmin.CassandraWriteTotals;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CassandraWriteMetricsTest {
+
+    private CassandraWriteMetrics cassandraWriteMetrics;
+
+    @Before
+    public void beforeEachTest() {
+        Session session = mock(Session.class, RETURNS_DEEP_STUBS);
+        KeyspaceMetadata keyspaceMetadata = mock(KeyspaceMetadata.class);
+        TableMetadata tableMetadata = mock(TableMetadata.class);
+        ColumnMetadata partitionKeyColumn = mock(ColumnMetadata.class);
+        when(partitionKeyColumn.getName()).thenReturn("agent_rollup_id");
+        when(tableMetadata.getPartitionKey()).thenReturn(ImmutableList.of(partitionKeyColumn));
+        when(keyspaceMetadata.getTable("gauge_name")).thenReturn(tableMetadata);
+        when(session.getCluster().getMetadata().getKeyspace("test")).thenReturn(keyspaceMetadata);
+        cassandraWriteMetrics = new CassandraWriteMetrics(session, "test");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        cassandraWriteMetrics.close();
+    }
+
+    @Test
+    public void shouldRecordRowsAndWriteRequests() throws Exception {
+        // given
+        BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchStatement.add(createGaugeNameStatement("a", "x"));
+        batchStatement.add(createGaugeNameStatement("a", "yy"));
+        batchStatement.add(createGaugeNameStatement("a", "zzz"));
+
+        // when
+        cassandraWriteMetrics.recordMetrics(batchStatement);
+        cassandraWriteMetrics.recordMetrics(createGaugeNameStatement("a", "wwww"));
+
+        // then
+        List<CassandraWriteTotals> perTable =
+                cassandraWriteMetrics.getCassandraDataWrittenPerTable(10);
+        assertThat(perTable).hasSize(1);
+        assertThat(perTable.get(0).display()).isEqualTo("gauge_name");
+        assertThat(perTable.get(0).rowsWritten()).isEqualTo(4);
+        assertThat(perTable.get(0).writeRequests()).isEqualTo(2);
+        // only the non partition key varchar column
+        assertThat(perTable.get(0).bytesWritten()).isEqualTo(10);
+        assertThat(perTable.get(0).bytesWrittenPerColumn()).containsEntry("gauge_name", 10L);
+        List<CassandraWriteTotals> perAgentRollup =
+                cassandraWriteMetrics.getCassandraDataWrittenPerAgentRollup("gauge_name", 10);
+        assertThat(perAgentRollup).hasSize(1);
+        assertThat(perAgentRollup.get(0).display()).isEqualTo("a");
+        assertThat(perAgentRollup.get(0).rowsWritten()).isEqualTo(4);
+        assertThat(perAgentRollup.get(0).writeRequests()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRecordWriteRequestAgainstFirstRecordedRowOfBatch() throws Exception {
+        // given
+        BoundStatement notPerAgentStatement = createBoundStatement("central_config", "key");
+        when(notPerAgentStatement.getString(0)).thenReturn("abc");
+        BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchStatement.add(notPerAgentStatement);
+        batchStatement.add(createGaugeNameStatement("a", "x"));
+        batchStatement.add(createGaugeNameStatement("a", "y"));
+
+        // when
+        cassandraWriteMetrics.recordMetrics(batchStatement);
+
+        // then
+        List<CassandraWriteTotals> perTable =
+                cassandraWriteMetrics.getCassandraDataWrittenPerTable(10);
+        assertThat(perTable).hasSize(1);
+        assertThat(perTable.get(0).rowsWritten()).isEqualTo(2);
+        assertThat(perTable.get(0).writeRequests()).isEqualTo(1);
+    }
+
+    private static BoundStatement createGaugeNameStatement(String agentRollupId,
+            String gaugeName) throws Exception {
+        BoundStatement boundStatement = createBoundStatement("gauge_name", "agent_rollup_id",
+                "capture_time", "gauge_name");
+        when(boundStatement.getString(0)).thenReturn(agentRollupId);
+        when(boundStatement.getString(2)).thenReturn(gaugeName);
+        return boundStatement;
+    }
+
+    private static BoundStatement createBoundStatement(String tableName, String... columnNames)
+            throws Exception {
+        ImmutableList.Builder<ColumnDefinitions.Definition> definitions = ImmutableList.builder();
+        for (String columnName : columnNames) {
+            definitions.add(newDefinition(tableName, columnName,
+                    columnName.equals("capture_time") ? DataType.timestamp() : DataType.varchar()));
+        }
+        ColumnDefinitions variables = mock(ColumnDefinitions.class);
+        when(variables.asList()).thenReturn(definitions.build());
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.getVariables()).thenReturn(variables);
+        BoundStatement boundStatement = mock(BoundStatement.class);
+        when(boundStatement.preparedStatement()).thenReturn(preparedStatement);
+        return boundStatement;
+    }
+
+    private static ColumnDefinitions.Definition newDefinition(String tableName, String columnName,
+            DataType dataType) throws Exception {
+        // the constructor is package private, and the class cannot be mocked since its equals()
+        // method is final
+        Constructor<ColumnDefinitions.Definition> constructor =
+                ColumnDefinitions.Definition.class.getDeclaredConstructor(String.class,
+                        String.class, String.class, DataType.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance("test", tableName, columnName, dataType);
+    }
+}
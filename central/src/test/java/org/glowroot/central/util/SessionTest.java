@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Statement;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SessionTest {
+
+    @Test
+    public void shouldGroupIntoBatchesByPartition() {
+        // given
+        List<Statement> statements = new ArrayList<>();
+        statements.add(createStatement("a"));
+        statements.add(createStatement("b"));
+        statements.add(createStatement("a"));
+        statements.add(createStatement("c"));
+        statements.add(createStatement("b"));
+
+        // when
+        List<List<Statement>> batches = groupIntoUnloggedBatches(statements);
+
+        // then
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(0)).containsExactly(statements.get(0), statements.get(2));
+        assertThat(batches.get(1)).containsExactly(statements.get(1), statements.get(4));
+        assertThat(batches.get(2)).containsExactly(statements.get(3));
+    }
+
+    @Test
+    public void shouldSplitLargePartitionIntoMultipleBatches() {
+        // given
+        List<Statement> statements = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            statements.add(createStatement("a"));
+        }
+        statements.add(createStatement("b"));
+
+        // when
+        List<List<Statement>> batches = groupIntoUnloggedBatches(statements);
+
+        // then
+        assertThat(batches).hasSize(4);
+        assertThat(batches.get(0)).hasSize(50);
+        assertThat(batches.get(1)).hasSize(50);
+        assertThat(batches.get(2)).hasSize(20);
+        assertThat(batches.get(3)).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotBatchStatementsWithUnknownPartition() {
+        // given
+        List<Statement> statements = new ArrayList<>();
+        statements.add(createStatement(null));
+        statements.add(createStatement(null));
+        statements.add(createStatement("a"));
+
+        // when
+        List<List<Statement>> batches = groupIntoUnloggedBatches(statements);
+
+        // then
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(0)).containsExactly(statements.get(0));
+        assertThat(batches.get(1)).containsExactly(statements.get(1));
+        assertThat(batches.get(2)).containsExactly(statements.get(2));
+    }
+
+    private static List<List<Statement>> groupIntoUnloggedBatches(List<Statement> statements) {
+        return Session.groupIntoUnloggedBatches(statements, ProtocolVersion.V4,
+                CodecRegistry.DEFAULT_INSTANCE);
+    }
+
+    private static Statement createStatement(@Nullable String routingKey) {
+        BoundStatement boundStatement = mock(BoundStatement.class);
+        // a new buffer each time, to make sure grouping is by content
+        ByteBuffer routingKeyBytes =
+                routingKey == null ? null : ByteBuffer.wrap(routingKey.getBytes(UTF_8));
+        when(boundStatement.getRoutingKey(any(ProtocolVersion.class), any(CodecRegistry.class)))
+                .thenReturn(routingKeyBytes);
+        return boundStatement;
+    }
+}
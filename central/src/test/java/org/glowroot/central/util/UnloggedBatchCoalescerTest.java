@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.RepoAdmin.CassandraWriteTotals;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UnloggedBatchCoalescerTest {
+
+    private CassandraWriteMetrics cassandraWriteMetrics;
+    private Session session;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        com.datastax.driver.core.Session wrappedSession =
+                mock(com.datastax.driver.core.Session.class, RETURNS_DEEP_STUBS);
+        KeyspaceMetadata keyspaceMetadata = mock(KeyspaceMetadata.class);
+        TableMetadata tableMetadata = mock(TableMetadata.class);
+        ColumnMetadata agentRollupColumn = mock(ColumnMetadata.class);
+        when(agentRollupColumn.getName()).thenReturn("agent_rollup");
+        ColumnMetadata gaugeNameColumn = mock(ColumnMetadata.class);
+        when(gaugeNameColumn.getName()).thenReturn("gauge_name");
+        when(tableMetadata.getPartitionKey())
+                .thenReturn(ImmutableList.of(agentRollupColumn, gaugeNameColumn));
+        when(keyspaceMetadata.getTable("gauge_value_rollup_0")).thenReturn(tableMetadata);
+        when(wrappedSession.getCluster().getMetadata().getKeyspace("test"))
+                .thenReturn(keyspaceMetadata);
+        cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, "test");
+
+        session = mock(Session.class);
+        when(session.getRoutingKey(any(Statement.class))).thenAnswer(invocation -> {
+            BoundStatement boundStatement = invocation.getArgument(0);
+            String partitionKey = boundStatement.getString(0) + ":" + boundStatement.getString(1);
+            return ByteBuffer.wrap(partitionKey.getBytes(UTF_8));
+        });
+        when(session.writeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            cassandraWriteMetrics.recordMetrics(invocation.getArgument(0));
+            return Futures.immediateFuture(null);
+        });
+        doCallRealMethod().when(session).writeUnloggedBatchAsync(anyList());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        cassandraWriteMetrics.close();
+    }
+
+    @Test
+    public void shouldWriteFewerRequestsForGaugeValues() throws Exception {
+        // given
+        UnloggedBatchCoalescer coalescer = new UnloggedBatchCoalescer(session, 0, "test");
+        UnloggedBatchCoalescer coalescerWithWindow =
+                new UnloggedBatchCoalescer(session, HOURS.toMillis(1), "test");
+
+        // when
+        store(coalescer, "a");
+        store(coalescerWithWindow, "b");
+        coalescerWithWindow.flush();
+
+        // then
+        List<CassandraWriteTotals> perAgentRollup = cassandraWriteMetrics
+                .getCassandraDataWrittenPerAgentRollup("gauge_value_rollup_0", 10);
+        assertThat(perAgentRollup).hasSize(2);
+        CassandraWriteTotals withoutWindow = getTotals(perAgentRollup, "a");
+        CassandraWriteTotals withWindow = getTotals(perAgentRollup, "b");
+        // 6 gauge collections (30 seconds at the default 5 second interval) of 40 gauges
+        assertThat(withoutWindow.rowsWritten()).isEqualTo(240);
+        assertThat(withoutWindow.writeRequests()).isEqualTo(240);
+        assertThat(withWindow.rowsWritten()).isEqualTo(240);
+        assertThat(withWindow.writeRequests()).isEqualTo(40);
+
+        coalescer.close();
+        coalescerWithWindow.close();
+    }
+
+    @Test
+    public void shouldWriteOutPendingBatchWhenWindowElapses() throws Exception {
+        // given
+        UnloggedBatchCoalescer coalescer = new UnloggedBatchCoalescer(session, 100, "test");
+
+        // when
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        futures.addAll(coalescer.writeAsync(
+                ImmutableList.of(createGaugeValueStatement("a", "gauge", 5000))));
+        futures.addAll(coalescer.writeAsync(
+                ImmutableList.of(createGaugeValueStatement("a", "gauge", 10000))));
+
+        // then
+        Futures.allAsList(futures).get(10, SECONDS);
+        List<CassandraWriteTotals> perTable =
+                cassandraWriteMetrics.getCassandraDataWrittenPerTable(10);
+        assertThat(perTable).hasSize(1);
+        assertThat(perTable.get(0).rowsWritten()).isEqualTo(2);
+        assertThat(perTable.get(0).writeRequests()).isEqualTo(1);
+
+        coalescer.close();
+    }
+
+    @Test
+    public void shouldWriteOutFullBatchWithoutWaitingForWindow() throws Exception {
+        // given
+        UnloggedBatchCoalescer coalescer =
+                new UnloggedBatchCoalescer(session, HOURS.toMillis(1), "test");
+
+        // when
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < Session.MAX_UNLOGGED_BATCH_SIZE + 1; i++) {
+            futures.addAll(coalescer.writeAsync(
+                    ImmutableList.of(createGaugeValueStatement("a", "gauge", i * 5000))));
+        }
+
+        // then
+        for (int i = 0; i < Session.MAX_UNLOGGED_BATCH_SIZE; i++) {
+            assertThat(futures.get(i).isDone()).isTrue();
+        }
+        assertThat(futures.get(Session.MAX_UNLOGGED_BATCH_SIZE).isDone()).isFalse();
+        List<CassandraWriteTotals> perTable =
+                cassandraWriteMetrics.getCassandraDataWrittenPerTable(10);
+        assertThat(perTable).hasSize(1);
+        assertThat(perTable.get(0).rowsWritten()).isEqualTo(Session.MAX_UNLOGGED_BATCH_SIZE);
+        assertThat(perTable.get(0).writeRequests()).isEqualTo(1);
+
+        coalescer.close();
+    }
+
+    // same as GaugeValueDaoImpl.store(), one statement per gauge for a single capture time
+    private static void store(UnloggedBatchCoalescer coalescer, String agentId)
+            throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            List<Statement> statements = new ArrayList<>();
+            for (int j = 0; j < 40; j++) {
+                statements.add(createGaugeValueStatement(agentId, "gauge" + j, i * 5000));
+            }
+            coalescer.writeAsync(statements);
+        }
+    }
+
+    private static CassandraWriteTotals getTotals(List<CassandraWriteTotals> totals,
+            String display) {
+        for (CassandraWriteTotals total : totals) {
+            if (total.display().equals(display)) {
+                return total;
+            }
+        }
+        throw new AssertionError("Totals not found: " + display);
+    }
+
+    private static BoundStatement createGaugeValueStatement(String agentId, String gaugeName,
+            long captureTime) throws Exception {
+        ColumnDefinitions variables = mock(ColumnDefinitions.class);
+        when(variables.asList()).thenReturn(ImmutableList.of(
+                newDefinition("agent_rollup", DataType.varchar()),
+                newDefinition("gauge_name", DataType.varchar()),
+                newDefinition("capture_time", DataType.timestamp()),
+                newDefinition("value", DataType.cdouble()),
+                newDefinition("weight", DataType.bigint())));
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.getVariables()).thenReturn(variables);
+        BoundStatement boundStatement = mock(BoundStatement.class);
+        when(boundStatement.preparedStatement()).thenReturn(preparedStatement);
+        when(boundStatement.getString(0)).thenReturn(agentId);
+        when(boundStatement.getString(1)).thenReturn(gaugeName);
+        when(boundStatement.getTimestamp(2)).thenReturn(new Date(captureTime));
+        return boundStatement;
+    }
+
+    private static ColumnDefinitions.Definition newDefinition(String columnName,
+            DataType dataType) throws Exception {
+        // the constructor is package private, and the class cannot be mocked since its equals()
+        // method is final
+        Constructor<ColumnDefinitions.Definition> constructor =
+                ColumnDefinitions.Definition.class.getDeclaredConstructor(String.class,
+                        String.class, String.class, DataType.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance("test", "gauge_value_rollup_0", columnName, dataType);
+    }
+}
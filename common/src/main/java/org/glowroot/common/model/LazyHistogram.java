@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,9 +30,16 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    // lower precision trades percentile accuracy for much smaller histograms (each additional
+    // significant digit multiplies the counts array size by roughly 10)
+    private static final int HISTOGRAM_SIGNIFICANT_DIGITS =
+            Math.max(0, Math.min(5, Integer.getInteger("glowroot.histogram.significantDigits", 5)));
     private static final int MAX_VALUES = 1024;
 
+    // see org.HdrHistogram.AbstractHistogram encodeIntoByteBuffer()
+    private static final int V2_ENCODING_COOKIE = 0x1c849313;
+    private static final int ENCODING_HEADER_SIZE = 40;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
@@ -98,7 +105,10 @@ public class LazyHistogram {
             if (histogram == null) {
                 convertValuesToHistogram();
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            ByteBuffer buffer = encodedBytes.asReadOnlyByteBuffer();
+            if (!mergeEncoded(buffer, histogram)) {
+                histogram.add(Histogram.decodeFromByteBuffer(buffer, 0));
+            }
         }
     }
 
@@ -162,8 +172,13 @@ public class LazyHistogram {
 
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
+        long maxValue = 0;
+        for (int i = 0; i < size; i++) {
+            maxValue = Math.max(maxValue, values[i]);
+        }
         // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        // and pre-sizing to the largest known value so the counts array is only allocated once
+        histogram = new Histogram(1000, Math.max(2000, maxValue), HISTOGRAM_SIGNIFICANT_DIGITS);
         histogram.setAutoResize(true);
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
@@ -176,6 +191,103 @@ public class LazyHistogram {
         sorted = true;
     }
 
+    // adds the counts of an encoded histogram directly into the target histogram, without
+    // decoding into an intermediate histogram (which at 5 significant digits allocates a counts
+    // array of several megabytes on every merge)
+    //
+    // returns false (without moving the buffer position) if the encoding is not the uncompressed
+    // V2 encoding produced by encodeIntoByteBuffer(), in which case the caller must fall back to
+    // Histogram.decodeFromByteBuffer()
+    @VisibleForTesting
+    static boolean mergeEncoded(ByteBuffer buffer, Histogram target) {
+        int start = buffer.position();
+        if (buffer.remaining() < ENCODING_HEADER_SIZE) {
+            return false;
+        }
+        int cookie = buffer.getInt(start);
+        int payloadLength = buffer.getInt(start + 4);
+        int normalizingIndexOffset = buffer.getInt(start + 8);
+        int significantDigits = buffer.getInt(start + 12);
+        long lowestDiscernibleValue = buffer.getLong(start + 16);
+        if (cookie != V2_ENCODING_COOKIE || normalizingIndexOffset != 0
+                || significantDigits < 0 || significantDigits > 5 || lowestDiscernibleValue < 1
+                || payloadLength < 0 || buffer.remaining() < ENCODING_HEADER_SIZE + payloadLength) {
+            return false;
+        }
+        int unitMagnitude = (int) (Math.log(lowestDiscernibleValue) / Math.log(2));
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math
+                .ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        int subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        int payloadStart = start + ENCODING_HEADER_SIZE;
+        int payloadEnd = payloadStart + payloadLength;
+        // first pass only finds the largest value, so that the target histogram auto-resizes (at
+        // most) once instead of once per bucket
+        long maxValue = 0;
+        int index = 0;
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.position(I)Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).position(payloadStart);
+        while (buffer.position() < payloadEnd) {
+            long count = readZigZagLong(buffer);
+            if (count < 0) {
+                index += (int) -count;
+            } else {
+                if (count > 0) {
+                    maxValue = valueFromIndex(index, subBucketHalfCountMagnitude, unitMagnitude);
+                }
+                index++;
+            }
+        }
+        if (maxValue > 0) {
+            target.recordValueWithCount(maxValue, 0);
+        }
+        index = 0;
+        ((Buffer) buffer).position(payloadStart);
+        while (buffer.position() < payloadEnd) {
+            long count = readZigZagLong(buffer);
+            if (count < 0) {
+                index += (int) -count;
+            } else {
+                if (count > 0) {
+                    target.recordValueWithCount(
+                            valueFromIndex(index, subBucketHalfCountMagnitude, unitMagnitude),
+                            count);
+                }
+                index++;
+            }
+        }
+        return true;
+    }
+
+    // see org.HdrHistogram.AbstractHistogram valueFromIndex()
+    private static long valueFromIndex(int index, int subBucketHalfCountMagnitude,
+            int unitMagnitude) {
+        int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << (bucketIndex + unitMagnitude);
+    }
+
+    // see org.HdrHistogram.ZigZagEncoding getLong()
+    private static long readZigZagLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            long v = buffer.get();
+            value |= (v & 0x7F) << (7 * i);
+            if ((v & 0x80) == 0) {
+                return (value >>> 1) ^ (-(value & 1));
+            }
+        }
+        value |= ((long) buffer.get()) << 56;
+        return (value >>> 1) ^ (-(value & 1));
+    }
+
     public static class ScratchBuffer {
 
         private @MonotonicNonNull ByteBuffer buffer;
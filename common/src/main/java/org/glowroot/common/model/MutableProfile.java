@@ -16,6 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Iterator;
@@ -34,6 +35,9 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +51,32 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    private static final int PACKAGE_NAME_TAG =
+            makeLengthDelimitedTag(Profile.PACKAGE_NAME_FIELD_NUMBER);
+    private static final int CLASS_NAME_TAG =
+            makeLengthDelimitedTag(Profile.CLASS_NAME_FIELD_NUMBER);
+    private static final int METHOD_NAME_TAG =
+            makeLengthDelimitedTag(Profile.METHOD_NAME_FIELD_NUMBER);
+    private static final int FILE_NAME_TAG = makeLengthDelimitedTag(Profile.FILE_NAME_FIELD_NUMBER);
+    private static final int NODE_TAG = makeLengthDelimitedTag(Profile.NODE_FIELD_NUMBER);
+
+    private static final int NODE_DEPTH_TAG =
+            makeVarintTag(Profile.ProfileNode.DEPTH_FIELD_NUMBER);
+    private static final int NODE_PACKAGE_NAME_INDEX_TAG =
+            makeVarintTag(Profile.ProfileNode.PACKAGE_NAME_INDEX_FIELD_NUMBER);
+    private static final int NODE_CLASS_NAME_INDEX_TAG =
+            makeVarintTag(Profile.ProfileNode.CLASS_NAME_INDEX_FIELD_NUMBER);
+    private static final int NODE_METHOD_NAME_INDEX_TAG =
+            makeVarintTag(Profile.ProfileNode.METHOD_NAME_INDEX_FIELD_NUMBER);
+    private static final int NODE_FILE_NAME_INDEX_TAG =
+            makeVarintTag(Profile.ProfileNode.FILE_NAME_INDEX_FIELD_NUMBER);
+    private static final int NODE_LINE_NUMBER_TAG =
+            makeVarintTag(Profile.ProfileNode.LINE_NUMBER_FIELD_NUMBER);
+    private static final int NODE_LEAF_THREAD_STATE_TAG =
+            makeVarintTag(Profile.ProfileNode.LEAF_THREAD_STATE_FIELD_NUMBER);
+    private static final int NODE_SAMPLE_COUNT_TAG =
+            makeVarintTag(Profile.ProfileNode.SAMPLE_COUNT_FIELD_NUMBER);
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -70,8 +100,61 @@ public class MutableProfile {
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        Merger merger = new Merger(
+                makeIndexMapping(profile.getPackageNameList(), packageNameIndexes, packageNames),
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames),
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames),
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames));
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            merger.merge(node.getDepth(), node.getPackageNameIndex(), node.getClassNameIndex(),
+                    node.getMethodNameIndex(), node.getFileNameIndex(), node.getLineNumber(),
+                    node.getLeafThreadState(), node.getSampleCount());
+        }
+    }
+
+    // merges a serialized profile directly, without parsing it into a Profile first, which avoids
+    // creating a Profile.ProfileNode for every node (this is used by central rollups, which merge
+    // many large serialized profiles into one)
+    public void merge(ByteBuffer serializedProfile) throws IOException {
+        // protobuf serializes fields in field number order (so names before nodes), but parsers
+        // must accept fields in any order, so the names are read in a first pass (skipping the
+        // nodes), and then the nodes are merged in a second pass (skipping the names)
+        List<Integer> packageNameIndexMapping = Lists.newArrayList();
+        List<Integer> classNameIndexMapping = Lists.newArrayList();
+        List<Integer> methodNameIndexMapping = Lists.newArrayList();
+        List<Integer> fileNameIndexMapping = Lists.newArrayList();
+        CodedInputStream input = CodedInputStream.newInstance(serializedProfile.duplicate());
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == PACKAGE_NAME_TAG) {
+                packageNameIndexMapping.add(getNameIndex(input.readStringRequireUtf8(),
+                        packageNameIndexes, packageNames));
+            } else if (tag == CLASS_NAME_TAG) {
+                classNameIndexMapping.add(getNameIndex(input.readStringRequireUtf8(),
+                        classNameIndexes, classNames));
+            } else if (tag == METHOD_NAME_TAG) {
+                methodNameIndexMapping.add(getNameIndex(input.readStringRequireUtf8(),
+                        methodNameIndexes, methodNames));
+            } else if (tag == FILE_NAME_TAG) {
+                fileNameIndexMapping.add(getNameIndex(input.readStringRequireUtf8(),
+                        fileNameIndexes, fileNames));
+            } else {
+                input.skipField(tag);
+            }
+        }
+        Merger merger = new Merger(Ints.toArray(packageNameIndexMapping),
+                Ints.toArray(classNameIndexMapping), Ints.toArray(methodNameIndexMapping),
+                Ints.toArray(fileNameIndexMapping));
+        input = CodedInputStream.newInstance(serializedProfile.duplicate());
+        while ((tag = input.readTag()) != 0) {
+            if (tag == NODE_TAG) {
+                int oldLimit = input.pushLimit(input.readRawVarint32());
+                mergeNode(input, merger);
+                input.popLimit(oldLimit);
+            } else {
+                input.skipField(tag);
+            }
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
@@ -103,7 +186,7 @@ public class MutableProfile {
                     fileNameIndexes, fileNames);
             int lineNumber = stackTraceElement.getLineNumber();
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+                    i.hasNext() ? Profile.LeafThreadState.NONE : getLeafThreadState(threadState);
 
             ProfileNode node = null;
             if (lookingForMatch) {
@@ -265,7 +348,7 @@ public class MutableProfile {
         return index;
     }
 
-    private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
+    public static Profile.LeafThreadState getLeafThreadState(Thread. /*@Nullable*/ State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
         }
@@ -300,6 +383,53 @@ public class MutableProfile {
                 && packageNameIndex == profileNode.packageNameIndex;
     }
 
+    private static void mergeNode(CodedInputStream input, Merger merger) throws IOException {
+        int depth = 0;
+        int packageNameIndex = 0;
+        int classNameIndex = 0;
+        int methodNameIndex = 0;
+        int fileNameIndex = 0;
+        int lineNumber = 0;
+        Profile.LeafThreadState leafThreadState = Profile.LeafThreadState.NONE;
+        long sampleCount = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == NODE_DEPTH_TAG) {
+                depth = input.readInt32();
+            } else if (tag == NODE_PACKAGE_NAME_INDEX_TAG) {
+                packageNameIndex = input.readInt32();
+            } else if (tag == NODE_CLASS_NAME_INDEX_TAG) {
+                classNameIndex = input.readInt32();
+            } else if (tag == NODE_METHOD_NAME_INDEX_TAG) {
+                methodNameIndex = input.readInt32();
+            } else if (tag == NODE_FILE_NAME_INDEX_TAG) {
+                fileNameIndex = input.readInt32();
+            } else if (tag == NODE_LINE_NUMBER_TAG) {
+                lineNumber = input.readSInt32();
+            } else if (tag == NODE_LEAF_THREAD_STATE_TAG) {
+                leafThreadState = Profile.LeafThreadState.forNumber(input.readEnum());
+                if (leafThreadState == null) {
+                    // same as Profile.ProfileNode.getLeafThreadState()
+                    leafThreadState = Profile.LeafThreadState.UNRECOGNIZED;
+                }
+            } else if (tag == NODE_SAMPLE_COUNT_TAG) {
+                sampleCount = input.readInt64();
+            } else {
+                input.skipField(tag);
+            }
+        }
+        merger.merge(depth, packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadState, sampleCount);
+    }
+
+    private static int makeLengthDelimitedTag(int fieldNumber) {
+        return fieldNumber << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    private static int makeVarintTag(int fieldNumber) {
+        return fieldNumber << 3 | WireFormat.WIRETYPE_VARINT;
+    }
+
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -379,68 +509,55 @@ public class MutableProfile {
         private final int[] fileNameIndexMapping;
 
         private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
+        private @Nullable ProfileNode lastDestinationNode;
+
+        private Merger(int[] packageNameIndexMapping, int[] classNameIndexMapping,
+                int[] methodNameIndexMapping, int[] fileNameIndexMapping) {
+            this.packageNameIndexMapping = packageNameIndexMapping;
+            this.classNameIndexMapping = classNameIndexMapping;
+            this.methodNameIndexMapping = methodNameIndexMapping;
+            this.fileNameIndexMapping = fileNameIndexMapping;
+            destinationStack.push(rootNodes);
+        }
+
+        // nodes must be merged in the same (pre-order depth-first) order as they are in the
+        // to be merged profile
+        private void merge(int depth, int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber,
+                Profile.LeafThreadState leafThreadState, long sampleCount) {
+            int destinationDepth = destinationStack.size() - 1;
+            if (depth > destinationDepth && lastDestinationNode != null) {
+                destinationStack.push(lastDestinationNode.childNodes);
+            } else {
+                for (int j = 0; j < destinationDepth - depth; j++) {
                     // TODO optimize: faster way to pop multiple elements at once
                     destinationStack.pop();
                 }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
-                }
             }
+            lastDestinationNode = mergeOne(packageNameIndexMapping[packageNameIndex],
+                    classNameIndexMapping[classNameIndex], methodNameIndexMapping[methodNameIndex],
+                    fileNameIndexMapping[fileNameIndex], lineNumber, leafThreadState, sampleCount,
+                    destinationStack.getFirst());
         }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
+        private ProfileNode mergeOne(int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber,
+                Profile.LeafThreadState leafThreadState, long sampleCount,
                 List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
             for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
+                if (isMatch(destinationNode, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState)) {
+                    destinationNode.sampleCount += sampleCount;
                     return destinationNode;
                 }
             }
             // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
+            ProfileNode destinationNode = new ProfileNode(packageNameIndex, classNameIndex,
+                    methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
             destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
+            destinationNode.sampleCount += sampleCount;
             return destinationNode;
         }
-
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
     }
 
     // using Traverser to avoid StackOverflowError caused by a recursive algorithm
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,9 @@
  */
 package org.glowroot.common.model;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 public class ProfileCollector {
@@ -26,6 +29,10 @@ public class ProfileCollector {
         this.profile.merge(profile);
     }
 
+    public void mergeProfile(ByteBuffer serializedProfile) throws IOException {
+        profile.merge(serializedProfile);
+    }
+
     public void updateLastCaptureTime(long captureTime) {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
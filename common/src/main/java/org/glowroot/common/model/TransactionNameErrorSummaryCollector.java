@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -59,7 +59,7 @@ public class TransactionNameErrorSummaryCollector {
         MutableTransactionNameErrorSummary mtes =
                 transactionNameErrorSummaries.get(transactionName);
         if (mtes == null) {
-            mtes = new MutableTransactionNameErrorSummary();
+            mtes = new MutableTransactionNameErrorSummary(transactionName);
             transactionNameErrorSummaries.put(transactionName, mtes);
         }
         mtes.errorCount += errorCount;
@@ -73,39 +73,55 @@ public class TransactionNameErrorSummaryCollector {
 
     public Result<TransactionNameErrorSummary> getResult(ErrorSummarySortOrder sortOrder,
             int limit) {
+        // select the top summaries directly from the mutable summaries, instead of building and
+        // fully sorting an immutable summary for every transaction name
+        List<MutableTransactionNameErrorSummary> topSummaries =
+                getOrdering(sortOrder).leastOf(transactionNameErrorSummaries.values(), limit);
         List<TransactionNameErrorSummary> summaries = Lists.newArrayList();
-        for (Map.Entry<String, MutableTransactionNameErrorSummary> entry : transactionNameErrorSummaries
-                .entrySet()) {
-            summaries.add(ImmutableTransactionNameErrorSummary.builder()
-                    .transactionName(entry.getKey())
-                    .errorCount(entry.getValue().errorCount)
-                    .transactionCount(entry.getValue().transactionCount)
-                    .build());
-        }
-        summaries = sortTransactionNameErrorSummaries(summaries, sortOrder);
-        if (summaries.size() > limit) {
-            return new Result<TransactionNameErrorSummary>(summaries.subList(0, limit), true);
-        } else {
-            return new Result<TransactionNameErrorSummary>(summaries, false);
+        for (MutableTransactionNameErrorSummary topSummary : topSummaries) {
+            summaries.add(ImmutableTransactionNameErrorSummary.copyOf(topSummary));
         }
+        return new Result<TransactionNameErrorSummary>(summaries,
+                transactionNameErrorSummaries.size() > limit);
     }
 
-    private static List<TransactionNameErrorSummary> sortTransactionNameErrorSummaries(
-            Iterable<TransactionNameErrorSummary> errorSummaries,
+    private static Ordering<TransactionNameErrorSummary> getOrdering(
             ErrorSummarySortOrder sortOrder) {
         switch (sortOrder) {
             case ERROR_COUNT:
-                return orderingByErrorCountDesc.immutableSortedCopy(errorSummaries);
+                return orderingByErrorCountDesc;
             case ERROR_RATE:
-                return orderingByErrorRateDesc.immutableSortedCopy(errorSummaries);
+                return orderingByErrorRateDesc;
             default:
                 throw new AssertionError("Unexpected sort order: " + sortOrder);
         }
     }
 
-    private static class MutableTransactionNameErrorSummary {
+    private static class MutableTransactionNameErrorSummary
+            implements TransactionNameErrorSummary {
+
+        private final String transactionName;
         private long errorCount;
         private long transactionCount;
+
+        private MutableTransactionNameErrorSummary(String transactionName) {
+            this.transactionName = transactionName;
+        }
+
+        @Override
+        public String transactionName() {
+            return transactionName;
+        }
+
+        @Override
+        public long errorCount() {
+            return errorCount;
+        }
+
+        @Override
+        public long transactionCount() {
+            return transactionCount;
+        }
     }
 
     public enum ErrorSummarySortOrder {
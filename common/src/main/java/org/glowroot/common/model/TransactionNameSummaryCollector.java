@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -61,7 +61,7 @@ public class TransactionNameSummaryCollector {
             long captureTime) {
         MutableTransactionNameSummary mts = transactionNameSummaries.get(transactionName);
         if (mts == null) {
-            mts = new MutableTransactionNameSummary();
+            mts = new MutableTransactionNameSummary(transactionName);
             transactionNameSummaries.put(transactionName, mts);
         }
         mts.totalDurationNanos += totalDurationNanos;
@@ -74,32 +74,27 @@ public class TransactionNameSummaryCollector {
     }
 
     public Result<TransactionNameSummary> getResult(SummarySortOrder sortOrder, int limit) {
+        // select the top summaries directly from the mutable summaries, instead of building and
+        // fully sorting an immutable summary for every transaction name, since there can be a very
+        // large number of transaction names (e.g. when transaction naming is not normalized)
+        List<MutableTransactionNameSummary> topSummaries =
+                getOrdering(sortOrder).leastOf(transactionNameSummaries.values(), limit);
         List<TransactionNameSummary> summaries = Lists.newArrayList();
-        for (Map.Entry<String, MutableTransactionNameSummary> entry : transactionNameSummaries
-                .entrySet()) {
-            summaries.add(ImmutableTransactionNameSummary.builder()
-                    .transactionName(entry.getKey())
-                    .totalDurationNanos(entry.getValue().totalDurationNanos)
-                    .transactionCount(entry.getValue().transactionCount)
-                    .build());
-        }
-        summaries = sortTransactionNameSummaries(summaries, sortOrder);
-        if (summaries.size() > limit) {
-            return new Result<TransactionNameSummary>(summaries.subList(0, limit), true);
-        } else {
-            return new Result<TransactionNameSummary>(summaries, false);
+        for (MutableTransactionNameSummary topSummary : topSummaries) {
+            summaries.add(ImmutableTransactionNameSummary.copyOf(topSummary));
         }
+        return new Result<TransactionNameSummary>(summaries,
+                transactionNameSummaries.size() > limit);
     }
 
-    private static List<TransactionNameSummary> sortTransactionNameSummaries(
-            Iterable<TransactionNameSummary> transactionNameSummaries, SummarySortOrder sortOrder) {
+    private static Ordering<TransactionNameSummary> getOrdering(SummarySortOrder sortOrder) {
         switch (sortOrder) {
             case TOTAL_TIME:
-                return orderingByTotalTimeDesc.immutableSortedCopy(transactionNameSummaries);
+                return orderingByTotalTimeDesc;
             case AVERAGE_TIME:
-                return orderingByAverageTimeDesc.immutableSortedCopy(transactionNameSummaries);
+                return orderingByAverageTimeDesc;
             case THROUGHPUT:
-                return orderingByTransactionCountDesc.immutableSortedCopy(transactionNameSummaries);
+                return orderingByTransactionCountDesc;
             default:
                 throw new AssertionError("Unexpected sort order: " + sortOrder);
         }
@@ -117,8 +112,29 @@ public class TransactionNameSummaryCollector {
         long transactionCount();
     }
 
-    private static class MutableTransactionNameSummary {
+    private static class MutableTransactionNameSummary implements TransactionNameSummary {
+
+        private final String transactionName;
         private double totalDurationNanos;
         private long transactionCount;
+
+        private MutableTransactionNameSummary(String transactionName) {
+            this.transactionName = transactionName;
+        }
+
+        @Override
+        public String transactionName() {
+            return transactionName;
+        }
+
+        @Override
+        public double totalDurationNanos() {
+            return totalDurationNanos;
+        }
+
+        @Override
+        public long transactionCount() {
+            return transactionCount;
+        }
     }
 }
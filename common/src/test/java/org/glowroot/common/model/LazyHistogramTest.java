@@ -15,6 +15,9 @@
  */
 package org.glowroot.common.model;
 
+import java.nio.ByteBuffer;
+
+import org.HdrHistogram.Histogram;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +81,53 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldMergeEncodedSameAsDecodeAndAdd() {
+        for (int significantDigits = 0; significantDigits <= 5; significantDigits++) {
+            shouldMergeEncodedSameAsDecodeAndAdd(1000, significantDigits);
+            shouldMergeEncodedSameAsDecodeAndAdd(1, significantDigits);
+        }
+    }
+
+    @Test
+    public void shouldNotMergeUnrecognizedEncoding() {
+        // given
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(0, 0x1c849314);
+        Histogram target = new Histogram(1000, 2000, 5);
+        // when
+        boolean merged = LazyHistogram.mergeEncoded(buffer, target);
+        // then
+        assertThat(merged).isFalse();
+        assertThat(buffer.position()).isEqualTo(0);
+        assertThat(target.getTotalCount()).isEqualTo(0);
+    }
+
+    private void shouldMergeEncodedSameAsDecodeAndAdd(long lowestDiscernibleValue,
+            int significantDigits) {
+        // given
+        Histogram source = new Histogram(lowestDiscernibleValue, 2 * lowestDiscernibleValue,
+                significantDigits);
+        source.setAutoResize(true);
+        for (long i = 1; i < 100000000000L; i = i * 3 + 7) {
+            source.recordValueWithCount(i, i % 13 + 1);
+        }
+        source.recordValueWithCount(Long.MAX_VALUE / 4, 12345678901L);
+        ByteBuffer buffer = ByteBuffer.allocate(source.getNeededByteBufferCapacity());
+        source.encodeIntoByteBuffer(buffer);
+        buffer.flip();
+        Histogram expected = new Histogram(1000, 2000, 5);
+        expected.setAutoResize(true);
+        expected.recordValue(5000);
+        Histogram actual = expected.copy();
+        // when
+        expected.add(Histogram.decodeFromByteBuffer(buffer.duplicate(), 0));
+        boolean merged = LazyHistogram.mergeEncoded(buffer, actual);
+        // then
+        assertThat(merged).isTrue();
+        assertThat(actual).isEqualTo(expected);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,7 +15,9 @@
  */
 package org.glowroot.common.model;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -25,8 +27,11 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
+import com.google.protobuf.CodedOutputStream;
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -164,6 +169,72 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingSerialized() throws IOException {
+        // given
+        MutableProfile profile1 = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile1.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile1.merge(stackTraceElements1, Thread.State.BLOCKED);
+        MutableProfile profile2 = new MutableProfile();
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Xyz", "abc", "Xyz.java", -2));
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile2.merge(stackTraceElements2, Thread.State.WAITING);
+        profile2.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        MutableProfile mergedProfile = new MutableProfile();
+        MutableProfile mergedSerializedProfile = new MutableProfile();
+        // when
+        mergedProfile.merge(profile1.toProto());
+        mergedProfile.merge(profile2.toProto());
+        mergedSerializedProfile.merge(ByteBuffer.wrap(profile1.toProto().toByteArray()));
+        mergedSerializedProfile.merge(ByteBuffer.wrap(profile2.toProto().toByteArray()));
+        // then
+        assertThat(mergedSerializedProfile.getSampleCount()).isEqualTo(4);
+        assertThat(mergedSerializedProfile.toJson()).isEqualTo(mergedProfile.toJson());
+        assertThat(mergedSerializedProfile.toProto()).isEqualTo(mergedProfile.toProto());
+    }
+
+    @Test
+    public void testMergingSerializedWithNodesBeforeNames() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        Profile proto = profile.toProto();
+        // valid protobuf, even though protobuf itself always serializes fields in field number
+        // order
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(baos);
+        for (Profile.ProfileNode node : proto.getNodeList()) {
+            output.writeMessage(Profile.NODE_FIELD_NUMBER, node);
+        }
+        for (String packageName : proto.getPackageNameList()) {
+            output.writeString(Profile.PACKAGE_NAME_FIELD_NUMBER, packageName);
+        }
+        for (String className : proto.getClassNameList()) {
+            output.writeString(Profile.CLASS_NAME_FIELD_NUMBER, className);
+        }
+        for (String methodName : proto.getMethodNameList()) {
+            output.writeString(Profile.METHOD_NAME_FIELD_NUMBER, methodName);
+        }
+        for (String fileName : proto.getFileNameList()) {
+            output.writeString(Profile.FILE_NAME_FIELD_NUMBER, fileName);
+        }
+        output.flush();
+        MutableProfile mergedProfile = new MutableProfile();
+        // when
+        mergedProfile.merge(ByteBuffer.wrap(baos.toByteArray()));
+        // then
+        assertThat(mergedProfile.toJson()).isEqualTo(profile.toJson());
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionNameSummaryCollectorTest {
+
+    @Test
+    public void shouldReturnTopSummaries() {
+        // given
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        for (int i = 0; i < 1000; i++) {
+            collector.collect("t" + i, i * 1000000.0, 1000 - i, 60000);
+        }
+        collector.collect("t500", 2000000000.0, 1000, 120000);
+
+        // when
+        Result<TransactionNameSummary> totalTimeResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 3);
+        Result<TransactionNameSummary> averageTimeResult =
+                collector.getResult(SummarySortOrder.AVERAGE_TIME, 2);
+        Result<TransactionNameSummary> throughputResult =
+                collector.getResult(SummarySortOrder.THROUGHPUT, 2);
+
+        // then
+        assertThat(totalTimeResult.records()).hasSize(3);
+        assertThat(totalTimeResult.records().get(0).transactionName()).isEqualTo("t500");
+        assertThat(totalTimeResult.records().get(0).totalDurationNanos())
+                .isEqualTo(2500000000.0);
+        assertThat(totalTimeResult.records().get(0).transactionCount()).isEqualTo(1500);
+        assertThat(totalTimeResult.records().get(1).transactionName()).isEqualTo("t999");
+        assertThat(totalTimeResult.records().get(2).transactionName()).isEqualTo("t998");
+        assertThat(totalTimeResult.moreAvailable()).isTrue();
+        assertThat(averageTimeResult.records().get(0).transactionName()).isEqualTo("t999");
+        assertThat(averageTimeResult.records().get(1).transactionName()).isEqualTo("t998");
+        assertThat(throughputResult.records().get(0).transactionName()).isEqualTo("t500");
+        assertThat(throughputResult.records().get(1).transactionName()).isEqualTo("t0");
+        assertThat(collector.getLastCaptureTime()).isEqualTo(120000);
+    }
+
+    @Test
+    public void shouldNotIndicateMoreAvailableWhenAllReturned() {
+        // given
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        collector.collect("a", 1, 1, 60000);
+        collector.collect("b", 2, 1, 60000);
+
+        // when
+        Result<TransactionNameSummary> result =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 2);
+
+        // then
+        assertThat(result.records()).hasSize(2);
+        assertThat(result.records().get(0).transactionName()).isEqualTo("b");
+        assertThat(result.moreAvailable()).isFalse();
+    }
+}
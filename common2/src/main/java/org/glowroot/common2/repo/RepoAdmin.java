@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -82,6 +82,8 @@ public interface RepoAdmin {
     interface CassandraWriteTotals {
         String display();
         long rowsWritten();
+        // number of statements sent to cassandra, an unlogged batch of rows counts as one
+        long writeRequests();
         long bytesWritten(); // only includes varchar and blob columns
         Map<String, Long> bytesWrittenPerColumn(); // only includes varchar and blob columns
         boolean drilldown();
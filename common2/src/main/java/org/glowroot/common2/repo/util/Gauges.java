@@ -75,6 +75,22 @@ public class Gauges {
                 "bytes"));
         patterns.add(
                 new UnitPattern("org.glowroot:type=FileSystem,name=.*:PercentFull", "percent"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=StackTraceCollector:(Total|Last)CaptureTimeNanos",
+                "nanoseconds"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=StackTraceCollector:(Total|Last)StackTracesCaptured",
+                GROUPING_PREFIX + "stack-trace-count"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=StackTraceCollector:(Total|Last)FramesCaptured",
+                GROUPING_PREFIX + "frame-count"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=TraceCollector:((Error|Completion|Slow|Partial)QueueDepth"
+                        + "|Total(Error|Slow|Partial)TracesDropped)",
+                GROUPING_PREFIX + "trace-count"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=H2Database:Total(WriteLock|ReadConnection)WaitNanos",
+                "nanoseconds"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
                 + "keyspace=[^,]+,scope=[^,]+,name=LiveDiskSpaceUsed:Count", "bytes"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
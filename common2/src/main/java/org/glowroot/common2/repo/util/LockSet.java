@@ -26,6 +26,10 @@ public interface LockSet<K extends /*@NonNull*/ Serializable> {
     @Nullable
     UUID lock(K key);
 
+    // resets the expiration of a lock that is still held, returns false if the lock is no longer
+    // held with the given token (e.g. because it already expired)
+    boolean renew(K key, UUID lockToken);
+
     void unlock(K key, UUID lockToken);
 
     public static class LockSetImpl<K extends /*@NonNull*/ Serializable> implements LockSet<K> {
@@ -46,6 +50,13 @@ public interface LockSet<K extends /*@NonNull*/ Serializable> {
             }
         }
 
+        @Override
+        public boolean renew(K key, UUID lockToken) {
+            // replacing the entry (even with the same value) counts as a write, which resets the
+            // entry's expiration
+            return map.replace(key, lockToken, lockToken);
+        }
+
         @Override
         public void unlock(K key, UUID lockToken) {
             map.remove(key, lockToken);
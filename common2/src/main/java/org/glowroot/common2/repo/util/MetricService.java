@@ -16,35 +16,67 @@
 package org.glowroot.common2.repo.util;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.primitives.Ints;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
 
 import org.glowroot.common.live.ImmutableAggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.GaugeValueRepository;
 import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.common2.repo.util.RollupLevelService.DataKind;
+import org.glowroot.common2.repo.util.SlidingWindow.RowReader;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 class MetricService {
 
     private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
 
+    private static final long MAX_WINDOW_BYTES = 32 * 1024 * 1024;
+
+    // rough per row overhead (capture time, counts, object headers, map entry)
+    private static final long ROW_OVERHEAD_BYTES = 100;
+
     private final AggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
     private final TraceRepository traceRepository;
     private final RollupLevelService rollupLevelService;
 
+    // the same metric is checked repeatedly (e.g. every minute) over a sliding time period, so the
+    // rows read for each metric are retained, and subsequent checks only need to read the rows
+    // captured since the prior check (see SlidingWindow)
+    //
+    // this also allows multiple alerts on the same metric (e.g. different percentiles or different
+    // thresholds) to share the rows read
+    private final Cache<WindowKey, SlidingWindow<?>> windows = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_WINDOW_BYTES)
+            .weigher(new Weigher<WindowKey, SlidingWindow<?>>() {
+                @Override
+                public int weigh(WindowKey key, SlidingWindow<?> window) {
+                    return Ints.saturatedCast(window.getEstimatedBytes());
+                }
+            })
+            .expireAfterAccess(10, MINUTES)
+            .build();
+
     public MetricService(AggregateRepository aggregateRepository,
             GaugeValueRepository gaugeValueRepository, TraceRepository traceRepository,
             RollupLevelService rollupLevelService) {
@@ -84,21 +116,30 @@ class MetricService {
         }
     }
 
-    private @Nullable Double getTransactionDurationPercentile(String agentRollupId,
+    private @Nullable Double getTransactionDurationPercentile(final String agentRollupId,
             String transactionType, @Nullable String transactionName, double percentile,
             long startTime, long endTime) throws Exception {
-        int rollupLevel =
-                rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
-        // startTime + 1 in order to not include the aggregate value at startTime
-        List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableAggregateQuery.builder()
-                                .transactionType(transactionType)
-                                .transactionName(transactionName)
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
+        final ImmutableAggregateQuery query =
+                getAggregateQuery(transactionType, transactionName, startTime, endTime);
+        List<PercentileAggregate> aggregates = readWindow(
+                ImmutableWindowKey.of(WindowKind.PERCENTILE, agentRollupId, transactionType,
+                        transactionName, query.rollupLevel()),
+                query.from(), query.to(), new RowReader<PercentileAggregate>() {
+                    @Override
+                    public List<PercentileAggregate> read(long from, long to) throws Exception {
+                        return aggregateRepository.readPercentileAggregates(agentRollupId,
+                                query.withFrom(from).withTo(to));
+                    }
+                    @Override
+                    public long getCaptureTime(PercentileAggregate row) {
+                        return row.captureTime();
+                    }
+                    @Override
+                    public long getEstimatedBytes(PercentileAggregate row) {
+                        return ROW_OVERHEAD_BYTES
+                                + row.durationNanosHistogram().getSerializedSize();
+                    }
+                });
         if (aggregates.isEmpty()) {
             return null;
         }
@@ -183,13 +224,29 @@ class MetricService {
         }
     }
 
-    private @Nullable Double getGaugeValue(String agentRollupId, String gaugeName,
+    private @Nullable Double getGaugeValue(final String agentRollupId, final String gaugeName,
             long startTime, long endTime) throws Exception {
-        int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime,
+        final int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime,
                 agentRollupId.endsWith("::"));
         // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                gaugeName, startTime + 1, endTime, rollupLevel);
+        List<GaugeValue> gaugeValues = readWindow(
+                ImmutableWindowKey.of(WindowKind.GAUGE, agentRollupId, gaugeName, null,
+                        rollupLevel),
+                startTime + 1, endTime, new RowReader<GaugeValue>() {
+                    @Override
+                    public List<GaugeValue> read(long from, long to) throws Exception {
+                        return gaugeValueRepository.readGaugeValues(agentRollupId, gaugeName,
+                                from, to, rollupLevel);
+                    }
+                    @Override
+                    public long getCaptureTime(GaugeValue row) {
+                        return row.getCaptureTime();
+                    }
+                    @Override
+                    public long getEstimatedBytes(GaugeValue row) {
+                        return ROW_OVERHEAD_BYTES;
+                    }
+                });
         if (gaugeValues.isEmpty()) {
             return null;
         }
@@ -205,35 +262,119 @@ class MetricService {
         return totalWeightedValue / totalWeight;
     }
 
-    private List<ThroughputAggregate> getThroughputAggregates(String agentRollupId,
+    private List<ThroughputAggregate> getThroughputAggregates(final String agentRollupId,
             String transactionType, @Nullable String transactionName, long startTime, long endTime)
             throws Exception {
-        int rollupLevel =
-                rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
-        // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readThroughputAggregates(agentRollupId,
-                ImmutableAggregateQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        final ImmutableAggregateQuery query =
+                getAggregateQuery(transactionType, transactionName, startTime, endTime);
+        return readWindow(
+                ImmutableWindowKey.of(WindowKind.THROUGHPUT, agentRollupId, transactionType,
+                        transactionName, query.rollupLevel()),
+                query.from(), query.to(), new RowReader<ThroughputAggregate>() {
+                    @Override
+                    public List<ThroughputAggregate> read(long from, long to) throws Exception {
+                        return aggregateRepository.readThroughputAggregates(agentRollupId,
+                                query.withFrom(from).withTo(to));
+                    }
+                    @Override
+                    public long getCaptureTime(ThroughputAggregate row) {
+                        return row.captureTime();
+                    }
+                    @Override
+                    public long getEstimatedBytes(ThroughputAggregate row) {
+                        return ROW_OVERHEAD_BYTES;
+                    }
+                });
     }
 
-    private List<OverviewAggregate> getOverviewAggregates(String agentRollupId,
+    private List<OverviewAggregate> getOverviewAggregates(final String agentRollupId,
             String transactionType, @Nullable String transactionName, long startTime, long endTime)
             throws Exception {
+        final ImmutableAggregateQuery query =
+                getAggregateQuery(transactionType, transactionName, startTime, endTime);
+        return readWindow(
+                ImmutableWindowKey.of(WindowKind.OVERVIEW, agentRollupId, transactionType,
+                        transactionName, query.rollupLevel()),
+                query.from(), query.to(), new RowReader<OverviewAggregate>() {
+                    @Override
+                    public List<OverviewAggregate> read(long from, long to) throws Exception {
+                        return aggregateRepository.readOverviewAggregates(agentRollupId,
+                                query.withFrom(from).withTo(to));
+                    }
+                    @Override
+                    public long getCaptureTime(OverviewAggregate row) {
+                        return row.captureTime();
+                    }
+                    @Override
+                    public long getEstimatedBytes(OverviewAggregate row) {
+                        long bytes = ROW_OVERHEAD_BYTES + row.mainThreadStats().getSerializedSize();
+                        for (Aggregate.Timer timer : row.mainThreadRootTimers()) {
+                            bytes += timer.getSerializedSize();
+                        }
+                        Aggregate.Timer auxThreadRootTimer = row.auxThreadRootTimer();
+                        if (auxThreadRootTimer != null) {
+                            bytes += auxThreadRootTimer.getSerializedSize();
+                        }
+                        Aggregate.ThreadStats auxThreadStats = row.auxThreadStats();
+                        if (auxThreadStats != null) {
+                            bytes += auxThreadStats.getSerializedSize();
+                        }
+                        for (Aggregate.Timer timer : row.asyncTimers()) {
+                            bytes += timer.getSerializedSize();
+                        }
+                        return bytes;
+                    }
+                });
+    }
+
+    private ImmutableAggregateQuery getAggregateQuery(String transactionType,
+            @Nullable String transactionName, long startTime, long endTime) throws Exception {
         int rollupLevel =
                 rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
         // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readOverviewAggregates(agentRollupId,
-                ImmutableAggregateQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        return ImmutableAggregateQuery.builder()
+                .transactionType(transactionType)
+                .transactionName(transactionName)
+                .from(startTime + 1)
+                .to(endTime)
+                .rollupLevel(rollupLevel)
+                .build();
+    }
+
+    private <T> List<T> readWindow(WindowKey windowKey, long from, long to,
+            RowReader<T> rowReader) throws Exception {
+        if (windowKey.rollupLevel() > 0 || windowKey.agentRollupId().endsWith("::")) {
+            // these rows are stored by the rollup process, which can run a full rollup interval (or
+            // more, e.g. when it is catching up) behind the capture time, so they can show up well
+            // after the settle period of the sliding window
+            return rowReader.read(from, to);
+        }
+        @SuppressWarnings("unchecked")
+        SlidingWindow<T> window =
+                (SlidingWindow<T>) windows.get(windowKey, new Callable<SlidingWindow<?>>() {
+                    @Override
+                    public SlidingWindow<?> call() {
+                        return new SlidingWindow<Object>();
+                    }
+                });
+        List<T> rows = window.read(from, to, rowReader);
+        // re-insert so that the cache re-weighs the window
+        windows.put(windowKey, window);
+        return rows;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface WindowKey {
+        WindowKind kind();
+        String agentRollupId();
+        String name(); // transaction type or gauge name
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+    }
+
+    enum WindowKind {
+        PERCENTILE, OVERVIEW, THROUGHPUT, GAUGE
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// retains the rows read for a time period, so that reading the next (largely overlapping) time
+// period only needs to read the rows captured since the prior read
+//
+// rows can be stored after rows with later capture times have already been read (e.g. when an agent
+// re-sends data after a network hiccup), so the most recent settle period is always re-read, and
+// the entire time period is re-read at least once per time period length to pick up any rows that
+// were stored even later than that
+//
+// rows that are stored by the rollup process (agent rollups and rollup levels above 0) can be
+// delayed by a full rollup interval or more, so those are not read through a sliding window at all
+// (see MetricService.readWindow())
+class SlidingWindow<T> {
+
+    private static final long SETTLE_MILLIS = MINUTES.toMillis(1);
+
+    private final NavigableMap<Long, List<T>> rows = new TreeMap<Long, List<T>>();
+
+    // rows are complete for [from, to] (both inclusive)
+    private long from = -1;
+    private long to;
+    private long fullReadTo;
+
+    private long estimatedBytes;
+
+    // from and to are both inclusive
+    synchronized List<T> read(long from, long to, RowReader<T> rowReader) throws Exception {
+        if (this.from == -1 || from < this.from || to < this.to
+                || to - fullReadTo >= to - from) {
+            rows.clear();
+            add(rowReader.read(from, to), rowReader);
+            fullReadTo = to;
+        } else {
+            long readFrom = Math.max(from, this.to - SETTLE_MILLIS + 1);
+            rows.tailMap(readFrom, true).clear();
+            rows.headMap(from, false).clear();
+            add(rowReader.read(readFrom, to), rowReader);
+        }
+        this.from = from;
+        this.to = to;
+        estimatedBytes = 0;
+        List<T> list = Lists.newArrayList();
+        for (List<T> captureTimeRows : rows.values()) {
+            for (T row : captureTimeRows) {
+                estimatedBytes += rowReader.getEstimatedBytes(row);
+                list.add(row);
+            }
+        }
+        return list;
+    }
+
+    synchronized long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private void add(Collection<T> newRows, RowReader<T> rowReader) {
+        for (T row : newRows) {
+            long captureTime = rowReader.getCaptureTime(row);
+            List<T> captureTimeRows = rows.get(captureTime);
+            if (captureTimeRows == null) {
+                captureTimeRows = Lists.newArrayListWithCapacity(1);
+                rows.put(captureTime, captureTimeRows);
+            }
+            captureTimeRows.add(row);
+        }
+    }
+
+    interface RowReader<T> {
+
+        // from and to are both inclusive
+        List<T> read(long from, long to) throws Exception;
+
+        long getCaptureTime(T row);
+
+        long getEstimatedBytes(T row);
+    }
+}
@@ -29,4 +29,12 @@ public class GaugesTest {
                 + ":CollectionTime[counter]");
         assertThat(gauge.unit()).isEqualTo("milliseconds per second");
     }
+
+    @Test
+    public void shouldGroupTraceCollectorQueueDepths() {
+        Gauge gauge = Gauges.getGauge("org.glowroot:type=TraceCollector:CompletionQueueDepth");
+        assertThat(gauge.grouping()).isEqualTo("grouping-trace-count");
+        assertThat(gauge.grouping()).isEqualTo(
+                Gauges.getGauge("org.glowroot:type=TraceCollector:ErrorQueueDepth").grouping());
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.util.LockSet.LockSetImpl;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LockSetTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    private LockSet<String> lockSet;
+
+    @Before
+    public void beforeEachTest() {
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        };
+        ConcurrentMap<String, UUID> map = CacheBuilder.newBuilder()
+                .expireAfterWrite(10, MINUTES)
+                .ticker(ticker)
+                .<String, UUID>build()
+                .asMap();
+        lockSet = new LockSetImpl<String>(map);
+    }
+
+    @Test
+    public void shouldKeepLockWhileRenewed() {
+        // given
+        UUID lockToken = lockSet.lock("key");
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            nanos.addAndGet(MINUTES.toNanos(5));
+            assertThat(lockSet.renew("key", lockToken)).isTrue();
+        }
+
+        // then
+        assertThat(lockSet.lock("key")).isNull();
+    }
+
+    @Test
+    public void shouldNotRenewExpiredLock() {
+        // given
+        UUID lockToken = lockSet.lock("key");
+
+        // when
+        nanos.addAndGet(MINUTES.toNanos(11));
+
+        // then
+        assertThat(lockSet.renew("key", lockToken)).isFalse();
+        assertThat(lockSet.lock("key")).isNotNull();
+    }
+
+    @Test
+    public void shouldNotRenewLockHeldByOtherToken() {
+        // given
+        lockSet.lock("key");
+
+        // then
+        assertThat(lockSet.renew("key", UUID.randomUUID())).isFalse();
+    }
+}
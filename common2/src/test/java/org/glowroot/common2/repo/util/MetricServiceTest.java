@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.AggregateRepository;
+import org.glowroot.common2.repo.GaugeValueRepository;
+import org.glowroot.common2.repo.TraceRepository;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MetricServiceTest {
+
+    private static final MetricCondition GAUGE_METRIC_CONDITION = MetricCondition.newBuilder()
+            .setMetric("gauge:abc")
+            .setTimePeriodSeconds(300)
+            .build();
+
+    private GaugeValueRepository gaugeValueRepository;
+    private RollupLevelService rollupLevelService;
+    private MetricService metricService;
+
+    @Before
+    public void beforeEachTest() {
+        gaugeValueRepository = mock(GaugeValueRepository.class);
+        rollupLevelService = mock(RollupLevelService.class);
+        metricService = new MetricService(mock(AggregateRepository.class), gaugeValueRepository,
+                mock(TraceRepository.class), rollupLevelService);
+    }
+
+    @Test
+    public void shouldOnlyReadRecentRowsForAgent() throws Exception {
+        // given
+        setGaugeRollupLevel(0);
+        metricService.getMetricValue("a", GAUGE_METRIC_CONDITION, 0, 300000);
+        // when
+        metricService.getMetricValue("a", GAUGE_METRIC_CONDITION, 60000, 360000);
+        // then
+        verify(gaugeValueRepository).readGaugeValues("a", "abc", 1, 300000, 0);
+        // only the settle period prior to the last read is re-read
+        verify(gaugeValueRepository).readGaugeValues("a", "abc", 240001, 360000, 0);
+    }
+
+    @Test
+    public void shouldReadAllRowsForAgentRollup() throws Exception {
+        // given
+        setGaugeRollupLevel(0);
+        metricService.getMetricValue("a::", GAUGE_METRIC_CONDITION, 0, 300000);
+        // when
+        metricService.getMetricValue("a::", GAUGE_METRIC_CONDITION, 60000, 360000);
+        // then
+        verify(gaugeValueRepository).readGaugeValues("a::", "abc", 1, 300000, 0);
+        verify(gaugeValueRepository).readGaugeValues("a::", "abc", 60001, 360000, 0);
+    }
+
+    @Test
+    public void shouldReadAllRowsForRollupLevel() throws Exception {
+        // given
+        setGaugeRollupLevel(1);
+        metricService.getMetricValue("a", GAUGE_METRIC_CONDITION, 0, 300000);
+        // when
+        metricService.getMetricValue("a", GAUGE_METRIC_CONDITION, 60000, 360000);
+        // then
+        verify(gaugeValueRepository).readGaugeValues("a", "abc", 1, 300000, 1);
+        verify(gaugeValueRepository).readGaugeValues("a", "abc", 60001, 360000, 1);
+    }
+
+    private void setGaugeRollupLevel(int rollupLevel) throws Exception {
+        when(rollupLevelService.getGaugeRollupLevelForView(anyLong(), anyLong(), anyBoolean()))
+                .thenReturn(rollupLevel);
+    }
+}
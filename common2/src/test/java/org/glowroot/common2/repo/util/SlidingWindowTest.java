@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.util.SlidingWindow.RowReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlidingWindowTest {
+
+    private static final long MINUTE = 60000;
+
+    @Test
+    public void shouldOnlyReadNewRows() throws Exception {
+        // given
+        SlidingWindow<Long> window = new SlidingWindow<Long>();
+        FakeRowReader rowReader = new FakeRowReader();
+        for (long captureTime = MINUTE; captureTime <= 20 * MINUTE; captureTime += MINUTE) {
+            rowReader.captureTimes.add(captureTime);
+        }
+
+        // when
+        List<Long> rows1 = window.read(1, 10 * MINUTE, rowReader);
+        List<Long> rows2 = window.read(MINUTE + 1, 11 * MINUTE, rowReader);
+
+        // then
+        assertThat(rows1).hasSize(10);
+        assertThat(rows2).hasSize(10);
+        assertThat(rows2.get(0)).isEqualTo(2 * MINUTE);
+        assertThat(rows2.get(9)).isEqualTo(11 * MINUTE);
+        assertThat(rowReader.reads).containsExactly("1-" + 10 * MINUTE,
+                (9 * MINUTE + 1) + "-" + 11 * MINUTE);
+    }
+
+    @Test
+    public void shouldPickUpRowsStoredLateWithinSettlePeriod() throws Exception {
+        // given
+        SlidingWindow<Long> window = new SlidingWindow<Long>();
+        FakeRowReader rowReader = new FakeRowReader();
+        for (long captureTime = MINUTE; captureTime <= 9 * MINUTE; captureTime += MINUTE) {
+            rowReader.captureTimes.add(captureTime);
+        }
+        window.read(1, 10 * MINUTE, rowReader);
+
+        // when
+        rowReader.captureTimes.add(10 * MINUTE);
+        rowReader.captureTimes.add(11 * MINUTE);
+        List<Long> rows = window.read(MINUTE + 1, 11 * MINUTE, rowReader);
+
+        // then
+        assertThat(rows).hasSize(10);
+    }
+
+    @Test
+    public void shouldReadEntireTimePeriodOncePerTimePeriodLength() throws Exception {
+        // given
+        SlidingWindow<Long> window = new SlidingWindow<Long>();
+        FakeRowReader rowReader = new FakeRowReader();
+
+        // when
+        for (long endTime = 10 * MINUTE; endTime <= 20 * MINUTE; endTime += MINUTE) {
+            window.read(endTime - 10 * MINUTE + 1, endTime, rowReader);
+        }
+
+        // then
+        assertThat(rowReader.reads).hasSize(11);
+        assertThat(rowReader.reads.get(0)).isEqualTo("1-" + 10 * MINUTE);
+        assertThat(rowReader.reads.get(9)).isEqualTo((17 * MINUTE + 1) + "-" + 19 * MINUTE);
+        assertThat(rowReader.reads.get(10)).isEqualTo((10 * MINUTE + 1) + "-" + 20 * MINUTE);
+    }
+
+    @Test
+    public void shouldReadEntireTimePeriodWhenTimePeriodIsExtended() throws Exception {
+        // given
+        SlidingWindow<Long> window = new SlidingWindow<Long>();
+        FakeRowReader rowReader = new FakeRowReader();
+        window.read(5 * MINUTE + 1, 10 * MINUTE, rowReader);
+
+        // when
+        window.read(1, 11 * MINUTE, rowReader);
+
+        // then
+        assertThat(rowReader.reads).containsExactly((5 * MINUTE + 1) + "-" + 10 * MINUTE,
+                "1-" + 11 * MINUTE);
+    }
+
+    private static class FakeRowReader implements RowReader<Long> {
+
+        private final NavigableSet<Long> captureTimes = new TreeSet<Long>();
+        private final List<String> reads = Lists.newArrayList();
+
+        @Override
+        public List<Long> read(long from, long to) {
+            reads.add(from + "-" + to);
+            return Lists.newArrayList(captureTimes.subSet(from, true, to, true));
+        }
+
+        @Override
+        public long getCaptureTime(Long row) {
+            return row;
+        }
+
+        @Override
+        public long getEstimatedBytes(Long row) {
+            return 8;
+        }
+    }
+}
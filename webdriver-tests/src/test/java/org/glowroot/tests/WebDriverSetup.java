@@ -78,9 +78,11 @@ public class WebDriverSetup {
     private static final Logger logger = LoggerFactory.getLogger(WebDriverSetup.class);
 
     static {
-        // shorter time so aggregates and gauges will be collected during BasicSmokeIT
+        // shorter time so aggregates and gauges will be collected (and gauge values written)
+        // during BasicSmokeIT
         System.setProperty("glowroot.internal.rollup.0.intervalMillis", "1000");
         System.setProperty("glowroot.internal.gaugeCollectionIntervalMillis", "1000");
+        System.setProperty("glowroot.internal.gaugeValueCoalescingMillis", "0");
     }
 
     public static WebDriverSetup create() throws Exception {